@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Decoder CPU per second of audio and time to first PCM for MP3 responses, against handing
+ * the same amount of LINEAR16 to the player. Needs the platform codec, so it runs on a device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MediaCodecMp3DecoderBenchmark {
+    private static final String TAG = MediaCodecMp3DecoderBenchmark.class.getSimpleName();
+    private static final String FIXTURE = "speech-16k-mono.mp3";
+    private static final int SAMPLE_RATE = 16000;
+    // About what a response message carries.
+    private static final int MESSAGE_BYTES = 1600;
+    private static final int RUNS = 10;
+
+    private static byte[] readFixture() throws IOException {
+        InputStream in = MediaCodecMp3DecoderBenchmark.class.getClassLoader()
+                .getResourceAsStream(FIXTURE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static class Counter implements AudioDecoder.Listener {
+        long bytes;
+
+        @Override
+        public void onPcm(ByteBuffer pcm) {
+            bytes += pcm.remaining();
+        }
+    }
+
+    @Test
+    public void mp3AgainstPcm() throws IOException {
+        assumeTrue(MediaCodecMp3Decoder.isAvailable(SAMPLE_RATE));
+        byte[] mp3 = readFixture();
+        MediaCodecMp3Decoder decoder = new MediaCodecMp3Decoder(SAMPLE_RATE);
+        long cpuMillis = 0;
+        long firstPcmMillis = 0;
+        long pcmBytes = 0;
+        try {
+            for (int run = 0; run < RUNS; run++) {
+                Counter counter = new Counter();
+                for (int i = 0; i < mp3.length; i += MESSAGE_BYTES) {
+                    decoder.decode(ByteBuffer.wrap(mp3, i, Math.min(MESSAGE_BYTES,
+                            mp3.length - i)), counter);
+                }
+                decoder.endOfStream(counter);
+                assertFalse(decoder.hasFailed());
+                // The first run pays for creating the codec.
+                if (run > 0) {
+                    cpuMillis += decoder.getCpuMillisPerAudioSecond();
+                    firstPcmMillis += decoder.getFirstPcmLatencyMillis();
+                }
+                pcmBytes = counter.bytes;
+            }
+        } finally {
+            decoder.release();
+        }
+
+        // The PCM path: the same audio as LINEAR16 messages copied out for the player.
+        byte[] pcm = new byte[(int) pcmBytes];
+        long pcmCpuNanos = Debug.threadCpuTimeNanos();
+        Counter counter = new Counter();
+        for (int run = 0; run < RUNS; run++) {
+            for (int i = 0; i < pcm.length; i += MESSAGE_BYTES) {
+                ByteBuffer message = ByteBuffer.wrap(pcm, i, Math.min(MESSAGE_BYTES,
+                        pcm.length - i)).asReadOnlyBuffer();
+                counter.onPcm(message);
+            }
+        }
+        long audioMillis = pcmBytes / 2 * 1000 / SAMPLE_RATE;
+        long pcmCpuMicros = (Debug.threadCpuTimeNanos() - pcmCpuNanos) / 1000 / RUNS
+                * 1000 / Math.max(1, audioMillis);
+
+        long mp3CpuMillis = cpuMillis / (RUNS - 1);
+        Log.i(TAG, "MP3: " + mp3.length + " bytes, " + mp3CpuMillis +
+                " ms CPU per second of audio, first PCM after " + firstPcmMillis / (RUNS - 1) +
+                " ms; LINEAR16: " + pcmBytes + " bytes, " + pcmCpuMicros +
+                " us CPU per second of audio, first PCM on arrival");
+        // Nearly all of the 3 s fixture comes out, less the decoder's priming delay.
+        assertTrue("decoded " + audioMillis + " ms", audioMillis > 2800);
+        // A small fraction of a core, or MP3 isn't worth it on the board.
+        assertTrue(mp3CpuMillis < 100);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+/**
+ * Decides how much audio goes into each request message.
+ *
+ * On a healthy link every capture chunk is sent on its own for the lowest latency. When audio
+ * starts queueing up behind the call, or the call takes longer to become ready again (our
+ * stand-in for round trip time, since gRPC doesn't expose one), the frame size doubles so there
+ * are fewer messages and less per-message overhead. Once the link has been healthy for a while
+ * it shrinks back one chunk at a time. Every turn starts over from the smallest frame.
+ */
+public class AdaptiveBatcher {
+    // How many healthy messages in a row before the frame shrinks by one chunk.
+    private static final int SHRINK_AFTER_MESSAGES = 16;
+    // Ready waits longer than this (smoothed) count as congestion.
+    private static final float CONGESTED_WAIT_MILLIS = 50f;
+
+    private final int mChunkBytes;
+    private final int mChunkMillis;
+    private final int mMinChunks;
+    private final int mMaxChunks;
+
+    private int mTargetChunks;
+    private int mHealthyMessages;
+    private float mSmoothedWaitMillis;
+
+    private long mMessages;
+    private long mBytes;
+    private int mGrowCount;
+    private int mShrinkCount;
+
+    /**
+     * @param chunkBytes the size of one capture chunk
+     * @param chunkMillis how much audio one capture chunk holds
+     * @param minFrameMillis the smallest amount of audio to put in a message
+     * @param maxFrameMillis the largest amount of audio to put in a message
+     */
+    public AdaptiveBatcher(int chunkBytes, int chunkMillis, int minFrameMillis,
+                           int maxFrameMillis) {
+        mChunkBytes = chunkBytes;
+        mChunkMillis = chunkMillis;
+        mMinChunks = Math.max(1, minFrameMillis / chunkMillis);
+        mMaxChunks = Math.max(mMinChunks, maxFrameMillis / chunkMillis);
+        mTargetChunks = mMinChunks;
+    }
+
+    /**
+     * Starts over from the smallest frame. Call before every turn: each turn is a new call,
+     * so how long the last one took to become ready says nothing about it. The totals are
+     * kept.
+     */
+    public void reset() {
+        mTargetChunks = mMinChunks;
+        mHealthyMessages = 0;
+        mSmoothedWaitMillis = 0;
+    }
+
+    /**
+     * @return how many bytes the next message should carry
+     */
+    public int getTargetBytes() {
+        return mTargetChunks * mChunkBytes;
+    }
+
+    public int getTargetFrameMillis() {
+        return mTargetChunks * mChunkMillis;
+    }
+
+    /**
+     * @return the biggest frame this batcher will ever ask for, in bytes
+     */
+    public int getMaxFrameBytes() {
+        return mMaxChunks * mChunkBytes;
+    }
+
+    /**
+     * Call after every audio message handed to gRPC.
+     *
+     * @param bytes the size of the message's audio
+     * @param pendingMessages how many messages are still waiting for the call to be ready
+     * @param readyWaitMillis how long the sender waited for the call to become ready since the
+     *   last message, zero if it didn't have to wait
+     */
+    public void onMessageSent(int bytes, int pendingMessages, long readyWaitMillis) {
+        mMessages++;
+        mBytes += bytes;
+        mSmoothedWaitMillis += (readyWaitMillis - mSmoothedWaitMillis) / 8f;
+        if (pendingMessages > 0 || mSmoothedWaitMillis > CONGESTED_WAIT_MILLIS) {
+            mHealthyMessages = 0;
+            if (mTargetChunks < mMaxChunks) {
+                mTargetChunks = Math.min(mMaxChunks, mTargetChunks * 2);
+                mGrowCount++;
+            }
+        } else if (++mHealthyMessages >= SHRINK_AFTER_MESSAGES) {
+            mHealthyMessages = 0;
+            if (mTargetChunks > mMinChunks) {
+                mTargetChunks--;
+                mShrinkCount++;
+            }
+        }
+    }
+
+    public long getMessageCount() {
+        return mMessages;
+    }
+
+    public long getAverageMessageBytes() {
+        return mMessages == 0 ? 0 : mBytes / mMessages;
+    }
+
+    public int getGrowCount() {
+        return mGrowCount;
+    }
+
+    public int getShrinkCount() {
+        return mShrinkCount;
+    }
+}
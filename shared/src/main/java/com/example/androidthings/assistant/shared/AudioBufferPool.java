@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A recycled set of direct buffers for the microphone loop, so streaming a long utterance
+ * doesn't allocate a new buffer for every chunk.
+ *
+ * The free list is an {@link SpscRing}, so one thread may acquire while another releases
+ * (e.g. the capture thread and the thread sending the chunks), but each side must stay on a
+ * single thread.
+ */
+public class AudioBufferPool {
+    private final int mBufferSize;
+    private final SpscRing<ByteBuffer> mFreeBuffers;
+    private volatile int mAllocationCount;
+
+    /**
+     * @param bufferSize the capacity of every buffer in bytes
+     * @param initialCount how many buffers to allocate up front
+     */
+    public AudioBufferPool(int bufferSize, int initialCount) {
+        mBufferSize = bufferSize;
+        mFreeBuffers = new SpscRing<>(initialCount);
+        for (int i = 0; i < initialCount; i++) {
+            mFreeBuffers.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    /**
+     * Takes a cleared buffer out of the pool, allocating a new one only if the pool is empty.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = mFreeBuffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(mBufferSize);
+            mAllocationCount++;
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back so the next acquire can reuse it. Don't touch it after this.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == mBufferSize) {
+            // If the ring is full the buffer is simply left for the garbage collector.
+            mFreeBuffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return how many buffers had to be allocated after construction. This stays at zero
+     *   while the loop releases every buffer it acquires.
+     */
+    public int getAllocationCount() {
+        return mAllocationCount;
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.media.AudioRecord;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drains an AudioRecord on its own high priority thread into a lock-free ring of chunks, so a
+ * slow consumer (the network) can never keep the microphone from being read.
+ *
+ * Recording ({@link #start()}/{@link #stop()}) and turns ({@link #beginTurn(long)}/
+ * {@link #endTurn()}) are separate: chunks are only published while a turn is open, and every
+ * turn is closed with an {@link #END_OF_TURN} marker in the ring, so the consumer knows exactly
+ * where one turn stops and the next begins.
+ *
+ * Each chunk is a pooled direct buffer with its limit set to the number of bytes read. The
+ * consumer takes chunks with {@link #poll()} and must hand every one back with
+ * {@link #release(ByteBuffer)} once it's done with it. If the ring is full the newest chunk is
+ * dropped and counted as an overrun.
+ *
+ * Audio recorded while no turn is publishing goes into a {@link PreRollBuffer}, which is sent
+ * ahead of the first chunk of the next turn. Keep recording between turns (hot mic) and the
+ * start of a command is never clipped by AudioRecord warm-up or the hop to the thread that
+ * starts the turn.
+ *
+ * With an {@link EchoSuppressor} set, our own playback is taken out of every chunk before
+ * anything else looks at it.
+ *
+ * With a {@link VoiceActivityDetector} set, leading silence of a turn isn't published, the turn
+ * closes itself after trailing silence, and in hands-free mode speech opens a turn without
+ * {@link #beginTurn(long)}.
+ */
+public class AudioCapture implements Runnable {
+    private static final String TAG = AudioCapture.class.getSimpleName();
+
+    /**
+     * Published after the last chunk of every turn. Don't release it.
+     */
+    public static final ByteBuffer END_OF_TURN = ByteBuffer.allocateDirect(0);
+
+    // How long the capture thread keeps trying to publish END_OF_TURN while stopping.
+    private static final long END_OF_TURN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Called on the capture thread when the voice activity detector opens or closes a turn.
+     */
+    public interface Listener {
+        /**
+         * Speech started while no turn was open (hands-free mode only). The turn is already
+         * open and publishing, the consumer should start reading it.
+         */
+        void onSpeechStart();
+
+        /**
+         * The open turn was closed after trailing silence.
+         */
+        void onSpeechEnd();
+    }
+
+    private enum State {
+        IDLE,
+        // A turn is open but nothing has been said yet.
+        ARMED,
+        PUBLISHING
+    }
+
+    private final AudioRecord mAudioRecord;
+    private final AudioBufferPool mBufferPool;
+    private final SpscRing<ByteBuffer> mChunks;
+    private final PreRollBuffer mPreRoll;
+    // Begin (true) and end (false) requests, in order, from the thread that controls turns.
+    private final SpscRing<Boolean> mTurnRequests = new SpscRing<>(16);
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile Thread mConsumer;
+    private EchoSuppressor mEchoSuppressor;
+    private VoiceActivityDetector mVad;
+    private boolean mHandsFree;
+    private Listener mListener;
+
+    // Only touched by the capture thread, kept across runs so stopping never leaks a buffer.
+    private State mState = State.IDLE;
+    private ByteBuffer mCurrentChunk;
+    private ByteBuffer mSpareChunk;
+    // Turns that were closed while the ring was full, their END_OF_TURN still has to go out.
+    private int mEndsOfTurnPending;
+    private boolean mTurnStartPending;
+
+    private volatile long mBeginRequestedAt;
+    private volatile int mOverrunCount;
+    private volatile int mTrimmedChunks;
+    private volatile long mTurnStartLatencyMillis = -1;
+    private volatile int mTurnStartPreRollMillis;
+
+    // Consumer side: turns whose chunks are dropped, along with their END_OF_TURN.
+    private int mTurnsToDiscard;
+
+    /**
+     * @param audioRecord the recorder to drain, it's started and stopped by this class
+     * @param chunkSize the number of bytes in every chunk
+     * @param ringCapacity how many chunks can wait for the consumer before they're dropped
+     * @param preRollBytes how much of the audio recorded before a turn to send with it
+     */
+    public AudioCapture(AudioRecord audioRecord, int chunkSize, int ringCapacity,
+                        int preRollBytes) {
+        mAudioRecord = audioRecord;
+        mChunks = new SpscRing<>(ringCapacity);
+        mPreRoll = new PreRollBuffer(preRollBytes);
+        // Extra buffers for the chunk being recorded, the chunk being consumed, a spare, and
+        // the pre-roll once it's published.
+        int preRollChunks = (preRollBytes + chunkSize - 1) / chunkSize;
+        mBufferPool = new AudioBufferPool(chunkSize, mChunks.capacity() + 3 + preRollChunks);
+    }
+
+    /**
+     * Turns on echo suppression. Call before {@link #start()}.
+     *
+     * @param echoSuppressor only used from the capture thread from now on, its reference has
+     *   to come from somewhere else
+     */
+    public void setEchoSuppressor(EchoSuppressor echoSuppressor) {
+        mEchoSuppressor = echoSuppressor;
+    }
+
+    /**
+     * Turns on voice activity detection. Call before {@link #start()}.
+     *
+     * @param vad the detector, only used from the capture thread from now on
+     * @param handsFree if true, speech opens a turn while recording even without
+     *   {@link #beginTurn(long)}
+     * @param listener told when the detector opens or closes a turn
+     */
+    public void setVoiceActivityDetector(VoiceActivityDetector vad, boolean handsFree,
+                                         Listener listener) {
+        mVad = vad;
+        mHandsFree = handsFree;
+        mListener = listener;
+    }
+
+    /**
+     * Starts recording on the capture thread. Does nothing if it's already running.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, "audioCapture");
+        mThread.start();
+    }
+
+    /**
+     * Stops recording and waits for the capture thread to finish its last read. An open turn is
+     * closed first; chunks that are already in the ring stay there for the consumer.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted while stopping capture", e);
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Opens a turn. Always call beginTurn and endTurn from the same thread.
+     *
+     * @param requestedAtMillis when the user asked for the turn, in
+     *   {@link android.os.SystemClock#elapsedRealtime()} time, for the turn start latency
+     */
+    public void beginTurn(long requestedAtMillis) {
+        mBeginRequestedAt = requestedAtMillis;
+        requestTurn(true);
+    }
+
+    /**
+     * Closes the open turn, if there is one, within one chunk.
+     */
+    public void endTurn() {
+        requestTurn(false);
+    }
+
+    private void requestTurn(boolean begin) {
+        while (!mTurnRequests.offer(begin)) {
+            // Only happens if the capture thread is stuck, give it a moment.
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Sets the thread that gets unparked whenever a new chunk is available.
+     */
+    public void setConsumer(Thread consumer) {
+        mConsumer = consumer;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return the oldest captured chunk or {@link #END_OF_TURN}, or null if there isn't one yet
+     */
+    public ByteBuffer poll() {
+        dropDiscarded();
+        return mTurnsToDiscard > 0 ? null : mChunks.poll();
+    }
+
+    /**
+     * Consumer side. Returns a chunk from {@link #poll()} to the pool.
+     */
+    public void release(ByteBuffer chunk) {
+        if (chunk != END_OF_TURN) {
+            mBufferPool.release(chunk);
+        }
+    }
+
+    /**
+     * Consumer side. Throws away the rest of the turn being consumed, up to and including its
+     * {@link #END_OF_TURN}. That marker may not be in the ring yet, the capture thread may not
+     * have seen {@link #endTurn()} or the ring may have been full, so whatever of the turn
+     * comes later is dropped by {@link #poll()} as it arrives. Chunks of the next turn are
+     * never touched, even if it has already started.
+     */
+    public void discardTurn() {
+        mTurnsToDiscard++;
+        dropDiscarded();
+    }
+
+    private void dropDiscarded() {
+        ByteBuffer chunk;
+        while (mTurnsToDiscard > 0 && (chunk = mChunks.poll()) != null) {
+            if (chunk == END_OF_TURN) {
+                mTurnsToDiscard--;
+            } else {
+                mBufferPool.release(chunk);
+            }
+        }
+    }
+
+    /**
+     * @return the number of chunks dropped because the consumer fell behind
+     */
+    public int getOverrunCount() {
+        return mOverrunCount;
+    }
+
+    /**
+     * @return the number of chunks of leading silence that were never published
+     */
+    public int getTrimmedChunks() {
+        return mTrimmedChunks;
+    }
+
+    /**
+     * @return the time from the last {@link #beginTurn(long)} request to its first audio being
+     *   published, or -1 if no turn has started yet
+     */
+    public long getTurnStartLatencyMillis() {
+        return mTurnStartLatencyMillis;
+    }
+
+    /**
+     * @return how much audio from before the last turn started was sent with it
+     */
+    public int getTurnStartPreRollMillis() {
+        return mTurnStartPreRollMillis;
+    }
+
+    /**
+     * @return the most chunks that have been waiting for the consumer at once
+     */
+    public int getHighWaterMark() {
+        return mChunks.getHighWaterMark();
+    }
+
+    public int getChunkSize() {
+        return mBufferPool.getBufferSize();
+    }
+
+    public int getSampleRate() {
+        return mAudioRecord.getSampleRate();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        mAudioRecord.startRecording();
+        if (mCurrentChunk == null) {
+            mCurrentChunk = acquireChunk();
+        }
+        while (mRunning) {
+            flushEndsOfTurn();
+            handleTurnRequests();
+            ByteBuffer chunk = mCurrentChunk;
+            chunk.clear();
+            int result = mAudioRecord.read(chunk, chunk.capacity(), AudioRecord.READ_BLOCKING);
+            if (result < 0) {
+                Log.e(TAG, "error reading from audio stream:" + result);
+                break;
+            }
+            chunk.limit(result);
+            if (mEchoSuppressor != null) {
+                mEchoSuppressor.process(chunk);
+            }
+            boolean wasSpeaking = mVad != null && mVad.isSpeaking();
+            boolean speaking = mVad == null || mVad.process(chunk);
+            switch (mState) {
+                case PUBLISHING:
+                    publishCurrent(chunk);
+                    if (wasSpeaking && !speaking) {
+                        closeTurn();
+                        if (mListener != null) {
+                            mListener.onSpeechEnd();
+                        }
+                    }
+                    break;
+                case ARMED:
+                case IDLE:
+                    boolean opensTurn = mState == State.ARMED || mHandsFree;
+                    // Hands-free waits for new speech, a requested turn takes ongoing speech too.
+                    if (opensTurn && speaking && (mState == State.ARMED || !wasSpeaking)) {
+                        boolean requested = mState == State.ARMED;
+                        mState = State.PUBLISHING;
+                        // The pre-roll also covers the detector's onset time.
+                        publishPreRoll();
+                        publishCurrent(chunk);
+                        if (!requested && mListener != null) {
+                            mListener.onSpeechStart();
+                        }
+                    } else {
+                        mPreRoll.write(chunk);
+                        if (mState == State.ARMED) {
+                            mTrimmedChunks++;
+                        }
+                    }
+                    break;
+            }
+        }
+        mRunning = false;
+        handleTurnRequests();
+        closeTurn();
+        // Stale by the time recording starts again.
+        mPreRoll.clear();
+        long deadline = System.nanoTime() + END_OF_TURN_TIMEOUT_NANOS;
+        while (!flushEndsOfTurn()) {
+            if (System.nanoTime() > deadline) {
+                // Still owed, a consumer discarding the turn is waiting for it.
+                Log.e(TAG, "consumer stopped reading, the turn closes when recording restarts");
+                break;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        mAudioRecord.stop();
+    }
+
+    private void handleTurnRequests() {
+        Boolean begin;
+        while ((begin = mTurnRequests.poll()) != null) {
+            if (begin && mState == State.IDLE) {
+                mTurnStartPending = true;
+                if (mVad == null) {
+                    mState = State.PUBLISHING;
+                    publishPreRoll();
+                } else {
+                    mState = State.ARMED;
+                }
+            } else if (!begin) {
+                closeTurn();
+            }
+        }
+    }
+
+    private void closeTurn() {
+        if (mState != State.IDLE) {
+            mState = State.IDLE;
+            if (!flushEndsOfTurn() || !publish(END_OF_TURN)) {
+                mEndsOfTurnPending++;
+            }
+            mTurnStartPending = false;
+            // Only audio from after this turn belongs in the next one.
+            mPreRoll.clear();
+        }
+    }
+
+    /**
+     * Publishes the chunk that was just recorded into and moves on to a fresh buffer.
+     */
+    private void publishCurrent(ByteBuffer chunk) {
+        if (publish(chunk)) {
+            mCurrentChunk = acquireChunk();
+        }
+    }
+
+    /**
+     * Publishes the pre-roll as whole chunks, oldest first.
+     */
+    private void publishPreRoll() {
+        mTurnStartPreRollMillis = mPreRoll.size() / 2 * 1000 / mAudioRecord.getSampleRate();
+        while (mPreRoll.size() > 0) {
+            ByteBuffer chunk = acquireChunk();
+            mPreRoll.read(chunk);
+            chunk.flip();
+            if (!publish(chunk)) {
+                // Only the consumer may hand buffers back to the pool, so keep this one.
+                mSpareChunk = chunk;
+                mPreRoll.clear();
+            }
+        }
+    }
+
+    private ByteBuffer acquireChunk() {
+        ByteBuffer chunk = mSpareChunk;
+        if (chunk == null) {
+            return mBufferPool.acquire();
+        }
+        mSpareChunk = null;
+        chunk.clear();
+        return chunk;
+    }
+
+    /**
+     * Publishes the END_OF_TURN markers {@link #closeTurn()} couldn't.
+     *
+     * @return true if none are pending any more
+     */
+    private boolean flushEndsOfTurn() {
+        while (mEndsOfTurnPending > 0 && publish(END_OF_TURN)) {
+            mEndsOfTurnPending--;
+        }
+        return mEndsOfTurnPending == 0;
+    }
+
+    private boolean publish(ByteBuffer chunk) {
+        // A turn's audio can't go out before the end of the turn before it, or the consumer
+        // would run the two together.
+        if (chunk != END_OF_TURN && !flushEndsOfTurn()) {
+            mOverrunCount++;
+            return false;
+        }
+        if (!mChunks.offer(chunk)) {
+            if (chunk != END_OF_TURN) {
+                mOverrunCount++;
+            }
+            return false;
+        }
+        if (mTurnStartPending && chunk != END_OF_TURN) {
+            mTurnStartPending = false;
+            mTurnStartLatencyMillis = SystemClock.elapsedRealtime() - mBeginRequestedAt;
+        }
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a compressed response stream back into 16-bit PCM for playback.
+ *
+ * The stream can be handed over in pieces of any size. A decoder works on one stream at a
+ * time, so only call it from the thread delivering the response.
+ */
+public interface AudioDecoder {
+    /**
+     * Receives decoded audio.
+     */
+    interface Listener {
+        /**
+         * @param pcm 16-bit PCM between its position and limit, owned by the listener
+         */
+        void onPcm(ByteBuffer pcm);
+    }
+
+    /**
+     * Decodes the next piece of the stream, between the position and limit of
+     * {@code encoded}. Audio comes out as soon as the decoder has it, not necessarily before
+     * this returns.
+     */
+    void decode(ByteBuffer encoded, Listener listener);
+
+    /**
+     * Ends the stream: everything still in the decoder comes out, and the next call to
+     * {@link #decode(ByteBuffer, Listener)} starts a new stream.
+     */
+    void endOfStream(Listener listener);
+
+    void release();
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ZeroCopyByteString;
+
+import java.nio.ByteBuffer;
+
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Helpers for putting microphone audio on the Assist request stream.
+ */
+public class AudioRequests {
+    private AudioRequests() {
+    }
+
+    /**
+     * Sends the first {@code length} bytes of {@code audioData} as an audio_in request.
+     *
+     * When the call is ready, gRPC serializes the message inside onNext, so the bytes are
+     * wrapped without a copy and the buffer can go back to its pool as soon as this returns.
+     * Before that (e.g. while the credentials are still being fetched) gRPC holds on to the
+     * message, so it gets its own copy instead.
+     *
+     * @return true if the bytes were sent without a copy
+     */
+    public static boolean sendAudio(StreamObserver<AssistRequest> requestObserver,
+                                    ByteBuffer audioData, int length) {
+        audioData.position(0);
+        audioData.limit(length);
+        boolean zeroCopy = requestObserver instanceof ClientCallStreamObserver &&
+                ((ClientCallStreamObserver<AssistRequest>) requestObserver).isReady();
+        ByteString audioIn = zeroCopy ?
+                ZeroCopyByteString.wrap(audioData) : ByteString.copyFrom(audioData);
+        requestObserver.onNext(AssistRequest.newBuilder()
+                .setAudioIn(audioIn)
+                .build());
+        return zeroCopy;
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AudioInConfig;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Sends the chunks of an {@link AudioCapture} on the Assist request stream from its own
+ * thread, so network calls never run on the thread that reads the microphone.
+ *
+ * Audio is only handed to gRPC while the call is ready. Otherwise it waits in a
+ * {@link PendingAudioQueue}, so a slow uplink fills a fixed size queue instead of gRPC's
+ * unbounded send buffer. Hook {@link #onReady()} up to the call's on-ready handler (see
+ * {@link io.grpc.stub.ClientResponseObserver#beforeStart}) so the sender wakes up as soon as
+ * the call can take more.
+ *
+ * How much audio goes into each message is decided by an {@link AdaptiveBatcher}: single
+ * chunks on a healthy link, bigger frames once the link backs up. Whatever has been batched is
+ * flushed as soon as the turn finishes, so batching never delays the end of the utterance.
+ *
+ * Each turn is sent in the encoding it was started with: raw LINEAR16 chunks, or a FLAC
+ * stream with every chunk encoded as it's batched, for roughly half the uplink bandwidth.
+ *
+ * Once {@link #start(StreamObserver, AudioInConfig.Encoding)} has been called the sender
+ * thread owns the request observer: it makes every onNext call, and the final onCompleted once
+ * it reads the capture's {@link AudioCapture#END_OF_TURN} marker.
+ */
+public class AudioStreamSender implements Runnable {
+    private static final String TAG = AudioStreamSender.class.getSimpleName();
+
+    // Upper bound on how long the sender sleeps if it somehow misses an unpark.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final AudioCapture mCapture;
+    private final AdaptiveBatcher mBatcher;
+    private final PendingAudioQueue mPending;
+    // Audio collected for the next message, only touched by the sender thread.
+    private final ByteBuffer mBatch;
+    private final FlacEncoder mFlacEncoder;
+
+    private Thread mThread;
+    private StreamObserver<AssistRequest> mRequestObserver;
+    private ClientCallStreamObserver<AssistRequest> mCallObserver;
+    private FlacEncoder mEncoder;
+    private volatile boolean mCancelled;
+    private Runnable mOnTurnFailed;
+
+    // Totals across turns, written by the sender thread.
+    private volatile int mFailedTurns;
+    private volatile long mBackpressureMillis;
+
+    // Per turn bookkeeping, only touched by the sender thread.
+    private int mSentMessages;
+    private int mZeroCopyMessages;
+    private long mBackpressureStart;
+    private long mNotReadySince;
+    private long mReadyWaitMillis;
+    private boolean mStreamHeaderPending;
+    // The FLAC stream header at the start of the batch, the server can't decode a thing
+    // without it, so the pending queue must never drop it.
+    private int mBatchPinnedBytes;
+    private long mCapturedBytes;
+    private long mEncodedBytes;
+
+    /**
+     * @param capture where the audio comes from
+     * @param batcher decides how much audio goes into each message
+     * @param pendingEntries how many request messages can wait for the call to become ready
+     * @param overflowPolicy what to do once the pending queue is full
+     */
+    public AudioStreamSender(AudioCapture capture, AdaptiveBatcher batcher, int pendingEntries,
+                             PendingAudioQueue.OverflowPolicy overflowPolicy) {
+        mCapture = capture;
+        mBatcher = batcher;
+        mFlacEncoder = new FlacEncoder(capture.getSampleRate(), capture.getChunkSize() / 2);
+        // Room for a full frame plus whatever FLAC adds to it in the worst case.
+        int frameBytes = FlacEncoder.STREAM_HEADER_BYTES + mFlacEncoder.getMaxEncodedBytes(
+                Math.max(batcher.getMaxFrameBytes(), capture.getChunkSize()));
+        mPending = new PendingAudioQueue(pendingEntries, frameBytes, overflowPolicy);
+        mBatch = ByteBuffer.allocateDirect(frameBytes);
+    }
+
+    /**
+     * Sets what to run (on the sender thread) when a turn is given up on because of the
+     * {@link PendingAudioQueue.OverflowPolicy#FAIL_TURN} policy.
+     */
+    public void setOnTurnFailed(Runnable onTurnFailed) {
+        mOnTurnFailed = onTurnFailed;
+    }
+
+    /**
+     * Starts sending the audio of the capture's next turn on a new request stream. The config
+     * request must already have been sent.
+     *
+     * @param encoding the audio in encoding from that config, LINEAR16 or FLAC
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void start(StreamObserver<AssistRequest> requestObserver,
+                                   AudioInConfig.Encoding encoding) {
+        if (encoding != AudioInConfig.Encoding.LINEAR16
+                && encoding != AudioInConfig.Encoding.FLAC) {
+            throw new IllegalArgumentException("unsupported audio in encoding: " + encoding);
+        }
+        awaitLastTurn();
+        mEncoder = encoding == AudioInConfig.Encoding.FLAC ? mFlacEncoder : null;
+        mBatcher.reset();
+        mPending.clear();
+        mBatch.clear();
+        mBatchPinnedBytes = 0;
+        mRequestObserver = requestObserver;
+        mCallObserver = requestObserver instanceof ClientCallStreamObserver ?
+                (ClientCallStreamObserver<AssistRequest>) requestObserver : null;
+        mCancelled = false;
+        mThread = new Thread(this, "audioSender");
+        mCapture.setConsumer(mThread);
+        mThread.start();
+    }
+
+    /**
+     * Stops sending right away without completing the request stream, e.g. when shutting
+     * down. The rest of the turn is thrown away, see {@link AudioCapture#discardTurn()}.
+     */
+    public void cancel() {
+        mCancelled = true;
+        wake();
+    }
+
+    /**
+     * Like {@link #cancel()}, but waits for the sender thread to finish, so the caller can
+     * use the request stream itself afterwards.
+     */
+    public synchronized void cancelTurn() {
+        mCancelled = true;
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+        }
+        awaitLastTurn();
+    }
+
+    /**
+     * Call from the request stream's on-ready handler.
+     */
+    public void onReady() {
+        wake();
+    }
+
+    public AdaptiveBatcher getBatcher() {
+        return mBatcher;
+    }
+
+    public PendingAudioQueue getPendingQueue() {
+        return mPending;
+    }
+
+    public int getFailedTurns() {
+        return mFailedTurns;
+    }
+
+    /**
+     * @return the total time audio has spent waiting for the call to become ready
+     */
+    public long getBackpressureMillis() {
+        return mBackpressureMillis;
+    }
+
+    private synchronized void wake() {
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    private void awaitLastTurn() {
+        if (mThread == null) {
+            return;
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted while waiting for the last turn", e);
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    private boolean isReady() {
+        boolean ready = mCallObserver == null || mCallObserver.isReady();
+        if (!ready && mNotReadySince == 0) {
+            mNotReadySince = SystemClock.elapsedRealtime();
+        } else if (ready && mNotReadySince != 0) {
+            mReadyWaitMillis += SystemClock.elapsedRealtime() - mNotReadySince;
+            mNotReadySince = 0;
+        }
+        return ready;
+    }
+
+    /**
+     * Hands one message worth of audio to gRPC.
+     */
+    private void send(ByteBuffer audioData) {
+        int length = audioData.limit();
+        if (AudioRequests.sendAudio(mRequestObserver, audioData, length)) {
+            mZeroCopyMessages++;
+        }
+        mSentMessages++;
+        mBatcher.onMessageSent(length, mPending.size(), mReadyWaitMillis);
+        mReadyWaitMillis = 0;
+    }
+
+    /**
+     * Sends the audio right away if the call is ready and nothing is queued ahead of it,
+     * otherwise copies it into the pending queue.
+     *
+     * @param pinnedBytes how much of the start of the audio the queue must never drop
+     * @return false if the pending queue overflowed and the turn should fail
+     */
+    private boolean sendOrQueue(ByteBuffer audioData, int pinnedBytes) {
+        if (mPending.isEmpty() && isReady()) {
+            send(audioData);
+            return true;
+        }
+        if (mBackpressureStart == 0) {
+            mBackpressureStart = SystemClock.elapsedRealtime();
+        }
+        audioData.position(0);
+        return mPending.add(audioData, pinnedBytes);
+    }
+
+    /**
+     * Sends or queues the batch if there's anything in it.
+     */
+    private boolean flushBatch() {
+        if (mBatch.position() == 0) {
+            return true;
+        }
+        mBatch.flip();
+        boolean queued = sendOrQueue(mBatch, mBatchPinnedBytes);
+        mBatch.clear();
+        mBatchPinnedBytes = 0;
+        return queued;
+    }
+
+    /**
+     * Adds a captured chunk to the batch, sending the batch once it's big enough.
+     */
+    private boolean batch(ByteBuffer chunk) {
+        mCapturedBytes += chunk.limit();
+        if (mEncoder != null) {
+            return encode(chunk);
+        }
+        int targetBytes = mBatcher.getTargetBytes();
+        if (mBatch.position() == 0 && chunk.limit() >= targetBytes) {
+            // Nothing to merge it with, so the chunk goes out as is without a copy.
+            return sendOrQueue(chunk, 0);
+        }
+        if (mBatch.remaining() < chunk.limit() && !flushBatch()) {
+            return false;
+        }
+        chunk.position(0);
+        mBatch.put(chunk);
+        if (mBatch.position() >= targetBytes) {
+            return flushBatch();
+        }
+        return true;
+    }
+
+    /**
+     * Encodes a captured chunk into the batch, sending the batch once it's big enough.
+     */
+    private boolean encode(ByteBuffer chunk) {
+        int maxBytes = mEncoder.getMaxEncodedBytes(chunk.limit());
+        if (mStreamHeaderPending) {
+            maxBytes += FlacEncoder.STREAM_HEADER_BYTES;
+        }
+        if (mBatch.remaining() < maxBytes && !flushBatch()) {
+            return false;
+        }
+        if (mStreamHeaderPending) {
+            mEncoder.writeStreamHeader(mBatch);
+            mBatchPinnedBytes = FlacEncoder.STREAM_HEADER_BYTES;
+            mEncodedBytes += FlacEncoder.STREAM_HEADER_BYTES;
+            mStreamHeaderPending = false;
+        }
+        chunk.position(0);
+        mEncodedBytes += mEncoder.encode(chunk, mBatch);
+        if (mBatch.position() >= mBatcher.getTargetBytes()) {
+            return flushBatch();
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        mSentMessages = 0;
+        mZeroCopyMessages = 0;
+        mBackpressureStart = 0;
+        mNotReadySince = 0;
+        mReadyWaitMillis = 0;
+        mStreamHeaderPending = true;
+        mCapturedBytes = 0;
+        mEncodedBytes = 0;
+        boolean failed = false;
+        boolean endOfTurn = false;
+        while (!mCancelled) {
+            while (!failed && !mPending.isEmpty() && isReady()) {
+                send(mPending.peek());
+                mPending.remove();
+            }
+            if (mPending.isEmpty() && mBackpressureStart != 0) {
+                mBackpressureMillis += SystemClock.elapsedRealtime() - mBackpressureStart;
+                mBackpressureStart = 0;
+            }
+
+            ByteBuffer chunk = mCapture.poll();
+            if (chunk == AudioCapture.END_OF_TURN) {
+                endOfTurn = true;
+                break;
+            }
+            if (chunk == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            // After a failure keep reading, and dropping, until the turn is over so the
+            // next turn starts with an empty ring.
+            if (!failed && !batch(chunk)) {
+                failed = true;
+                failTurn();
+            }
+            mCapture.release(chunk);
+        }
+        if (mBackpressureStart != 0) {
+            mBackpressureMillis += SystemClock.elapsedRealtime() - mBackpressureStart;
+        }
+        if (endOfTurn && !failed) {
+            if (flushBatch()) {
+                // The queue is bounded, so it's fine to let gRPC buffer the tail of the turn.
+                ByteBuffer entry;
+                while ((entry = mPending.peek()) != null) {
+                    send(entry);
+                    mPending.remove();
+                }
+                mRequestObserver.onCompleted();
+            } else {
+                failTurn();
+            }
+        } else if (mCancelled) {
+            // Not a blind clear: this turn's END_OF_TURN may still be on its way, and the
+            // next sender would take it for the end of its own turn.
+            mCapture.discardTurn();
+        }
+        Log.i(TAG, "sent " + mSentMessages + " audio messages (" + mZeroCopyMessages +
+                " without a copy), frame size now " + mBatcher.getTargetFrameMillis() + " ms" +
+                ", average message: " + mBatcher.getAverageMessageBytes() + " bytes" +
+                ", capture overruns: " + mCapture.getOverrunCount() +
+                ", trimmed silence: " + mCapture.getTrimmedChunks() + " chunks" +
+                ", ring high-water mark: " + mCapture.getHighWaterMark() +
+                ", pending high-water mark: " + mPending.getHighWaterMark() +
+                ", dropped: " + mPending.getDroppedBytes() + " bytes" +
+                ", coalesced chunks: " + mPending.getCoalescedChunks() +
+                ", backpressure: " + mBackpressureMillis + " ms");
+        if (mEncoder != null && mCapturedBytes > 0) {
+            Log.i(TAG, "FLAC sent " + mEncodedBytes + " bytes for " + mCapturedBytes +
+                    " bytes of PCM (" + mEncodedBytes * 100 / mCapturedBytes + "%)");
+        }
+        mRequestObserver = null;
+        mCallObserver = null;
+    }
+
+    private void failTurn() {
+        Log.w(TAG, "uplink too slow, failing the turn");
+        mFailedTurns++;
+        mPending.clear();
+        mBatch.clear();
+        mBatchPinnedBytes = 0;
+        mRequestObserver.onError(Status.RESOURCE_EXHAUSTED
+                .withDescription("pending audio queue overflowed")
+                .asRuntimeException());
+        if (mOnTurnFailed != null) {
+            mOnTurnFailed.run();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps warm output tracks around so playback doesn't have to create a native track every time.
+ *
+ * Tracks are pooled per format and attributes. {@link #lease} hands out an idle one, or makes
+ * a new one if there isn't any, and every leased track has to come back through
+ * {@link #recycle}. The pool owns all of its tracks: nothing else should release them.
+ * {@link #release()} releases the idle tracks right away, but a leased track may still be
+ * playing, so it's only released once it's recycled. Recycle every lease after releasing the
+ * pool too, or those tracks leak.
+ */
+public class AudioTrackPool {
+    private static final String TAG = AudioTrackPool.class.getSimpleName();
+
+    /**
+     * Makes a new track, ready to play, with everything set that stays the same between leases.
+     */
+    public interface TrackFactory {
+        AudioTrack createTrack(AudioFormat format, AudioAttributes attributes);
+    }
+
+    private static class Key {
+        final int mEncoding;
+        final int mSampleRate;
+        final int mChannelMask;
+        final AudioAttributes mAttributes;
+
+        Key(AudioFormat format, AudioAttributes attributes) {
+            mEncoding = format.getEncoding();
+            mSampleRate = format.getSampleRate();
+            mChannelMask = format.getChannelMask();
+            mAttributes = attributes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mEncoding == other.mEncoding && mSampleRate == other.mSampleRate
+                    && mChannelMask == other.mChannelMask
+                    && Objects.equals(mAttributes, other.mAttributes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mEncoding, mSampleRate, mChannelMask, mAttributes);
+        }
+    }
+
+    private final TrackFactory mFactory;
+    private final int mMaxIdlePerKey;
+    private final Map<Key, ArrayDeque<AudioTrack>> mIdle = new HashMap<>();
+    private final Map<AudioTrack, Key> mLeased = new IdentityHashMap<>();
+    private boolean mReleased;
+
+    private long mCreated;
+    private long mReused;
+    private long mDestroyed;
+    private long mCreateNanos;
+    private long mReuseNanos;
+
+    /**
+     * @param maxIdlePerKey how many idle tracks to keep for each format and attributes
+     */
+    public AudioTrackPool(TrackFactory factory, int maxIdlePerKey) {
+        mFactory = factory;
+        mMaxIdlePerKey = maxIdlePerKey;
+    }
+
+    /**
+     * Makes sure an idle track is ready for the format, so the first lease doesn't pay for it.
+     */
+    public void prewarm(AudioFormat format, AudioAttributes attributes) {
+        AudioTrack track = lease(format, attributes);
+        if (track != null) {
+            recycle(track);
+        }
+    }
+
+    /**
+     * @param attributes null for the default attributes
+     * @return a stopped track for the format, or null if the pool has been released
+     */
+    public synchronized AudioTrack lease(AudioFormat format, AudioAttributes attributes) {
+        if (mReleased) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        Key key = new Key(format, attributes);
+        ArrayDeque<AudioTrack> idle = mIdle.get(key);
+        AudioTrack track = idle == null ? null : idle.pollFirst();
+        if (track != null) {
+            mReused++;
+            mReuseNanos += System.nanoTime() - startNanos;
+        } else {
+            track = mFactory.createTrack(format, attributes);
+            mCreated++;
+            mCreateNanos += System.nanoTime() - startNanos;
+            Log.i(TAG, "created a track for " + format.getSampleRate() + " Hz, "
+                    + getLiveTracks() + " live");
+        }
+        mLeased.put(track, key);
+        return track;
+    }
+
+    /**
+     * Takes a leased track back. The track is stopped, so it still plays out what was written
+     * to it, and then waits for the next lease.
+     */
+    public synchronized void recycle(AudioTrack track) {
+        Key key = mLeased.remove(track);
+        if (key == null) {
+            throw new IllegalArgumentException("not a leased track: " + track);
+        }
+        ArrayDeque<AudioTrack> idle = mIdle.get(key);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            mIdle.put(key, idle);
+        }
+        if (mReleased || idle.size() >= mMaxIdlePerKey
+                || track.getState() != AudioTrack.STATE_INITIALIZED) {
+            destroy(track);
+            return;
+        }
+        try {
+            track.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "couldn't stop a recycled track, dropping it", e);
+            destroy(track);
+            return;
+        }
+        idle.addLast(track);
+    }
+
+    /**
+     * Releases every idle track now and every leased one as it's recycled.
+     */
+    public synchronized void release() {
+        mReleased = true;
+        for (ArrayDeque<AudioTrack> idle : mIdle.values()) {
+            AudioTrack track;
+            while ((track = idle.pollFirst()) != null) {
+                destroy(track);
+            }
+        }
+        Log.i(TAG, "released, " + mCreated + " tracks created for " + (mCreated + mReused)
+                + " leases, " + mLeased.size() + " still leased");
+    }
+
+    private void destroy(AudioTrack track) {
+        track.release();
+        mDestroyed++;
+    }
+
+    /**
+     * @return tracks created and not released yet, leased or idle
+     */
+    public synchronized long getLiveTracks() {
+        return mCreated - mDestroyed;
+    }
+
+    public synchronized int getLeasedTracks() {
+        return mLeased.size();
+    }
+
+    public synchronized long getCreatedTracks() {
+        return mCreated;
+    }
+
+    public synchronized long getReusedLeases() {
+        return mReused;
+    }
+
+    /**
+     * @return how long a lease that had to create a track took on average
+     */
+    public synchronized double getAverageCreateMillis() {
+        return mCreated == 0 ? 0 : mCreateNanos / 1e6 / mCreated;
+    }
+
+    /**
+     * @return how long a lease that got an idle track took on average
+     */
+    public synchronized double getAverageReuseMillis() {
+        return mReused == 0 ? 0 : mReuseNanos / 1e6 / mReused;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.things.contrib.driver.voicehat.Max98357A;
+
+import java.io.IOException;
+
+/**
+ * Powers the Voice HAT amplifier for as long as something is playing, and a little longer.
+ *
+ * Every player calls {@link #acquire()} when it starts and {@link #release()} when it's done.
+ * The first acquire switches the amp on. Once nothing holds it, the amp stays on for the
+ * hold-off and is then shut down, so clips that follow each other closely don't pay for a GPIO
+ * write, and the amp's wake up, every time.
+ *
+ * Players call in from their audio threads, so the trigger is only ever written on the manager's
+ * own thread, and never with the lock held: acquire and release just post the change, and a slow
+ * peripheral write can't stall a buffer write.
+ */
+public class DacPowerManager {
+    private static final String TAG = DacPowerManager.class.getSimpleName();
+
+    private final Max98357A mDac;
+    private final long mHoldOffMillis;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final long mCreatedAt = SystemClock.elapsedRealtime();
+
+    // Guarded by this.
+    private int mHolders;
+    private boolean mOn;
+    private boolean mClosed;
+    private long mTransitions;
+    private long mWakeupsSaved;
+
+    private final Runnable mPowerOn = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DacPowerManager.this) {
+                if (mHolders == 0 || mOn || mClosed) {
+                    return;
+                }
+            }
+            setOn(true);
+        }
+    };
+
+    private final Runnable mShutdown = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DacPowerManager.this) {
+                if (mHolders > 0 || !mOn || mClosed) {
+                    return;
+                }
+            }
+            setOn(false);
+        }
+    };
+
+    private final Runnable mClose = new Runnable() {
+        @Override
+        public void run() {
+            boolean on;
+            synchronized (DacPowerManager.this) {
+                on = mOn;
+            }
+            if (on) {
+                setOn(false);
+            }
+            try {
+                mDac.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing voice hat trigger", e);
+            }
+        }
+    };
+
+    /**
+     * @param dac the amp's trigger, which the manager owns from now on
+     * @param holdOffMillis how long the amp stays on after the last player is done
+     */
+    public DacPowerManager(Max98357A dac, long holdOffMillis) {
+        mDac = dac;
+        mHoldOffMillis = holdOffMillis;
+        mThread = new HandlerThread("dacPower", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        try {
+            mDac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
+        } catch (IOException e) {
+            Log.e(TAG, "unable to modify dac trigger", e);
+        }
+    }
+
+    /**
+     * Makes sure the amp is on until the matching {@link #release()}. If it's off, it's switched
+     * on by the manager's thread shortly after this returns.
+     */
+    public synchronized void acquire() {
+        if (mClosed) {
+            return;
+        }
+        mHolders++;
+        if (mHolders > 1) {
+            return;
+        }
+        mHandler.removeCallbacks(mShutdown);
+        if (mOn) {
+            mWakeupsSaved++;
+        }
+        // Posted even if the amp is on: a shutdown may already be past its check, and this
+        // runs after it.
+        mHandler.post(mPowerOn);
+    }
+
+    /**
+     * Lets the amp go. It's shut down once nothing has held it for the hold-off.
+     */
+    public synchronized void release() {
+        if (mClosed || mHolders == 0) {
+            return;
+        }
+        mHolders--;
+        if (mHolders == 0) {
+            mHandler.postDelayed(mShutdown, mHoldOffMillis);
+        }
+    }
+
+    /**
+     * Shuts the amp down without waiting for the hold-off, and closes the trigger, once any
+     * change already posted has been written.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mHandler.removeCallbacks(mShutdown);
+            Log.i(TAG, "closing, " + mTransitions + " transitions (" +
+                    String.format("%.1f", getTransitionsPerHour()) + "/h), " + mWakeupsSaved +
+                    " wake ups saved by the hold-off");
+        }
+        mHandler.post(mClose);
+        mThread.quitSafely();
+    }
+
+    public synchronized long getTransitions() {
+        return mTransitions;
+    }
+
+    public synchronized double getTransitionsPerHour() {
+        long upMillis = Math.max(1, SystemClock.elapsedRealtime() - mCreatedAt);
+        return mTransitions * 3600000.0 / upMillis;
+    }
+
+    /**
+     * @return how many times a player started while the amp was still on from the last one
+     */
+    public synchronized long getWakeupsSaved() {
+        return mWakeupsSaved;
+    }
+
+    // Only ever called on mThread, so writes can't cross, and without the lock.
+    private void setOn(boolean on) {
+        try {
+            mDac.setSdMode(on ? Max98357A.SD_MODE_LEFT : Max98357A.SD_MODE_SHUTDOWN);
+        } catch (IOException e) {
+            Log.e(TAG, "unable to modify dac trigger", e);
+            return;
+        }
+        long transitions;
+        synchronized (this) {
+            mOn = on;
+            transitions = ++mTransitions;
+        }
+        Log.d(TAG, "dac " + (on ? "on" : "off") + ", " + transitions + " transitions");
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells when a streaming track has played everything written to it.
+ *
+ * The caller counts the frames it writes, and the watcher polls the playback head on its own
+ * thread until it gets there. Polls are scheduled for when the audio should run out, so
+ * completions are late by a couple of milliseconds rather than a whole poll period. A track
+ * whose head stops moving before it gets there (paused, released, or its last frames stuck
+ * behind the start threshold) is completed anyway after a while and counted as missed.
+ */
+public class DrainWatcher {
+    private static final String TAG = DrainWatcher.class.getSimpleName();
+
+    // Polls closer together than this don't buy anything.
+    private static final long MIN_POLL_MILLIS = 2;
+
+    private static class Drain {
+        final AudioTrack mTrack;
+        final int mTargetFrames;
+        final int mSampleRate;
+        final CompletableFuture<Void> mFuture = new CompletableFuture<>();
+        int mLastHead;
+        long mLastMovedAt;
+        long mExpectedAt;
+
+        Drain(AudioTrack track, long targetFrames, long now) {
+            mTrack = track;
+            // The head is an int that wraps, compare in ints.
+            mTargetFrames = (int) targetFrames;
+            mSampleRate = track.getSampleRate();
+            mLastHead = track.getPlaybackHeadPosition();
+            mLastMovedAt = now;
+            mExpectedAt = now;
+        }
+    }
+
+    private final long mPollMillis;
+    private final long mStallMillis;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Guarded by this.
+    private final ArrayList<Drain> mDrains = new ArrayList<>();
+    private boolean mPollScheduled;
+    private boolean mReleased;
+    private long mCompleted;
+    private long mMissed;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    /**
+     * @param pollMillis the longest the watcher waits between looks at the playback heads
+     * @param stallMillis how long a head can stand still before its drain is given up on
+     */
+    public DrainWatcher(long pollMillis, long stallMillis) {
+        mPollMillis = pollMillis;
+        mStallMillis = stallMillis;
+        mThread = new HandlerThread("drainWatcher", Process.THREAD_PRIORITY_AUDIO);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * @param framesWritten how many frames have been written to the track since its head was
+     *   last reset, by a stop or a flush
+     * @return completes once the track has played all of them
+     */
+    public synchronized CompletableFuture<Void> watch(AudioTrack track, long framesWritten) {
+        Drain drain = new Drain(track, framesWritten, System.nanoTime());
+        if (mReleased) {
+            drain.mFuture.complete(null);
+            return drain.mFuture;
+        }
+        mDrains.add(drain);
+        if (!mPollScheduled) {
+            mPollScheduled = true;
+            mHandler.post(mPoll);
+        }
+        return drain.mFuture;
+    }
+
+    /**
+     * Completes every drain still being watched and stops the watcher's thread.
+     */
+    public void release() {
+        ArrayList<Drain> pending;
+        synchronized (this) {
+            mReleased = true;
+            mHandler.removeCallbacks(mPoll);
+            pending = new ArrayList<>(mDrains);
+            mDrains.clear();
+            Log.i(TAG, "released, " + mCompleted + " drains completed, " + mMissed
+                    + " missed, average latency " + String.format("%.2f", getAverageLatencyMillis())
+                    + " ms");
+        }
+        for (Drain drain : pending) {
+            drain.mFuture.complete(null);
+        }
+        mThread.quitSafely();
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    /**
+     * @return drains that were completed because the head stopped short of the last frame
+     */
+    public synchronized long getMissedCount() {
+        return mMissed;
+    }
+
+    /**
+     * @return how long after the audio should have run out a drain completed, on average
+     */
+    public synchronized double getAverageLatencyMillis() {
+        long completed = mCompleted - mMissed;
+        return completed <= 0 ? 0 : mTotalLatencyNanos / 1e6 / completed;
+    }
+
+    public synchronized double getMaxLatencyMillis() {
+        return mMaxLatencyNanos / 1e6;
+    }
+
+    private void poll() {
+        ArrayList<Drain> done = null;
+        long nextPollMillis = mPollMillis;
+        long now = System.nanoTime();
+        synchronized (this) {
+            mPollScheduled = false;
+            for (int i = mDrains.size() - 1; i >= 0; i--) {
+                Drain drain = mDrains.get(i);
+                boolean released = drain.mTrack.getState() != AudioTrack.STATE_INITIALIZED;
+                int head = released ? drain.mLastHead : drain.mTrack.getPlaybackHeadPosition();
+                int remaining = drain.mTargetFrames - head;
+                if (head != drain.mLastHead) {
+                    drain.mLastHead = head;
+                    drain.mLastMovedAt = now;
+                }
+                if (remaining <= 0) {
+                    long latency = Math.max(0, now - drain.mExpectedAt);
+                    mTotalLatencyNanos += latency;
+                    mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+                } else if (released || now - drain.mLastMovedAt
+                        > TimeUnit.MILLISECONDS.toNanos(mStallMillis)) {
+                    mMissed++;
+                    Log.w(TAG, "gave up on a drain " + remaining + " frames short");
+                } else {
+                    long remainingMillis = remaining * 1000L / drain.mSampleRate;
+                    drain.mExpectedAt = now + TimeUnit.MILLISECONDS.toNanos(remainingMillis);
+                    nextPollMillis = Math.min(nextPollMillis, remainingMillis);
+                    continue;
+                }
+                mCompleted++;
+                mDrains.remove(i);
+                if (done == null) {
+                    done = new ArrayList<>();
+                }
+                done.add(drain);
+            }
+            if (!mDrains.isEmpty() && !mReleased) {
+                mPollScheduled = true;
+                mHandler.postDelayed(mPoll, Math.max(MIN_POLL_MILLIS, nextPollMillis));
+            }
+        }
+        if (done != null) {
+            // Outside the lock, whatever is chained on may well start another drain.
+            for (Drain drain : done) {
+                drain.mFuture.complete(null);
+            }
+        }
+    }
+}
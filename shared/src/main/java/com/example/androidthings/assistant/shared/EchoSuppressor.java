@@ -0,0 +1,435 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Takes our own playback out of the microphone signal, so the mic can stay open while the
+ * speaker plays.
+ *
+ * Whatever goes to the output track is handed over with {@link #offerReference}. Recorded
+ * audio goes through {@link #process(ByteBuffer)} in fixed-size blocks. A normalized LMS
+ * filter learns the path from the speaker to the mic and subtracts its estimate of the echo.
+ * The filter only covers a short window. The bulk of the delay, from the track's buffer
+ * through the speaker and the room, is found by correlating the energy of the mic and
+ * reference blocks. Adaptation is held off while the user talks over the playback, so
+ * speech doesn't teach the filter to cancel itself. Talk over is only recognized at the end
+ * of a block, so what the filter learned during that block is undone too.
+ *
+ * Both sides have to be 16-bit mono PCM at the same sample rate. Nothing is allocated per
+ * block, and nothing here needs Android, so recorded fixtures can be run through it on a
+ * plain JVM.
+ */
+public class EchoSuppressor {
+    // Adaptation speed of the filter, between 0 and 2.
+    private static final float STEP_SIZE = 0.2f;
+    // Keeps the step sane when the reference is quiet, about -50 dBFS per tap.
+    private static final float REFERENCE_FLOOR = 100f * 100f;
+    // Reference blocks quieter than this (RMS) don't teach the filter anything, and mic blocks
+    // this quiet aren't anyone talking.
+    private static final float ACTIVE_RMS = 100f;
+    // How fast the delay estimator's correlations follow the signal.
+    private static final float DELAY_SMOOTHING = 0.05f;
+    // How fast the envelope means used by the delay estimator move.
+    private static final float ENVELOPE_MEAN_SMOOTHING = 0.02f;
+    // How many blocks in a row a new delay has to win before the filter moves to it.
+    private static final int DELAY_CONFIRM_BLOCKS = 8;
+    // How much better than the current delay a new one has to look. Keeps the filter from
+    // being thrown away when the echo sits between two blocks.
+    private static final float DELAY_SWITCH_MARGIN = 1.25f;
+    // Once the filter takes off at least this much, the mic being this much louder than the
+    // echo estimate means someone is talking over the playback. A filter that takes off less
+    // than about 10 dB can still fall short of the echo by that much, and would stop learning
+    // right there, thinking the echo was someone talking.
+    private static final float CONVERGED_ATTENUATION_DB = 10f;
+    private static final float DOUBLE_TALK_RATIO = 2f;
+    private static final int DOUBLE_TALK_HANGOVER_MILLIS = 100;
+    // Talk over that goes on longer than this is more likely the echo path having changed,
+    // with the volume say, so the filter starts learning again.
+    private static final int DOUBLE_TALK_GIVE_UP_MILLIS = 2000;
+    // How fast the attenuation that decides whether the filter has converged follows the
+    // blocks it's learned from. It's smoothed in dB, so the odd block of talk over that slips
+    // through can't drag it down on its own.
+    private static final float ATTENUATION_SMOOTHING = 0.1f;
+
+    private final int mSampleRate;
+    private final int mBlockSamples;
+    private final int mTaps;
+    private final int mMaxDelayBlocks;
+    private final int mDoubleTalkHangoverBlocks;
+    private final int mDoubleTalkGiveUpBlocks;
+
+    // Reference ring, written by the playback thread. Samples up to mReferenceWritten are in,
+    // and the ones up to mReferenceClaimed may be going in right now.
+    private final short[] mReference;
+    private final int mReferenceMask;
+    private volatile long mReferenceWritten;
+    private volatile long mReferenceClaimed;
+
+    // Everything else only belongs to the capture thread.
+    private long mReferenceRead;
+    // Filter weights, oldest reference sample first.
+    private final float[] mWeights;
+    // The weights before the block being adapted to, in case it turns out to be talk over.
+    private final float[] mBlockStartWeights;
+    // The filter's window, every sample stored twice so the window is always contiguous.
+    private final float[] mWindow;
+    private int mWindowPosition;
+    private double mWindowEnergy;
+    private final float[] mMicBlock;
+    private final float[] mReferenceBlock;
+
+    // Delay estimation on block envelopes.
+    private final float[] mReferenceEnvelopes;
+    private final float[] mCross;
+    private final float[] mReferencePower;
+    private long mBlocks;
+    private float mMicEnvelopeMean;
+    private float mReferenceEnvelopeMean;
+    private int mDelayBlocks;
+    private int mCandidateDelayBlocks;
+    private int mCandidateBlocks;
+    // Blocks since the reference was last loud enough to learn from.
+    private int mQuietBlocks;
+
+    private int mDoubleTalkBlocks;
+    // Blocks of talk over in a row.
+    private int mDoubleTalkRun;
+    // Smoothed over the blocks learned from.
+    private float mRecentAttenuationDb;
+
+    private volatile double mMicEnergy;
+    private volatile double mResidualEnergy;
+    private volatile long mProcessedBlocks;
+    private volatile long mDoubleTalkBlockCount;
+    private volatile long mTotalBlockNanos;
+    private volatile long mMaxBlockNanos;
+    private volatile int mDelayMillis;
+
+    /**
+     * @param sampleRate the sample rate of both the mic and the reference
+     * @param blockSamples how many samples are processed at a time
+     * @param filterMillis how much of the echo's tail the filter covers
+     * @param maxDelayMillis the longest delay from writing the reference to hearing it
+     */
+    public EchoSuppressor(int sampleRate, int blockSamples, int filterMillis,
+            int maxDelayMillis) {
+        mSampleRate = sampleRate;
+        mBlockSamples = blockSamples;
+        mTaps = Math.max(1, sampleRate * filterMillis / 1000);
+        mMaxDelayBlocks = Math.max(1, sampleRate * maxDelayMillis / 1000 / blockSamples);
+        mDoubleTalkHangoverBlocks = Math.max(1,
+                sampleRate * DOUBLE_TALK_HANGOVER_MILLIS / 1000 / blockSamples);
+        mDoubleTalkGiveUpBlocks = Math.max(1,
+                sampleRate * DOUBLE_TALK_GIVE_UP_MILLIS / 1000 / blockSamples);
+        int capacity = Integer.highestOneBit(
+                (mMaxDelayBlocks + 4) * blockSamples + mTaps) << 2;
+        mReference = new short[capacity];
+        mReferenceMask = capacity - 1;
+        mWeights = new float[mTaps];
+        mBlockStartWeights = new float[mTaps];
+        mWindow = new float[mTaps * 2];
+        mMicBlock = new float[blockSamples];
+        mReferenceBlock = new float[blockSamples];
+        mReferenceEnvelopes = new float[mMaxDelayBlocks + 1];
+        mCross = new float[mMaxDelayBlocks + 1];
+        mReferencePower = new float[mMaxDelayBlocks + 1];
+    }
+
+    /**
+     * Playback side. Call with exactly what was just written to the output track.
+     */
+    public void offerReference(short[] pcm, int offset, int count) {
+        long written = mReferenceWritten;
+        if (count > mReference.length) {
+            offset += count - mReference.length;
+            written += count - mReference.length;
+            count = mReference.length;
+        }
+        // Claimed before any slot is overwritten, so the capture thread can tell whether what
+        // it copied was still there.
+        mReferenceClaimed = written + count;
+        for (int i = 0; i < count; i++) {
+            mReference[(int) ((written + i) & mReferenceMask)] = pcm[offset + i];
+        }
+        mReferenceWritten = written + count;
+    }
+
+    /**
+     * Capture side. Takes the echo out of the little-endian PCM between the buffer's
+     * position and limit, in place. The position isn't changed.
+     */
+    public void process(ByteBuffer pcm) {
+        int start = pcm.position();
+        int samples = (pcm.limit() - start) / 2;
+        for (int done = 0; done < samples; done += mBlockSamples) {
+            processBlock(pcm, start + done * 2, Math.min(mBlockSamples, samples - done));
+        }
+    }
+
+    private void processBlock(ByteBuffer pcm, int offset, int count) {
+        long startNanos = System.nanoTime();
+        float[] mic = mMicBlock;
+        float[] reference = mReferenceBlock;
+        float micSquares = 0;
+        for (int i = 0; i < count; i++) {
+            int index = offset + i * 2;
+            mic[i] = (short) ((pcm.get(index) & 0xff) | (pcm.get(index + 1) << 8));
+            micSquares += mic[i] * mic[i];
+        }
+        float referenceSquares = readReference(count);
+        float micRms = (float) Math.sqrt(micSquares / count);
+        float referenceRms = (float) Math.sqrt(referenceSquares / count);
+        boolean referenceActive = referenceRms >= ACTIVE_RMS;
+        mQuietBlocks = referenceActive ? 0 : mQuietBlocks + 1;
+        estimateDelay(micRms, referenceRms);
+
+        boolean adapt = referenceActive && mDoubleTalkBlocks == 0;
+        float[] weights = mWeights;
+        float[] window = mWindow;
+        int taps = mTaps;
+        if (adapt) {
+            System.arraycopy(weights, 0, mBlockStartWeights, 0, taps);
+        }
+        float echoSquares = 0;
+        float residualSquares = 0;
+        for (int i = 0; i < count; i++) {
+            float x = reference[i];
+            int position = mWindowPosition;
+            float oldest = window[position];
+            mWindowEnergy += x * x - oldest * oldest;
+            if (mWindowEnergy < 0) {
+                mWindowEnergy = 0;
+            }
+            window[position] = x;
+            window[position + taps] = x;
+            position = position + 1 == taps ? 0 : position + 1;
+            mWindowPosition = position;
+            // The window is now window[position .. position + taps), oldest first.
+            float echo = 0;
+            if (mWindowEnergy > 0) {
+                for (int k = 0; k < taps; k++) {
+                    echo += weights[k] * window[position + k];
+                }
+            }
+            float residual = mic[i] - echo;
+            echoSquares += echo * echo;
+            residualSquares += residual * residual;
+            if (adapt) {
+                float step = STEP_SIZE * residual
+                        / (float) (mWindowEnergy + taps * REFERENCE_FLOOR);
+                for (int k = 0; k < taps; k++) {
+                    weights[k] += step * window[position + k];
+                }
+            }
+            int out = Math.round(residual);
+            out = out > Short.MAX_VALUE ? Short.MAX_VALUE
+                    : out < Short.MIN_VALUE ? Short.MIN_VALUE : out;
+            int index = offset + i * 2;
+            pcm.put(index, (byte) out);
+            pcm.put(index + 1, (byte) (out >> 8));
+        }
+
+        // Decides for this block and the next ones whether the user is talking over the
+        // playback. That includes the gaps in the playback, while its echo could still be
+        // coming: the filter doesn't learn there anyway, but the delay estimator would.
+        if (mDoubleTalkBlocks > 0) {
+            mDoubleTalkBlocks--;
+        }
+        boolean echoPossible = mQuietBlocks < mReferenceEnvelopes.length;
+        if (echoPossible && isConverged() && micRms >= ACTIVE_RMS
+                && micSquares > DOUBLE_TALK_RATIO * echoSquares) {
+            if (adapt) {
+                System.arraycopy(mBlockStartWeights, 0, weights, 0, taps);
+            }
+            mDoubleTalkBlocks = mDoubleTalkHangoverBlocks;
+            mDoubleTalkBlockCount++;
+            if (++mDoubleTalkRun >= mDoubleTalkGiveUpBlocks) {
+                mDoubleTalkRun = 0;
+                mDoubleTalkBlocks = 0;
+                forgetAttenuation();
+            }
+        } else {
+            mDoubleTalkRun = 0;
+            if (referenceActive && residualSquares > 0) {
+                float attenuationDb = (float) (10 * Math.log10(micSquares / residualSquares));
+                mRecentAttenuationDb +=
+                        (attenuationDb - mRecentAttenuationDb) * ATTENUATION_SMOOTHING;
+                mMicEnergy += micSquares;
+                mResidualEnergy += residualSquares;
+            }
+        }
+
+        long blockNanos = System.nanoTime() - startNanos;
+        mTotalBlockNanos += blockNanos;
+        if (blockNanos > mMaxBlockNanos) {
+            mMaxBlockNanos = blockNanos;
+        }
+        mProcessedBlocks++;
+    }
+
+    private boolean isConverged() {
+        return mRecentAttenuationDb >= CONVERGED_ATTENUATION_DB;
+    }
+
+    private void forgetAttenuation() {
+        mRecentAttenuationDb = 0;
+    }
+
+    /**
+     * Fills mReferenceBlock with the reference that lines up with the mic block, delayed by
+     * the estimated delay less a quarter of the filter, so the filter sees a little of what
+     * came before the echo too.
+     *
+     * The playback thread keeps writing while this copies. The read position is never more
+     * than half the ring behind the newest sample, and the ring is sized so the longest delay
+     * is still four blocks and the filter's length short of the other half. So the playback
+     * has to write that much, about 64 ms with the app's settings, during one copy to
+     * overwrite anything being read. That's checked after the copy, and if it ever happens
+     * the block is treated as silence rather than filtered with whatever replaced it.
+     *
+     * @return the sum of the squares of the block's samples
+     */
+    private float readReference(int count) {
+        long written = mReferenceWritten;
+        // Both sides run off the same clock, so the read position follows the mic. It's held
+        // back while nothing is being played, and jumps ahead if the capture fell behind.
+        if (mReferenceRead + count > written
+                || written - mReferenceRead > mReference.length / 2) {
+            mReferenceRead = Math.max(0, written - count);
+        }
+        long delay = (long) mDelayBlocks * mBlockSamples - mTaps / 4;
+        long from = mReferenceRead - Math.max(0, delay);
+        long oldest = written - mReference.length;
+        float squares = 0;
+        for (int i = 0; i < count; i++) {
+            long index = from + i;
+            float sample = index < 0 || index < oldest || index >= written ? 0
+                    : mReference[(int) (index & mReferenceMask)];
+            mReferenceBlock[i] = sample;
+        }
+        // The delay estimator looks at the undelayed reference.
+        for (int i = 0; i < count; i++) {
+            long index = mReferenceRead + i;
+            float sample = index < oldest ? 0 : mReference[(int) (index & mReferenceMask)];
+            squares += sample * sample;
+        }
+        if (mReferenceClaimed - mReference.length > from) {
+            Arrays.fill(mReferenceBlock, 0, count, 0);
+            squares = 0;
+        }
+        mReferenceRead += count;
+        return squares;
+    }
+
+    /**
+     * Correlates the mic's envelope with the reference's at every delay up to the maximum,
+     * and moves the filter to the best one once it has won for a while.
+     */
+    private void estimateDelay(float micRms, float referenceRms) {
+        int slots = mReferenceEnvelopes.length;
+        mReferenceEnvelopes[(int) (mBlocks % slots)] = referenceRms - mReferenceEnvelopeMean;
+        mBlocks++;
+        if (mQuietBlocks >= slots) {
+            // Nothing that could be echoed at any delay, the mic has nothing to say about it.
+            return;
+        }
+        if (mDoubleTalkBlocks > 0) {
+            // The talker's envelope would only pull the delay somewhere random, and a new
+            // delay throws the filter away.
+            return;
+        }
+        mMicEnvelopeMean += (micRms - mMicEnvelopeMean) * ENVELOPE_MEAN_SMOOTHING;
+        mReferenceEnvelopeMean +=
+                (referenceRms - mReferenceEnvelopeMean) * ENVELOPE_MEAN_SMOOTHING;
+        float mic = micRms - mMicEnvelopeMean;
+        int best = mDelayBlocks;
+        float bestScore = 0;
+        float currentScore = 0;
+        long newest = mBlocks - 1;
+        for (int delay = 0; delay < slots && delay <= newest; delay++) {
+            float reference = mReferenceEnvelopes[(int) ((newest - delay) % slots)];
+            mCross[delay] += (mic * reference - mCross[delay]) * DELAY_SMOOTHING;
+            mReferencePower[delay] +=
+                    (reference * reference - mReferencePower[delay]) * DELAY_SMOOTHING;
+            if (mReferencePower[delay] > 0) {
+                float score = mCross[delay] / (float) Math.sqrt(mReferencePower[delay]);
+                if (delay == mDelayBlocks) {
+                    currentScore = score;
+                }
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = delay;
+                }
+            }
+        }
+        if (best == mDelayBlocks || bestScore < currentScore * DELAY_SWITCH_MARGIN) {
+            mCandidateBlocks = 0;
+            return;
+        }
+        if (best != mCandidateDelayBlocks) {
+            mCandidateDelayBlocks = best;
+            mCandidateBlocks = 0;
+        }
+        if (++mCandidateBlocks >= DELAY_CONFIRM_BLOCKS) {
+            // What the filter learned was for the old alignment.
+            mDelayBlocks = best;
+            mCandidateBlocks = 0;
+            Arrays.fill(mWeights, 0);
+            forgetAttenuation();
+            mDelayMillis = best * mBlockSamples * 1000 / mSampleRate;
+        }
+    }
+
+    /**
+     * @return how much quieter the mic is after the filter while the speaker plays and the
+     *   user doesn't talk over it, in dB
+     */
+    public double getAttenuationDb() {
+        double residual = mResidualEnergy;
+        return residual > 0 ? 10 * Math.log10(mMicEnergy / residual) : 0;
+    }
+
+    /**
+     * @return the delay from writing the reference to hearing it, as estimated right now
+     */
+    public int getDelayMillis() {
+        return mDelayMillis;
+    }
+
+    public long getProcessedBlocks() {
+        return mProcessedBlocks;
+    }
+
+    /**
+     * @return how many blocks were spent not adapting because of double talk
+     */
+    public long getDoubleTalkBlocks() {
+        return mDoubleTalkBlockCount;
+    }
+
+    public double getAverageBlockMicros() {
+        long blocks = mProcessedBlocks;
+        return blocks > 0 ? mTotalBlockNanos / 1000.0 / blocks : 0;
+    }
+
+    public long getMaxBlockMicros() {
+        return mMaxBlockNanos / 1000;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A streaming FLAC encoder for 16-bit mono PCM, small enough to run on every capture chunk.
+ *
+ * Write {@link #writeStreamHeader(ByteBuffer)} once at the start of every request stream, then
+ * {@link #encode(ByteBuffer, ByteBuffer)} each chunk. Every chunk becomes a self-contained,
+ * variable block size frame, so the output can be cut into request messages anywhere between
+ * frames. Each frame uses whichever of the constant, verbatim and fixed predictor (order 0 to 4)
+ * subframes comes out smallest, with Rice coded residuals, which is where most of the savings
+ * on speech come from. LPC isn't used; it would cost far more CPU for a few percent.
+ *
+ * Nothing is allocated after construction. Only use an encoder from one thread.
+ */
+public class FlacEncoder {
+    // "fLaC" and a STREAMINFO block.
+    public static final int STREAM_HEADER_BYTES = 4 + 4 + 34;
+    // Worst case frame header, subframe header, padding and CRC-16.
+    private static final int MAX_FRAME_OVERHEAD_BYTES = 16 + 1 + 1 + 2;
+    private static final int MIN_BLOCK_SAMPLES = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 4;
+    private static final int MAX_RICE_PARAMETER = 14;
+    private static final int BITS_PER_SAMPLE = 16;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mMaxBlockSamples;
+    private final int[] mSamples;
+    // Residuals of every fixed predictor order, folded to unsigned.
+    private final int[][] mResiduals;
+    private final long[] mPartitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private final int[] mRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final int[] mBestRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+
+    private ByteBuffer mOut;
+    private long mBits;
+    private int mBitCount;
+    private long mSampleNumber;
+
+    /**
+     * @param sampleRate the sample rate of the PCM
+     * @param maxBlockSamples the most samples that go into one frame, longer input is split
+     */
+    public FlacEncoder(int sampleRate, int maxBlockSamples) {
+        if (maxBlockSamples < MIN_BLOCK_SAMPLES || maxBlockSamples > 65535) {
+            throw new IllegalArgumentException("bad block size: " + maxBlockSamples);
+        }
+        mSampleRate = sampleRate;
+        mMaxBlockSamples = maxBlockSamples;
+        mSamples = new int[maxBlockSamples];
+        mResiduals = new int[MAX_FIXED_ORDER + 1][maxBlockSamples];
+    }
+
+    /**
+     * @return the most bytes {@link #encode(ByteBuffer, ByteBuffer)} can write for the given
+     *   amount of PCM
+     */
+    public int getMaxEncodedBytes(int pcmBytes) {
+        int frames = Math.max(1, (pcmBytes / 2 + mMaxBlockSamples - 1) / mMaxBlockSamples);
+        return pcmBytes + frames * MAX_FRAME_OVERHEAD_BYTES;
+    }
+
+    /**
+     * Starts a new stream: writes the "fLaC" marker and STREAMINFO block to {@code out} and
+     * numbers frames from zero again.
+     */
+    public void writeStreamHeader(ByteBuffer out) {
+        mSampleNumber = 0;
+        begin(out);
+        writeBits(0x664c6143, 32);
+        // Last metadata block, type 0 (STREAMINFO), 34 bytes long.
+        writeBits(0x80, 8);
+        writeBits(34, 24);
+        writeBits(MIN_BLOCK_SAMPLES, 16);
+        writeBits(mMaxBlockSamples, 16);
+        // Frame sizes unknown.
+        writeBits(0, 24);
+        writeBits(0, 24);
+        writeBits(mSampleRate, 20);
+        writeBits(0, 3);
+        writeBits(BITS_PER_SAMPLE - 1, 5);
+        // Total samples (36 bits) and MD5 unknown, it's a live stream.
+        writeBits(0, 32);
+        writeBits(0, 4);
+        for (int i = 0; i < 4; i++) {
+            writeBits(0, 32);
+        }
+        end();
+    }
+
+    /**
+     * Encodes the little-endian 16-bit PCM between the position and limit of {@code pcm} into
+     * {@code out}, which needs {@link #getMaxEncodedBytes(int)} bytes remaining. The position
+     * of {@code pcm} isn't changed.
+     *
+     * @return the number of bytes written
+     */
+    public int encode(ByteBuffer pcm, ByteBuffer out) {
+        int start = out.position();
+        int offset = pcm.position();
+        int samples = (pcm.limit() - offset) / 2;
+        while (samples > 0) {
+            int blockSamples = Math.min(samples, mMaxBlockSamples);
+            for (int i = 0; i < blockSamples; i++) {
+                int lo = pcm.get(offset + 2 * i) & 0xff;
+                int hi = pcm.get(offset + 2 * i + 1);
+                mSamples[i] = (hi << 8) | lo;
+            }
+            encodeFrame(blockSamples, out);
+            offset += 2 * blockSamples;
+            samples -= blockSamples;
+        }
+        return out.position() - start;
+    }
+
+    private void encodeFrame(int blockSamples, ByteBuffer out) {
+        int frameStart = out.position();
+        begin(out);
+        // Sync code with the variable block size bit, block size as a 16-bit value at the end
+        // of the header, sample rate from STREAMINFO, mono, 16-bit samples.
+        writeBits(0xfff9, 16);
+        writeBits(0x7, 4);
+        writeBits(0x0, 4);
+        writeBits(0x0, 4);
+        writeBits(0x4, 3);
+        writeBits(0, 1);
+        writeCodedNumber(mSampleNumber);
+        writeBits(blockSamples - 1, 16);
+        flushBits();
+        out.put((byte) crc8(out, frameStart, out.position()));
+
+        writeSubframe(blockSamples);
+        // Zero pad to a byte boundary.
+        if (mBitCount > 0) {
+            writeBits(0, 8 - mBitCount);
+        }
+        flushBits();
+        int crc = crc16(out, frameStart, out.position());
+        out.put((byte) (crc >> 8));
+        out.put((byte) crc);
+        end();
+        mSampleNumber += blockSamples;
+    }
+
+    private void writeSubframe(int blockSamples) {
+        boolean constant = true;
+        for (int i = 1; i < blockSamples && constant; i++) {
+            constant = mSamples[i] == mSamples[0];
+        }
+        if (constant) {
+            writeBits(0x00, 8);
+            writeBits(mSamples[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        int verbatimBits = blockSamples * BITS_PER_SAMPLE;
+        int bestOrder = -1;
+        int bestPartitionOrder = 0;
+        long bestBits = verbatimBits;
+        int maxOrder = Math.min(MAX_FIXED_ORDER, blockSamples - 1);
+        for (int order = 0; order <= maxOrder; order++) {
+            computeResiduals(order, blockSamples);
+            for (int partitionOrder = 0; partitionOrder <= MAX_PARTITION_ORDER;
+                    partitionOrder++) {
+                int partitions = 1 << partitionOrder;
+                if (blockSamples % partitions != 0 || blockSamples / partitions <= order) {
+                    break;
+                }
+                long bits = order * BITS_PER_SAMPLE
+                        + residualBits(order, blockSamples, partitionOrder);
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    bestOrder = order;
+                    bestPartitionOrder = partitionOrder;
+                    System.arraycopy(mRiceParameters, 0, mBestRiceParameters, 0, partitions);
+                }
+            }
+        }
+
+        if (bestOrder < 0) {
+            writeBits(0x02, 8);
+            for (int i = 0; i < blockSamples; i++) {
+                writeBits(mSamples[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+        writeBits((0x08 | bestOrder) << 1, 8);
+        for (int i = 0; i < bestOrder; i++) {
+            writeBits(mSamples[i], BITS_PER_SAMPLE);
+        }
+        int[] residuals = mResiduals[bestOrder];
+        int partitions = 1 << bestPartitionOrder;
+        int partitionSamples = blockSamples / partitions;
+        // Rice coding with 4-bit parameters.
+        writeBits(0, 2);
+        writeBits(bestPartitionOrder, 4);
+        int i = bestOrder;
+        for (int p = 0; p < partitions; p++) {
+            int k = mBestRiceParameters[p];
+            writeBits(k, 4);
+            int end = (p + 1) * partitionSamples;
+            for (; i < end; i++) {
+                int folded = residuals[i];
+                int quotient = folded >>> k;
+                // Unary quotient: that many zeros, then a one.
+                while (quotient >= 32) {
+                    writeBits(0, 32);
+                    quotient -= 32;
+                }
+                writeBits(1, quotient + 1);
+                if (k > 0) {
+                    writeBits(folded & ((1 << k) - 1), k);
+                }
+            }
+        }
+    }
+
+    private void computeResiduals(int order, int blockSamples) {
+        int[] s = mSamples;
+        int[] r = mResiduals[order];
+        for (int i = order; i < blockSamples; i++) {
+            int residual;
+            switch (order) {
+                case 0:
+                    residual = s[i];
+                    break;
+                case 1:
+                    residual = s[i] - s[i - 1];
+                    break;
+                case 2:
+                    residual = s[i] - 2 * s[i - 1] + s[i - 2];
+                    break;
+                case 3:
+                    residual = s[i] - 3 * s[i - 1] + 3 * s[i - 2] - s[i - 3];
+                    break;
+                default:
+                    residual = s[i] - 4 * s[i - 1] + 6 * s[i - 2] - 4 * s[i - 3] + s[i - 4];
+                    break;
+            }
+            r[i] = (residual << 1) ^ (residual >> 31);
+        }
+    }
+
+    /**
+     * Picks a Rice parameter for every partition into {@link #mRiceParameters}.
+     *
+     * @return the size of the coded residual in bits
+     */
+    private long residualBits(int order, int blockSamples, int partitionOrder) {
+        int[] residuals = mResiduals[order];
+        int partitions = 1 << partitionOrder;
+        int partitionSamples = blockSamples / partitions;
+        long bits = 2 + 4;
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * partitionSamples;
+            int count = end - i;
+            long sum = 0;
+            for (; i < end; i++) {
+                sum += residuals[i];
+            }
+            mPartitionSums[p] = sum;
+            // Estimate: every value costs k + 1 bits plus its quotient.
+            long best = Long.MAX_VALUE;
+            for (int k = 0; k <= MAX_RICE_PARAMETER; k++) {
+                long estimate = (long) count * (k + 1) + (sum >> k);
+                if (estimate < best) {
+                    best = estimate;
+                    mRiceParameters[p] = k;
+                }
+            }
+            bits += 4 + best;
+        }
+        return bits;
+    }
+
+    private void writeCodedNumber(long value) {
+        // FLAC's extended UTF-8 style coding of the frame's first sample number.
+        if (value < 0x80) {
+            writeBits((int) value, 8);
+            return;
+        }
+        int extraBytes = 1;
+        while (extraBytes < 6 && value >= (1L << (5 * extraBytes + 6))) {
+            extraBytes++;
+        }
+        int firstBits = 6 - extraBytes;
+        int prefix = (0xff00 >> (extraBytes + 1)) & 0xff;
+        writeBits(prefix | (int) (value >>> (6 * extraBytes)) & ((1 << firstBits) - 1), 8);
+        for (int i = extraBytes - 1; i >= 0; i--) {
+            writeBits(0x80 | (int) (value >>> (6 * i)) & 0x3f, 8);
+        }
+    }
+
+    private void begin(ByteBuffer out) {
+        mOut = out;
+        mBits = 0;
+        mBitCount = 0;
+    }
+
+    private void end() {
+        mOut = null;
+    }
+
+    /**
+     * Appends the low {@code count} bits of {@code value}, at most 32.
+     */
+    private void writeBits(int value, int count) {
+        mBits = (mBits << count) | (value & (0xffffffffL >>> (32 - count)));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            mBitCount -= 8;
+            mOut.put((byte) (mBits >>> mBitCount));
+        }
+    }
+
+    private void flushBits() {
+        // Only called on byte boundaries.
+        mBits = 0;
+    }
+
+    private static int crc8(ByteBuffer buffer, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = CRC8_TABLE[(crc ^ buffer.get(i)) & 0xff];
+        }
+        return crc;
+    }
+
+    private static int crc16(ByteBuffer buffer, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ buffer.get(i)) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+}
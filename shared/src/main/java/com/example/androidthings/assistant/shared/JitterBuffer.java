@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds response audio between the response observer and the output track, and decides how
+ * much of it to build up before playback starts.
+ *
+ * For every chunk it measures how far behind real time it arrived, counting from the first
+ * chunk of the response: that's how much prebuffer the response needed not to run dry. The
+ * target depth follows the worst lateness seen per response (rising right away, falling back a
+ * quarter of the way per response) and grows further on every track underrun, always kept
+ * between the minimum and maximum depth. So a steady link plays with the minimum delay and a
+ * bursty one buffers just enough.
+ *
+ * With a {@link SpillFile} set, audio past a threshold is copied into the file instead of being
+ * held on the heap, so a long response (a news briefing, a podcast) can arrive much faster than
+ * it plays without the heap growing with it.
+ *
+ * {@link #offer(ByteBuffer)}, {@link #endResponse()} and {@link #abortResponse()} are called
+ * from the thread delivering the response, {@link #poll()} and {@link #onUnderrun(int, boolean)}
+ * from the player thread.
+ */
+public class JitterBuffer {
+    /**
+     * Returned by {@link #poll()} after the last chunk of every response.
+     */
+    public static final ByteBuffer END_OF_RESPONSE = ByteBuffer.allocate(0);
+
+    /**
+     * Returned by {@link #poll()} once everything queued before an {@link #abortResponse()} has
+     * been thrown away.
+     */
+    public static final ByteBuffer RESPONSE_ABORTED = ByteBuffer.allocate(0);
+
+    // How much the target depth grows on an underrun.
+    private static final int UNDERRUN_STEP_MILLIS = 40;
+
+    private final int mBytesPerSecond;
+    private final int mMinDepthMillis;
+    private final int mMaxDepthMillis;
+    private final Queue<ByteBuffer> mChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mQueuedBytes = new AtomicInteger();
+    private final AtomicInteger mQueuedResponseEnds = new AtomicInteger();
+    private final AtomicInteger mQueuedAborts = new AtomicInteger();
+    // Bytes of audio in mChunks that are on the heap rather than in the spill file.
+    private final AtomicInteger mHeapBytes = new AtomicInteger();
+    // The spill file's slices in mChunks, in the same order.
+    private final Queue<ByteBuffer> mSpilledChunks = new ConcurrentLinkedQueue<>();
+
+    private SpillFile mSpillFile;
+    private int mSpillThresholdBytes;
+    // Only touched by the delivering thread.
+    private final Queue<ByteBuffer> mNewSlices = new ArrayDeque<>(2);
+
+    private volatile boolean mWaitForWholeResponse;
+    private volatile int mTargetDepthMillis;
+    // Smoothed worst lateness per response, guarded by this.
+    private float mLatenessEstimateMillis;
+
+    // Only touched by the delivering thread.
+    private long mReferenceArrival;
+    private long mMediaMillisSinceReference;
+    private long mLastArrival;
+    private long mPeakLatenessMillis;
+    private float mSmoothedIntervalMillis;
+    private volatile float mIntervalVariance;
+
+    // Only touched by the player thread.
+    private boolean mBuffering = true;
+    private ByteBuffer mLastSpilledChunk;
+
+    // Set by the player thread when the track ran dry waiting for audio.
+    private volatile boolean mStarved;
+
+    private volatile int mUnderruns;
+    private volatile int mLateChunks;
+    private volatile int mRebuffers;
+    private volatile int mMaxQueuedMillis;
+
+    /**
+     * @param sampleRate the sample rate of the responses, which are 16-bit mono PCM
+     * @param minDepthMillis the least audio to build up before playing
+     * @param maxDepthMillis the most audio to build up before playing
+     */
+    public JitterBuffer(int sampleRate, int minDepthMillis, int maxDepthMillis) {
+        mBytesPerSecond = sampleRate * 2;
+        mMinDepthMillis = minDepthMillis;
+        mMaxDepthMillis = Math.max(minDepthMillis, maxDepthMillis);
+        mTargetDepthMillis = minDepthMillis;
+        mLatenessEstimateMillis = minDepthMillis;
+    }
+
+    /**
+     * Holds every response back until it has arrived completely, which is how responses used
+     * to be played. Only useful to compare against.
+     */
+    public void setWaitForWholeResponse(boolean waitForWholeResponse) {
+        mWaitForWholeResponse = waitForWholeResponse;
+    }
+
+    /**
+     * Keeps at most {@code thresholdBytes} of queued audio on the heap, anything more goes into
+     * {@code spillFile} while it has room. Call before the first response.
+     */
+    public void setSpillFile(SpillFile spillFile, int thresholdBytes) {
+        mSpillFile = spillFile;
+        mSpillThresholdBytes = thresholdBytes;
+    }
+
+    /**
+     * Queues a chunk of response audio, between its position and limit.
+     */
+    public void offer(ByteBuffer audioData) {
+        long now = SystemClock.elapsedRealtime();
+        int length = audioData.remaining();
+        int millis = (int) ((long) length * 1000 / mBytesPerSecond);
+        if (mLastArrival == 0) {
+            mReferenceArrival = now;
+            mMediaMillisSinceReference = 0;
+            mPeakLatenessMillis = 0;
+        } else {
+            long interval = now - mLastArrival;
+            float deviation = interval - mSmoothedIntervalMillis;
+            mSmoothedIntervalMillis += deviation / 16f;
+            mIntervalVariance += (deviation * deviation - mIntervalVariance) / 16f;
+            long lateness = now - mReferenceArrival - mMediaMillisSinceReference;
+            if (lateness > mPeakLatenessMillis) {
+                mPeakLatenessMillis = lateness;
+            }
+        }
+        if (mStarved) {
+            mStarved = false;
+            mLateChunks++;
+            // Playback had to wait for this chunk, so count lateness from here on.
+            mReferenceArrival = now;
+            mMediaMillisSinceReference = 0;
+        }
+        mLastArrival = now;
+        mMediaMillisSinceReference += millis;
+        int queued = mQueuedBytes.addAndGet(length);
+        if (mSpillFile != null && mHeapBytes.get() + length > mSpillThresholdBytes
+                && mSpillFile.append(audioData, mNewSlices)) {
+            // The player tells spilled chunks apart by finding them at the head of
+            // mSpilledChunks, so they have to be there first.
+            ByteBuffer slice;
+            while ((slice = mNewSlices.poll()) != null) {
+                mSpilledChunks.add(slice);
+                mChunks.add(slice);
+            }
+        } else {
+            mHeapBytes.addAndGet(length);
+            mChunks.add(audioData);
+        }
+        int queuedMillis = (int) ((long) queued * 1000 / mBytesPerSecond);
+        if (queuedMillis > mMaxQueuedMillis) {
+            mMaxQueuedMillis = queuedMillis;
+        }
+    }
+
+    /**
+     * Marks the end of the response, complete or not.
+     */
+    public void endResponse() {
+        if (mLastArrival != 0) {
+            adjustTarget(mPeakLatenessMillis, false);
+        }
+        mLastArrival = 0;
+        mQueuedResponseEnds.incrementAndGet();
+        mChunks.add(END_OF_RESPONSE);
+    }
+
+    /**
+     * Drops the response in flight, played or not. The player throws away everything queued so
+     * far on its next {@link #poll()}, while the next response can already be offered: it's
+     * queued behind the drop and starts measuring its lateness afresh.
+     */
+    public void abortResponse() {
+        resetArrivals();
+        // Queued before it's counted, so the player always finds it.
+        mChunks.add(RESPONSE_ABORTED);
+        mQueuedAborts.incrementAndGet();
+    }
+
+    /**
+     * @return the next chunk to play, {@link #END_OF_RESPONSE}, {@link #RESPONSE_ABORTED}, or
+     *   null while there's nothing to play or the buffer is still filling up to its target
+     *   depth. The chunk is only valid until the next call.
+     */
+    public ByteBuffer poll() {
+        if (mLastSpilledChunk != null) {
+            // Played by now, its space in the file can be reused.
+            mSpillFile.release(mLastSpilledChunk);
+            mLastSpilledChunk = null;
+        }
+        if (mQueuedAborts.get() > 0) {
+            dropAborted();
+            return RESPONSE_ABORTED;
+        }
+        if (mBuffering) {
+            boolean full = !mWaitForWholeResponse && mQueuedBytes.get()
+                    >= (long) mTargetDepthMillis * mBytesPerSecond / 1000;
+            if (!full && mQueuedResponseEnds.get() == 0) {
+                return null;
+            }
+            mBuffering = false;
+        }
+        ByteBuffer chunk = mChunks.poll();
+        if (chunk == END_OF_RESPONSE) {
+            mQueuedResponseEnds.decrementAndGet();
+            // The next response builds up its own prebuffer.
+            mBuffering = true;
+        } else if (chunk != null && unqueue(chunk)) {
+            mLastSpilledChunk = chunk;
+        }
+        return chunk;
+    }
+
+    // Throws away everything up to the last abort, on the player thread.
+    private void dropAborted() {
+        ByteBuffer chunk;
+        while (mQueuedAborts.get() > 0 && (chunk = mChunks.poll()) != null) {
+            if (chunk == RESPONSE_ABORTED) {
+                mQueuedAborts.decrementAndGet();
+            } else if (chunk == END_OF_RESPONSE) {
+                mQueuedResponseEnds.decrementAndGet();
+            } else if (unqueue(chunk)) {
+                mSpillFile.release(chunk);
+            }
+        }
+        mBuffering = true;
+    }
+
+    /**
+     * Takes a chunk just polled off the queue out of the counts.
+     *
+     * @return true if it's a slice of the spill file, to be released once it's done with
+     */
+    private boolean unqueue(ByteBuffer chunk) {
+        mQueuedBytes.addAndGet(-chunk.remaining());
+        if (chunk == mSpilledChunks.peek()) {
+            mSpilledChunks.poll();
+            return true;
+        }
+        mHeapBytes.addAndGet(-chunk.remaining());
+        return false;
+    }
+
+    /**
+     * Call from the player thread when the track reports new underruns.
+     *
+     * @param count how many underruns since the last call
+     * @param waitingForAudio true if there was nothing queued to play, as opposed to the
+     *   player itself not keeping up
+     */
+    public void onUnderrun(int count, boolean waitingForAudio) {
+        mUnderruns += count;
+        adjustTarget(mTargetDepthMillis + UNDERRUN_STEP_MILLIS, true);
+        if (waitingForAudio && mQueuedResponseEnds.get() == 0) {
+            // Build back up to the new target instead of stuttering chunk by chunk.
+            mStarved = true;
+            mBuffering = true;
+            mRebuffers++;
+        }
+    }
+
+    /**
+     * Throws away everything queued. Only call while nothing is being offered or polled, to drop
+     * a response while the next one may be arriving use {@link #abortResponse()}.
+     */
+    public void clear() {
+        resetArrivals();
+        mChunks.clear();
+        mQueuedBytes.set(0);
+        mQueuedResponseEnds.set(0);
+        mQueuedAborts.set(0);
+        mHeapBytes.set(0);
+        mSpilledChunks.clear();
+        mLastSpilledChunk = null;
+        if (mSpillFile != null) {
+            mSpillFile.releaseAll();
+        }
+        mBuffering = true;
+    }
+
+    // The response in flight is gone, whatever arrives next starts a new one.
+    private void resetArrivals() {
+        mLastArrival = 0;
+        mReferenceArrival = 0;
+        mMediaMillisSinceReference = 0;
+        mPeakLatenessMillis = 0;
+        mStarved = false;
+    }
+
+    private synchronized void adjustTarget(long millis, boolean raiseOnly) {
+        if (millis > mLatenessEstimateMillis) {
+            mLatenessEstimateMillis = millis;
+        } else if (!raiseOnly) {
+            mLatenessEstimateMillis += (millis - mLatenessEstimateMillis) / 4f;
+        }
+        mTargetDepthMillis = Math.max(mMinDepthMillis,
+                Math.min(mMaxDepthMillis, Math.round(mLatenessEstimateMillis)));
+    }
+
+    /**
+     * @return how much audio is queued and not yet handed to the track
+     */
+    public int getQueuedMillis() {
+        return (int) ((long) mQueuedBytes.get() * 1000 / mBytesPerSecond);
+    }
+
+    /**
+     * @return how much of the queued audio is on the heap
+     */
+    public int getHeapQueuedBytes() {
+        return mHeapBytes.get();
+    }
+
+    public int getMaxQueuedMillis() {
+        return mMaxQueuedMillis;
+    }
+
+    public int getTargetDepthMillis() {
+        return mTargetDepthMillis;
+    }
+
+    /**
+     * @return the standard deviation of the time between chunk arrivals
+     */
+    public double getInterArrivalJitterMillis() {
+        return Math.sqrt(mIntervalVariance);
+    }
+
+    public int getUnderruns() {
+        return mUnderruns;
+    }
+
+    /**
+     * @return how many chunks arrived after playback had already run dry waiting for them
+     */
+    public int getLateChunks() {
+        return mLateChunks;
+    }
+
+    public int getRebuffers() {
+        return mRebuffers;
+    }
+}
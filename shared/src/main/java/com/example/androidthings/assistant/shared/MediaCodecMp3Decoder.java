@@ -0,0 +1,329 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes MP3 responses with the platform's MediaCodec decoder, in synchronous mode on the
+ * calling thread. The stream is cut into whole frames by a {@link Mp3FrameParser} first, since
+ * that's what the codec expects in every input buffer.
+ *
+ * The decoder has to come out at the player's rate: stereo is mixed down to mono, but nothing is
+ * resampled. If the codec can't be created or comes out at the wrong rate, the decoder stops
+ * decoding and {@link #hasFailed()} says so, so the caller can ask for LINEAR16 instead. Check
+ * {@link #isAvailable()} before asking for MP3 in the first place.
+ *
+ * Per stream it logs how long the first PCM took to come out and how much CPU the decoding
+ * cost per second of audio, to weigh against receiving LINEAR16.
+ */
+public class MediaCodecMp3Decoder implements AudioDecoder, Mp3FrameParser.Listener {
+    private static final String TAG = MediaCodecMp3Decoder.class.getSimpleName();
+
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    // How many timeouts in a row before giving up on the codec, e.g. a full input queue or a
+    // missing end of stream.
+    private static final int MAX_DEQUEUE_ATTEMPTS = 50;
+
+    private final Mp3FrameParser mParser = new Mp3FrameParser();
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final int mPlaybackSampleRate;
+
+    private MediaCodec mCodec;
+    private int mSampleRate;
+    private int mChannelCount;
+    // What the codec actually puts out, which is what counts.
+    private int mOutputChannelCount;
+    private volatile boolean mFailed;
+    // Only set while decoding.
+    private Listener mListener;
+
+    // Per stream bookkeeping.
+    private boolean mStreamStarted;
+    private long mPresentationTimeUs;
+    private long mStreamStartNanos;
+    private long mFirstPcmNanos;
+    private long mCpuNanos;
+    private long mEncodedBytes;
+    private long mPcmBytes;
+
+    private volatile long mFirstPcmLatencyMillis = -1;
+    private volatile long mCpuMillisPerAudioSecond = -1;
+
+    /**
+     * @param playbackSampleRate the rate of the player the PCM goes to, which is mono
+     */
+    public MediaCodecMp3Decoder(int playbackSampleRate) {
+        mPlaybackSampleRate = playbackSampleRate;
+    }
+
+    /**
+     * @return true if the platform has an MP3 decoder for mono audio at the given rate
+     */
+    public static boolean isAvailable(int sampleRate) {
+        MediaFormat format =
+                MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_MPEG, sampleRate, 1);
+        return new MediaCodecList(MediaCodecList.REGULAR_CODECS)
+                .findDecoderForFormat(format) != null;
+    }
+
+    /**
+     * @return true once the decoder has given up, everything it's handed from then on is
+     *   dropped
+     */
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    @Override
+    public void decode(ByteBuffer encoded, Listener listener) {
+        long cpuStart = Debug.threadCpuTimeNanos();
+        if (!mStreamStarted) {
+            mStreamStarted = true;
+            mStreamStartNanos = SystemClock.elapsedRealtimeNanos();
+            mFirstPcmNanos = 0;
+            mCpuNanos = 0;
+            mEncodedBytes = 0;
+            mPcmBytes = 0;
+            mPresentationTimeUs = 0;
+        }
+        mEncodedBytes += encoded.remaining();
+        if (mFailed) {
+            encoded.position(encoded.limit());
+            return;
+        }
+        mListener = listener;
+        mParser.push(encoded, this);
+        if (mCodec != null) {
+            drain(0);
+        }
+        mListener = null;
+        mCpuNanos += Debug.threadCpuTimeNanos() - cpuStart;
+    }
+
+    @Override
+    public void endOfStream(Listener listener) {
+        if (!mStreamStarted) {
+            return;
+        }
+        long cpuStart = Debug.threadCpuTimeNanos();
+        mListener = listener;
+        if (mCodec != null) {
+            int index = dequeueInputBuffer();
+            if (index >= 0) {
+                mCodec.queueInputBuffer(index, 0, 0, mPresentationTimeUs,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                int attempts = 0;
+                while (!drain(DEQUEUE_TIMEOUT_US) && ++attempts < MAX_DEQUEUE_ATTEMPTS) {
+                    // Waiting for the last of the audio.
+                }
+            }
+        }
+        if (mCodec != null) {
+            // Ready for the next stream.
+            mCodec.flush();
+        }
+        mListener = null;
+        mParser.reset();
+        mStreamStarted = false;
+        mCpuNanos += Debug.threadCpuTimeNanos() - cpuStart;
+
+        long audioMillis = mPcmBytes / 2 * 1000 / mPlaybackSampleRate;
+        mFirstPcmLatencyMillis = mFirstPcmNanos == 0 ? -1 :
+                (mFirstPcmNanos - mStreamStartNanos) / 1000000;
+        mCpuMillisPerAudioSecond = audioMillis == 0 ? -1 : mCpuNanos / audioMillis / 1000;
+        Log.i(TAG, "decoded " + audioMillis + " ms of audio from " + mEncodedBytes + " bytes (" +
+                (mPcmBytes == 0 ? 0 : mEncodedBytes * 100 / mPcmBytes) + "% of PCM)" +
+                ", first PCM after " + mFirstPcmLatencyMillis + " ms" +
+                ", decoder CPU: " + mCpuMillisPerAudioSecond + " ms per second of audio" +
+                ", skipped " + mParser.getSkippedGarbage() + " bytes of garbage so far");
+    }
+
+    @Override
+    public void release() {
+        if (mCodec != null) {
+            mCodec.stop();
+            mCodec.release();
+            mCodec = null;
+        }
+    }
+
+    /**
+     * @return for the last stream, the time from its first bytes to its first PCM, or -1
+     */
+    public long getFirstPcmLatencyMillis() {
+        return mFirstPcmLatencyMillis;
+    }
+
+    /**
+     * @return for the last stream, the decoding CPU time per second of audio, or -1
+     */
+    public long getCpuMillisPerAudioSecond() {
+        return mCpuMillisPerAudioSecond;
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, int sampleRate, int channelCount) {
+        if (mFailed) {
+            return;
+        }
+        if (mCodec == null || sampleRate != mSampleRate || channelCount != mChannelCount) {
+            if (!configure(sampleRate, channelCount)) {
+                return;
+            }
+        }
+        int index = dequeueInputBuffer();
+        if (index < 0) {
+            Log.w(TAG, "decoder isn't taking input, dropping a frame");
+            return;
+        }
+        ByteBuffer input = mCodec.getInputBuffer(index);
+        input.clear();
+        int length = frame.remaining();
+        input.put(frame);
+        mCodec.queueInputBuffer(index, 0, length, mPresentationTimeUs, 0);
+        // Layer III frames hold 1152 samples, or 576 at the MPEG-2 and 2.5 sample rates.
+        mPresentationTimeUs += (sampleRate >= 32000 ? 1152 : 576) * 1000000L / sampleRate;
+    }
+
+    private boolean configure(int sampleRate, int channelCount) {
+        release();
+        if (sampleRate != mPlaybackSampleRate) {
+            fail("MP3 at " + sampleRate + " Hz can't be played at " + mPlaybackSampleRate + " Hz");
+            return false;
+        }
+        try {
+            mCodec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_AUDIO_MPEG);
+        } catch (IOException e) {
+            Log.e(TAG, "no MP3 decoder", e);
+            fail("couldn't create the MP3 decoder");
+            return false;
+        }
+        mCodec.configure(MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_MPEG,
+                sampleRate, channelCount), null, null, 0);
+        mCodec.start();
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mOutputChannelCount = channelCount;
+        Log.i(TAG, "decoding " + sampleRate + " Hz, " + channelCount + " channel MP3");
+        return true;
+    }
+
+    private void fail(String reason) {
+        Log.e(TAG, reason + ", giving up on MP3");
+        mFailed = true;
+        release();
+    }
+
+    /**
+     * Checks the codec's output format against the player.
+     *
+     * @return false if it can't be played
+     */
+    private boolean checkOutputFormat() {
+        MediaFormat format = mCodec.getOutputFormat();
+        Log.i(TAG, "decoder output format: " + format);
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mOutputChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        if (sampleRate != mPlaybackSampleRate || mOutputChannelCount < 1
+                || mOutputChannelCount > 2) {
+            fail("decoder puts out " + sampleRate + " Hz, " + mOutputChannelCount +
+                    " channels, the player wants " + mPlaybackSampleRate + " Hz mono");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for an input buffer, taking output out of the way meanwhile.
+     */
+    private int dequeueInputBuffer() {
+        for (int attempt = 0; attempt < MAX_DEQUEUE_ATTEMPTS && mCodec != null; attempt++) {
+            int index = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+            if (index >= 0) {
+                return index;
+            }
+            drain(0);
+        }
+        return -1;
+    }
+
+    /**
+     * Hands all the decoded audio that's ready to the listener.
+     *
+     * @return true once the end of the stream came out, or the decoder failed
+     */
+    private boolean drain(long timeoutUs) {
+        while (true) {
+            int index = mCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return false;
+            }
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (!checkOutputFormat()) {
+                    return true;
+                }
+                continue;
+            }
+            if (index < 0) {
+                continue;
+            }
+            if (mBufferInfo.size > 0) {
+                ByteBuffer output = mCodec.getOutputBuffer(index);
+                output.limit(mBufferInfo.offset + mBufferInfo.size).position(mBufferInfo.offset);
+                ByteBuffer pcm = toMono(output);
+                if (mFirstPcmNanos == 0) {
+                    mFirstPcmNanos = SystemClock.elapsedRealtimeNanos();
+                }
+                mPcmBytes += pcm.remaining();
+                mListener.onPcm(pcm);
+            }
+            mCodec.releaseOutputBuffer(index, false);
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Copies the codec's output into a buffer of its own, mixing stereo down to mono.
+     */
+    private ByteBuffer toMono(ByteBuffer output) {
+        if (mOutputChannelCount == 1) {
+            ByteBuffer pcm = ByteBuffer.allocate(output.remaining());
+            pcm.put(output).flip();
+            return pcm;
+        }
+        output.order(ByteOrder.LITTLE_ENDIAN);
+        int frames = output.remaining() / 4;
+        ByteBuffer pcm = ByteBuffer.allocate(frames * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frames; i++) {
+            pcm.putShort((short) ((output.getShort() + output.getShort()) >> 1));
+        }
+        pcm.flip();
+        return pcm;
+    }
+}
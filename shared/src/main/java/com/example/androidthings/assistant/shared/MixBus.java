@@ -0,0 +1,649 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Mixes every sound the app plays into one output track.
+ *
+ * Each sound gets a {@link Source}: 16-bit mono PCM at any sample rate, with its own gain and
+ * priority. While a source is playing, sources with a lower priority are ducked. A dedicated
+ * thread resamples and mixes a block at a time into a single track leased from an
+ * {@link AudioTrackPool} for as long as the bus runs. Nothing is allocated while mixing.
+ *
+ * The track is written without blocking. When it's full the mixer sleeps for about as long as
+ * it takes the track to play out what didn't fit, so nothing that wants to play or stop ever
+ * waits on the track.
+ *
+ * The track is stopped once everything has been quiet for a little while, and started again
+ * when there's something to play.
+ */
+public class MixBus implements Runnable {
+    private static final String TAG = MixBus.class.getSimpleName();
+
+    // Upper bound on how long the mixer or a writer sleeps if it misses an unpark.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // How long the track keeps playing silence before it's stopped.
+    private static final int IDLE_STOP_MILLIS = 250;
+    // Shortest sleep while waiting for room in the track.
+    private static final long MIN_HEADROOM_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Gains are Q12 fixed point, resampling positions Q16.
+    private static final int GAIN_ONE = 1 << 12;
+    private static final int FRAC_ONE = 1 << 16;
+
+    /**
+     * A stream of 16-bit mono PCM played through the bus. One thread writes to it, either
+     * with write, which waits for room if asked to, or with enqueue, which never waits.
+     * A source should only be fed one way.
+     */
+    public class Source {
+        private final String mName;
+        private final int mSampleRate;
+        private final int mPriority;
+        private final short[] mRing;
+        private final int mMask;
+        // Input samples per output sample, Q16.
+        private final int mStep;
+
+        // Sample counts, the writer moves mWritten and the mixer mRead.
+        private volatile long mWritten;
+        private volatile long mRead;
+        private volatile boolean mStarted;
+        private volatile boolean mEnded;
+        private volatile boolean mClosed;
+        private volatile boolean mDrained;
+        private volatile Thread mWaiter;
+        private volatile int mGain = GAIN_ONE;
+        // Blocks handed over with enqueue, moved into the ring by the mixer.
+        private final ConcurrentLinkedQueue<ByteBuffer> mBlocks = new ConcurrentLinkedQueue<>();
+
+        // Only touched by the mixer.
+        private int mAppliedGain;
+        private int mFrac = FRAC_ONE;
+        private int mPrevSample;
+        private int mCurrSample;
+        private boolean mStarving;
+
+        private volatile int mUnderruns;
+
+        Source(String name, int sampleRate, int priority, int capacityMillis) {
+            mName = name;
+            mSampleRate = sampleRate;
+            mPriority = priority;
+            int capacity = Integer.highestOneBit(
+                    Math.max(2, sampleRate * capacityMillis / 1000 - 1)) << 1;
+            mRing = new short[capacity];
+            mMask = capacity - 1;
+            mStep = (int) (((long) sampleRate << 16) / mOutputRate);
+        }
+
+        /**
+         * Queues little-endian PCM from the buffer's position to its limit, and moves the
+         * position past what was queued.
+         *
+         * @param blocking wait for room rather than queue only what fits
+         * @return how many bytes were queued
+         */
+        public int write(ByteBuffer pcm, boolean blocking) {
+            int position = pcm.position();
+            int queued = write(null, pcm, position, pcm.remaining(), blocking, true);
+            pcm.position(position + queued);
+            return queued;
+        }
+
+        /**
+         * Queues little-endian PCM from the array.
+         *
+         * @param blocking wait for room rather than queue only what fits
+         * @return how many bytes were queued
+         */
+        public int write(byte[] pcm, int offset, int size, boolean blocking) {
+            return write(pcm, null, offset, size, blocking, true);
+        }
+
+        /**
+         * Hands a block of little-endian PCM to the mixer and returns right away. The block
+         * belongs to the bus from then on, so it mustn't be changed.
+         */
+        public void enqueue(byte[] pcm) {
+            enqueueBlock(ByteBuffer.wrap(pcm));
+        }
+
+        /**
+         * Like {@link #enqueue(byte[])}, for the PCM between the buffer's position and limit.
+         * The buffer's position isn't changed, and the same buffer can be enqueued again, on
+         * this source or another, as long as its contents don't change.
+         */
+        public void enqueue(ByteBuffer pcm) {
+            enqueueBlock(pcm.duplicate());
+        }
+
+        private void enqueueBlock(ByteBuffer block) {
+            if (mClosed) {
+                return;
+            }
+            mBlocks.offer(block);
+            wake();
+        }
+
+        private int write(byte[] array, ByteBuffer buffer, int offset, int size,
+                boolean blocking, boolean wakeMixer) {
+            int samples = size / 2;
+            int done = 0;
+            while (done < samples && !mClosed) {
+                long written = mWritten;
+                int free = mRing.length - (int) (written - mRead);
+                if (free == 0) {
+                    if (!blocking) {
+                        break;
+                    }
+                    mWaiter = Thread.currentThread();
+                    if (mRing.length - (int) (written - mRead) == 0 && !mClosed) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    mWaiter = null;
+                    continue;
+                }
+                int count = Math.min(free, samples - done);
+                int index = offset + done * 2;
+                for (int i = 0; i < count; i++, index += 2) {
+                    int lo = array != null ? array[index] : buffer.get(index);
+                    int hi = array != null ? array[index + 1] : buffer.get(index + 1);
+                    mRing[(int) ((written + i) & mMask)] = (short) ((lo & 0xff) | (hi << 8));
+                }
+                mWritten = written + count;
+                mStarted = true;
+                done += count;
+                if (wakeMixer) {
+                    wake();
+                }
+            }
+            return done * 2;
+        }
+
+        /**
+         * Mixer side. Moves enqueued blocks into the ring until it's full.
+         */
+        void pullBlocks() {
+            ByteBuffer block;
+            while ((block = mBlocks.peek()) != null) {
+                int position = block.position();
+                int size = block.remaining() & ~1;
+                int queued = write(null, block, position, size, false, false);
+                if (queued < size) {
+                    block.position(position + queued);
+                    return;
+                }
+                mBlocks.poll();
+            }
+        }
+
+        /**
+         * @param gain 1 plays the source as it is
+         */
+        public void setGain(float gain) {
+            mGain = Math.round(Math.max(0, gain) * GAIN_ONE);
+        }
+
+        /**
+         * No more audio is coming. The source plays out what it has and then leaves the bus.
+         */
+        public void end() {
+            mEnded = true;
+            wake();
+        }
+
+        /**
+         * Leaves the bus right away, dropping whatever is still queued.
+         */
+        public void close() {
+            mClosed = true;
+            mBlocks.clear();
+            Thread waiter = mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        /**
+         * @return samples in the ring but not mixed yet, not counting blocks the mixer hasn't
+         *   picked up
+         */
+        public int getQueuedFrames() {
+            return (int) (mWritten - mRead);
+        }
+
+        /**
+         * @return samples mixed so far
+         */
+        public long getMixedFrames() {
+            return mRead;
+        }
+
+        /**
+         * @return how many times the mixer ran out of audio before the source ended
+         */
+        public int getUnderruns() {
+            return mUnderruns;
+        }
+
+        /**
+         * @return true once the source has ended and all of it has been mixed, or was closed
+         */
+        public boolean isDone() {
+            return mDrained || mClosed;
+        }
+
+        /**
+         * Mixer side. Adds the next block of this source to the mix.
+         *
+         * @return false if the source had nothing to give and isn't expecting any more
+         */
+        boolean mixInto(int[] mix, int frames, int targetGain) {
+            long read = mRead;
+            int available = (int) (mWritten - read);
+            if (available == 0 && (mEnded || !mStarted)) {
+                if (mEnded) {
+                    mDrained = true;
+                }
+                return false;
+            }
+            int startGain = mAppliedGain;
+            int gainDelta = targetGain - startGain;
+            int frac = mFrac;
+            int prev = mPrevSample;
+            int curr = mCurrSample;
+            int i = 0;
+            mixing:
+            for (; i < frames; i++) {
+                while (frac >= FRAC_ONE) {
+                    if (available == 0) {
+                        break mixing;
+                    }
+                    prev = curr;
+                    curr = mRing[(int) (read & mMask)];
+                    read++;
+                    available--;
+                    frac -= FRAC_ONE;
+                }
+                int sample = prev + (int) (((long) (curr - prev) * frac) >> 16);
+                int gain = startGain + gainDelta * i / frames;
+                mix[i] += (sample * gain) >> 12;
+                frac += mStep;
+            }
+            mFrac = frac;
+            mPrevSample = prev;
+            mCurrSample = curr;
+            mAppliedGain = targetGain;
+            mRead = read;
+            Thread waiter = mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+            if (i < frames && !mEnded) {
+                if (!mStarving) {
+                    mStarving = true;
+                    mUnderruns++;
+                }
+            } else {
+                mStarving = false;
+            }
+            return true;
+        }
+    }
+
+    private final AudioTrackPool mTrackPool;
+    private final AudioFormat mFormat;
+    private final int mOutputRate;
+    private final int mBlockFrames;
+    private final int[] mMix;
+    private final short[] mOut;
+
+    // Copied on every change so the mixer can walk it without locking or allocating.
+    private volatile Source[] mSources = new Source[0];
+    private volatile int mDuckGain = GAIN_ONE / 4;
+    private volatile float mVolume = 1f;
+    private volatile EchoSuppressor mEchoReference;
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile boolean mFlushRequested;
+    private volatile boolean mPlaying;
+
+    private volatile long mMaxMixNanos;
+    private volatile long mBlocksMixed;
+    private volatile long mMaxWriteNanos;
+    private volatile long mHeadroomParks;
+
+    /**
+     * @param format the output format, which has to be 16-bit mono PCM
+     * @param blockMillis how much audio is mixed at a time
+     */
+    public MixBus(AudioTrackPool trackPool, AudioFormat format, int blockMillis) {
+        if (format.getEncoding() != AudioFormat.ENCODING_PCM_16BIT
+                || format.getChannelCount() != 1) {
+            throw new IllegalArgumentException("the mix bus only plays 16-bit mono PCM");
+        }
+        mTrackPool = trackPool;
+        mFormat = format;
+        mOutputRate = format.getSampleRate();
+        mBlockFrames = mOutputRate * blockMillis / 1000;
+        mMix = new int[mBlockFrames];
+        mOut = new short[mBlockFrames];
+    }
+
+    /**
+     * Adds a source to the bus.
+     *
+     * @param priority sources with a lower priority are ducked while this one plays
+     * @param capacityMillis how much audio can be queued before writes have to wait
+     */
+    public Source openSource(String name, int sampleRate, int priority, int capacityMillis) {
+        Source source = new Source(name, sampleRate, priority, capacityMillis);
+        synchronized (this) {
+            Source[] sources = mSources;
+            int live = 0;
+            for (Source s : sources) {
+                if (!s.isDone()) {
+                    live++;
+                }
+            }
+            // Sources that are done only get dropped here, so the mixer never has to.
+            Source[] updated = new Source[live + 1];
+            int i = 0;
+            for (Source s : sources) {
+                if (!s.isDone()) {
+                    updated[i++] = s;
+                }
+            }
+            updated[i] = source;
+            mSources = updated;
+        }
+        return source;
+    }
+
+    /**
+     * @param duckGain the gain applied to sources while one with a higher priority plays
+     */
+    public void setDuckGain(float duckGain) {
+        mDuckGain = Math.round(Math.max(0, duckGain) * GAIN_ONE);
+    }
+
+    /**
+     * Hands everything written to the track to the echo suppressor as its reference. It has
+     * to run at the bus's output rate.
+     *
+     * @param echoSuppressor null to stop
+     */
+    public void setEchoReference(EchoSuppressor echoSuppressor) {
+        mEchoReference = echoSuppressor;
+    }
+
+    /**
+     * Sets the output track's volume, for everything on the bus.
+     */
+    public void setVolume(float volume) {
+        mVolume = volume;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, "mixBus");
+        mThread.start();
+    }
+
+    /**
+     * Stops mixing right away and gives the track back. Sources are closed.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted while stopping the mix bus", e);
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        for (Source source : mSources) {
+            source.close();
+        }
+        mSources = new Source[0];
+        Log.i(TAG, "mixed " + mBlocksMixed + " blocks, slowest took "
+                + TimeUnit.NANOSECONDS.toMicros(mMaxMixNanos) + " us, slowest write "
+                + TimeUnit.NANOSECONDS.toMicros(mMaxWriteNanos) + " us, waited for room "
+                + mHeadroomParks + " times");
+    }
+
+    /**
+     * Silences the bus right away: every source is closed, whatever the track still had
+     * queued is thrown away and the track is stopped, like after the idle timeout, so it lets
+     * go of anything it holds while playing. New sources play as usual.
+     */
+    public void interrupt() {
+        synchronized (this) {
+            for (Source source : mSources) {
+                source.close();
+            }
+        }
+        mFlushRequested = true;
+        wake();
+    }
+
+    /**
+     * @return true while the track is playing, which it keeps doing for a little while after
+     *   the last sound
+     */
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * @return the longest it's taken to mix one block
+     */
+    public long getMaxMixMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(mMaxMixNanos);
+    }
+
+    /**
+     * @return the longest a single write to the track has taken
+     */
+    public long getMaxWriteMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(mMaxWriteNanos);
+    }
+
+    /**
+     * @return how many times the mixer has slept waiting for room in the track
+     */
+    public long getHeadroomParks() {
+        return mHeadroomParks;
+    }
+
+    private void wake() {
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        AudioTrack track = mTrackPool.lease(mFormat, null);
+        if (track == null) {
+            Log.e(TAG, "no output track, the track pool has been released");
+            return;
+        }
+        boolean playing = false;
+        float appliedVolume = -1;
+        int silentFrames = 0;
+        int idleStopFrames = mOutputRate * IDLE_STOP_MILLIS / 1000;
+        // How much of mOut has gone to the track, a block isn't mixed until it all has.
+        int outOffset = mBlockFrames;
+        while (mRunning) {
+            float volume = mVolume;
+            if (volume != appliedVolume) {
+                track.setVolume(volume);
+                appliedVolume = volume;
+            }
+            if (mFlushRequested) {
+                mFlushRequested = false;
+                if (playing) {
+                    track.pause();
+                    track.flush();
+                    // Nothing is left to drain, so a track that holds the amp on while it
+                    // plays lets go of it now rather than on the next idle stop.
+                    track.stop();
+                    playing = false;
+                    mPlaying = false;
+                }
+                outOffset = mBlockFrames;
+                silentFrames = 0;
+                continue;
+            }
+            if (outOffset < mBlockFrames) {
+                outOffset += writeOut(track, outOffset);
+                continue;
+            }
+            if (mix()) {
+                silentFrames = 0;
+            } else if (!playing) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            } else if ((silentFrames += mBlockFrames) >= idleStopFrames) {
+                // The track plays out the silence it has and goes quiet.
+                track.stop();
+                playing = false;
+                mPlaying = false;
+                continue;
+            }
+            if (!playing) {
+                track.play();
+                playing = true;
+                mPlaying = true;
+            }
+            outOffset = writeOut(track, 0);
+        }
+        track.pause();
+        track.flush();
+        mPlaying = false;
+        mTrackPool.recycle(track);
+    }
+
+    /**
+     * Writes what the track has room for from mOut, and sleeps until about when the rest will
+     * fit if that wasn't all of it.
+     *
+     * @param offset where in mOut to start
+     * @return how many frames were written
+     */
+    private int writeOut(AudioTrack track, int offset) {
+        int remaining = mBlockFrames - offset;
+        long startNanos = System.nanoTime();
+        int written = track.write(mOut, offset, remaining, AudioTrack.WRITE_NON_BLOCKING);
+        long writeNanos = System.nanoTime() - startNanos;
+        if (writeNanos > mMaxWriteNanos) {
+            mMaxWriteNanos = writeNanos;
+        }
+        if (written < 0) {
+            Log.e(TAG, "error writing to the output track: " + written);
+            // Drop the block rather than spin on a broken track.
+            return remaining;
+        }
+        EchoSuppressor echoReference = mEchoReference;
+        if (echoReference != null && written > 0) {
+            echoReference.offerReference(mOut, offset, written);
+        }
+        if (written < remaining) {
+            // The track frees up a frame for every frame it plays.
+            long headroomNanos = TimeUnit.SECONDS.toNanos(remaining - written) / mOutputRate;
+            mHeadroomParks++;
+            LockSupport.parkNanos(this, Math.max(MIN_HEADROOM_PARK_NANOS, headroomNanos));
+        }
+        return written;
+    }
+
+    /**
+     * Mixes the next block into mOut, which is silence if no source had anything to play.
+     *
+     * @return false if no source had anything to play
+     */
+    private boolean mix() {
+        long startNanos = System.nanoTime();
+        Source[] sources = mSources;
+        int topPriority = Integer.MIN_VALUE;
+        for (Source source : sources) {
+            if (!source.isDone()) {
+                source.pullBlocks();
+            }
+            if (!source.isDone() && source.mStarted && source.mPriority > topPriority) {
+                topPriority = source.mPriority;
+            }
+        }
+        int[] mix = mMix;
+        for (int i = 0; i < mBlockFrames; i++) {
+            mix[i] = 0;
+        }
+        boolean audible = false;
+        int duckGain = mDuckGain;
+        for (Source source : sources) {
+            if (source.isDone()) {
+                continue;
+            }
+            int gain = source.mGain;
+            if (source.mPriority < topPriority) {
+                gain = (gain * duckGain) >> 12;
+            }
+            audible |= source.mixInto(mix, mBlockFrames, gain);
+        }
+        short[] out = mOut;
+        for (int i = 0; i < mBlockFrames; i++) {
+            int sample = mix[i];
+            out[i] = (short) (sample > Short.MAX_VALUE ? Short.MAX_VALUE
+                    : sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample);
+        }
+        long mixNanos = System.nanoTime() - startNanos;
+        if (mixNanos > mMaxMixNanos) {
+            mMaxMixNanos = mixNanos;
+        }
+        mBlocksMixed++;
+        return audible;
+    }
+}
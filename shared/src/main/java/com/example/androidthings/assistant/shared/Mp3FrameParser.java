@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts an MPEG audio layer III byte stream, delivered in pieces of any size, into whole frames,
+ * which is what decoders want as input. A leading ID3v2 tag is skipped, and so is any garbage
+ * between frames.
+ */
+public class Mp3FrameParser {
+    private static final int HEADER_BYTES = 4;
+    // The biggest layer III frame: 320 kbps at 32 kHz, padded.
+    private static final int MAX_FRAME_BYTES = 144000 * 320 / 32000 + 1;
+    private static final int ID3_HEADER_BYTES = 10;
+
+    private static final int[] MPEG1_BITRATES_KBPS =
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, -1};
+    private static final int[] MPEG2_BITRATES_KBPS =
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, -1};
+    private static final int[] MPEG1_SAMPLE_RATES = {44100, 48000, 32000, -1};
+
+    /**
+     * Receives whole frames.
+     */
+    public interface Listener {
+        /**
+         * @param frame the frame between its position and limit, only valid during the call
+         */
+        void onFrame(ByteBuffer frame, int sampleRate, int channelCount);
+    }
+
+    private final byte[] mFrame = new byte[MAX_FRAME_BYTES];
+    private final ByteBuffer mFrameView = ByteBuffer.wrap(mFrame);
+    private int mFrameBytes;
+    private int mFrameLength;
+    private int mSampleRate;
+    private int mChannelCount;
+    private boolean mStreamStart = true;
+    private boolean mInId3Header;
+    private long mSkipBytes;
+    private long mSkippedGarbage;
+
+    /**
+     * Feeds the next piece of the stream, between the position and limit of {@code data}.
+     * The position is moved to the limit.
+     */
+    public void push(ByteBuffer data, Listener listener) {
+        while (data.hasRemaining()) {
+            if (mSkipBytes > 0) {
+                int skip = (int) Math.min(mSkipBytes, data.remaining());
+                data.position(data.position() + skip);
+                mSkipBytes -= skip;
+                continue;
+            }
+            if (mFrameBytes < (mInId3Header ? ID3_HEADER_BYTES : HEADER_BYTES)) {
+                mFrame[mFrameBytes++] = data.get();
+                onHeaderByte();
+                continue;
+            }
+            int length = Math.min(mFrameLength - mFrameBytes, data.remaining());
+            data.get(mFrame, mFrameBytes, length);
+            mFrameBytes += length;
+            if (mFrameBytes == mFrameLength) {
+                mFrameView.limit(mFrameLength).position(0);
+                listener.onFrame(mFrameView, mSampleRate, mChannelCount);
+                mFrameBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Drops any partial frame; the next byte pushed starts a new stream.
+     */
+    public void reset() {
+        mFrameBytes = 0;
+        mSkipBytes = 0;
+        mStreamStart = true;
+        mInId3Header = false;
+    }
+
+    /**
+     * @return how many bytes had to be skipped to find frames, not counting ID3 tags
+     */
+    public long getSkippedGarbage() {
+        return mSkippedGarbage;
+    }
+
+    private void onHeaderByte() {
+        if (mInId3Header) {
+            if (mFrameBytes == ID3_HEADER_BYTES) {
+                // Tag size is a 28-bit "syncsafe" integer, not counting the header or footer.
+                long size = (mFrame[6] & 0x7f) << 21 | (mFrame[7] & 0x7f) << 14
+                        | (mFrame[8] & 0x7f) << 7 | (mFrame[9] & 0x7f);
+                boolean footer = (mFrame[5] & 0x10) != 0;
+                mSkipBytes = size + (footer ? ID3_HEADER_BYTES : 0);
+                mFrameBytes = 0;
+                mInId3Header = false;
+            }
+            return;
+        }
+        if (mStreamStart && mFrameBytes == 3
+                && mFrame[0] == 'I' && mFrame[1] == 'D' && mFrame[2] == '3') {
+            mInId3Header = true;
+            mStreamStart = false;
+            return;
+        }
+        if (mFrameBytes == HEADER_BYTES) {
+            parseHeader();
+        }
+    }
+
+    private void parseHeader() {
+        mStreamStart = false;
+        int b1 = mFrame[1] & 0xff;
+        int b2 = mFrame[2] & 0xff;
+        int b3 = mFrame[3] & 0xff;
+        int version = (b1 >> 3) & 0x3;
+        int layer = (b1 >> 1) & 0x3;
+        int bitrateIndex = b2 >> 4;
+        int sampleRateIndex = (b2 >> 2) & 0x3;
+        boolean mpeg1 = version == 3;
+        int bitrate = (mpeg1 ? MPEG1_BITRATES_KBPS : MPEG2_BITRATES_KBPS)[bitrateIndex];
+        int sampleRate = MPEG1_SAMPLE_RATES[sampleRateIndex];
+        if ((mFrame[0] & 0xff) != 0xff || (b1 & 0xe0) != 0xe0 || version == 1 || layer != 1
+                || bitrate <= 0 || sampleRate < 0) {
+            // Not a layer III frame header, slide along a byte.
+            System.arraycopy(mFrame, 1, mFrame, 0, HEADER_BYTES - 1);
+            mFrameBytes = HEADER_BYTES - 1;
+            mSkippedGarbage++;
+            return;
+        }
+        if (version == 2) {
+            sampleRate /= 2;
+        } else if (version == 0) {
+            sampleRate /= 4;
+        }
+        int padding = (b2 >> 1) & 0x1;
+        mFrameLength = (mpeg1 ? 144000 : 72000) * bitrate / sampleRate + padding;
+        mSampleRate = sampleRate;
+        mChannelCount = (b3 >> 6) == 3 ? 1 : 2;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded queue of audio waiting for the request stream to become ready again.
+ *
+ * All the memory is allocated up front: a fixed number of entries of a fixed size, so however
+ * long the uplink stalls the queue never grows. What happens when it's full depends on the
+ * {@link OverflowPolicy}. Only use it from one thread.
+ *
+ * An entry can start with pinned bytes, e.g. a FLAC stream header, that the rest of the stream
+ * can't be decoded without. Dropping the oldest entry never drops those: they're moved to the
+ * front of the entry that's oldest from then on, and only the audio after them is lost.
+ */
+public class PendingAudioQueue {
+
+    /**
+     * What to do with new audio when every entry is in use.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Append new audio to the newest entry while it has room, so a stall turns into fewer,
+         * larger messages. Once every entry is full the oldest audio is dropped.
+         */
+        COALESCE,
+        /**
+         * Drop the oldest audio to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Refuse the audio, the caller should give up on the turn.
+         */
+        FAIL_TURN
+    }
+
+    private final OverflowPolicy mPolicy;
+    private final byte[][] mEntries;
+    private final ByteBuffer[] mViews;
+    private final int[] mLengths;
+    // How many bytes at the start of each entry must never be dropped.
+    private final int[] mPinnedBytes;
+    private final int mEntryCapacity;
+    private int mHead;
+    private int mCount;
+
+    private int mHighWaterMark;
+    private int mDroppedEntries;
+    private long mDroppedBytes;
+    private int mCoalescedChunks;
+
+    /**
+     * @param entries how many entries the queue holds, at least two so there's always room for
+     *   audio next to pinned bytes
+     * @param entryCapacity the most bytes a single entry (one request message) can hold
+     */
+    public PendingAudioQueue(int entries, int entryCapacity, OverflowPolicy policy) {
+        if (entries < 2) {
+            throw new IllegalArgumentException("need at least two entries: " + entries);
+        }
+        mPolicy = policy;
+        mEntryCapacity = entryCapacity;
+        mEntries = new byte[entries][];
+        mViews = new ByteBuffer[entries];
+        mLengths = new int[entries];
+        mPinnedBytes = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            mEntries[i] = new byte[entryCapacity];
+            mViews[i] = ByteBuffer.wrap(mEntries[i]);
+        }
+    }
+
+    /**
+     * Copies the chunk's remaining bytes into the queue.
+     *
+     * @return false if the queue is full and the policy is {@link OverflowPolicy#FAIL_TURN}
+     */
+    public boolean add(ByteBuffer chunk) {
+        return add(chunk, 0);
+    }
+
+    /**
+     * Copies the chunk's remaining bytes into the queue, the first {@code pinnedBytes} of which
+     * stay in the queue until they're removed with {@link #remove()}.
+     *
+     * @return false if the queue is full and the policy is {@link OverflowPolicy#FAIL_TURN}
+     */
+    public boolean add(ByteBuffer chunk, int pinnedBytes) {
+        int length = Math.min(chunk.remaining(), mEntryCapacity);
+        if (mPolicy == OverflowPolicy.COALESCE && mCount > 0) {
+            int tail = index(mCount - 1);
+            if (mLengths[tail] + length <= mEntryCapacity) {
+                chunk.get(mEntries[tail], mLengths[tail], length);
+                mLengths[tail] += length;
+                mCoalescedChunks++;
+                return true;
+            }
+        }
+        if (mCount == mEntries.length) {
+            if (mPolicy == OverflowPolicy.FAIL_TURN) {
+                return false;
+            }
+            dropOldest();
+        }
+        int tail = index(mCount);
+        chunk.get(mEntries[tail], 0, length);
+        mLengths[tail] = length;
+        mPinnedBytes[tail] = Math.min(pinnedBytes, length);
+        mCount++;
+        if (mCount > mHighWaterMark) {
+            mHighWaterMark = mCount;
+        }
+        return true;
+    }
+
+    /**
+     * @return a view of the oldest entry, valid until the next call to {@link #remove()}, or
+     *   null if the queue is empty
+     */
+    public ByteBuffer peek() {
+        if (mCount == 0) {
+            return null;
+        }
+        ByteBuffer view = mViews[mHead];
+        view.clear();
+        view.limit(mLengths[mHead]);
+        return view;
+    }
+
+    /**
+     * Frees the oldest entry. Its pinned bytes, if it has any, go to the front of the next one.
+     */
+    private void dropOldest() {
+        int pinned = mPinnedBytes[mHead];
+        mDroppedEntries++;
+        mDroppedBytes += mLengths[mHead] - pinned;
+        if (pinned > 0) {
+            int next = index(1);
+            byte[] entry = mEntries[next];
+            if (mLengths[next] + pinned > mEntryCapacity) {
+                // No room to put them in front, so the next entry's audio goes as well.
+                mDroppedEntries++;
+                mDroppedBytes += mLengths[next];
+                mLengths[next] = 0;
+            }
+            System.arraycopy(entry, 0, entry, pinned, mLengths[next]);
+            System.arraycopy(mEntries[mHead], 0, entry, 0, pinned);
+            mLengths[next] += pinned;
+            mPinnedBytes[next] = pinned;
+        }
+        remove();
+    }
+
+    /**
+     * Removes the oldest entry.
+     */
+    public void remove() {
+        if (mCount == 0) {
+            return;
+        }
+        mLengths[mHead] = 0;
+        mPinnedBytes[mHead] = 0;
+        mHead = index(1);
+        mCount--;
+    }
+
+    public void clear() {
+        while (mCount > 0) {
+            remove();
+        }
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int getEntryCapacity() {
+        return mEntryCapacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    public int getDroppedEntries() {
+        return mDroppedEntries;
+    }
+
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    public int getCoalescedChunks() {
+        return mCoalescedChunks;
+    }
+
+    private int index(int offset) {
+        return (mHead + offset) % mEntries.length;
+    }
+}
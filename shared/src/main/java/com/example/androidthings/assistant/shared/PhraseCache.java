@@ -0,0 +1,342 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps the audio of phrases that have been synthesized, so speaking one again doesn't need
+ * the engine at all.
+ *
+ * There are two tiers, each with its own byte budget and least recently used first out. The
+ * memory tier holds the PCM of the phrases spoken most recently. The disk tier keeps raw
+ * 16-bit PCM files in a directory across runs, and maps them into memory when they're read.
+ * A phrase read from disk moves into the memory tier too.
+ *
+ * Phrases are keyed by everything that changes how they sound, see
+ * {@link #key(String, String, Locale, float, float)}.
+ */
+public class PhraseCache {
+    private static final String TAG = PhraseCache.class.getSimpleName();
+
+    // <key>_<sample rate>_<synthesis millis>.pcm
+    private static final String SUFFIX = ".pcm";
+
+    /**
+     * A cached phrase: mono 16-bit little-endian PCM.
+     */
+    public static class Phrase {
+        private final ByteBuffer mPcm;
+        private final int mSampleRate;
+        private final long mSynthesisMillis;
+
+        Phrase(ByteBuffer pcm, int sampleRate, long synthesisMillis) {
+            mPcm = pcm;
+            mSampleRate = sampleRate;
+            mSynthesisMillis = synthesisMillis;
+        }
+
+        /**
+         * @return a read-only view of the PCM, which is shared, so don't hold on to it for
+         *   longer than it takes to play
+         */
+        public ByteBuffer getPcm() {
+            return mPcm.duplicate();
+        }
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        /**
+         * @return how long the phrase took to synthesize when it was cached
+         */
+        public long getSynthesisMillis() {
+            return mSynthesisMillis;
+        }
+    }
+
+    private static class DiskEntry {
+        final File mFile;
+        final int mSampleRate;
+        final long mSynthesisMillis;
+
+        DiskEntry(File file, int sampleRate, long synthesisMillis) {
+            mFile = file;
+            mSampleRate = sampleRate;
+            mSynthesisMillis = synthesisMillis;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mMemoryBudget;
+    private final long mDiskBudget;
+    // Access ordered, so the first entry is the one used least recently.
+    private final LinkedHashMap<String, Phrase> mMemory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, DiskEntry> mDisk = new LinkedHashMap<>(16, 0.75f, true);
+    private int mMemoryBytes;
+    private long mDiskBytes;
+
+    private long mMemoryHits;
+    private long mDiskHits;
+    private long mMisses;
+    private long mMemoryEvictions;
+    private long mDiskEvictions;
+    private long mSavedSynthesisMillis;
+
+    /**
+     * Picks up whatever an earlier run left in the directory, oldest first.
+     *
+     * @param directory where the disk tier lives, created if it has to be
+     * @param memoryBudget how many bytes of PCM the memory tier holds
+     * @param diskBudget how many bytes of PCM the disk tier holds
+     */
+    public PhraseCache(File directory, int memoryBudget, long diskBudget) {
+        mDirectory = directory;
+        mMemoryBudget = memoryBudget;
+        mDiskBudget = diskBudget;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "couldn't create " + directory + ", only caching in memory");
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            String[] parts = file.getName().replace(SUFFIX, "").split("_");
+            try {
+                if (!file.getName().endsWith(SUFFIX) || parts.length != 3) {
+                    throw new NumberFormatException(file.getName());
+                }
+                mDisk.put(parts[0], new DiskEntry(file, Integer.parseInt(parts[1]),
+                        Long.parseLong(parts[2])));
+                mDiskBytes += file.length();
+            } catch (NumberFormatException e) {
+                // Not ours, or a write that never finished.
+                file.delete();
+            }
+        }
+        trimDisk();
+        Log.i(TAG, mDisk.size() + " phrases on disk, " + mDiskBytes + " bytes");
+    }
+
+    /**
+     * @return the key of a phrase as spoken with these settings
+     */
+    public static String key(String text, String voice, Locale locale, float pitch,
+            float rate) {
+        String settings = text + '\n' + voice + '\n' + locale.toLanguageTag() + '\n' + pitch
+                + '\n' + rate;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(settings.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device has SHA-1, but a collision here only costs a wrong prompt.
+            return Integer.toHexString(settings.hashCode());
+        }
+    }
+
+    /**
+     * @return the phrase, or null if it has to be synthesized
+     */
+    public synchronized Phrase get(String key) {
+        Phrase phrase = mMemory.get(key);
+        if (phrase != null) {
+            mMemoryHits++;
+            mSavedSynthesisMillis += phrase.getSynthesisMillis();
+            return phrase;
+        }
+        DiskEntry entry = mDisk.get(key);
+        if (entry != null) {
+            phrase = map(entry);
+            if (phrase != null) {
+                mDiskHits++;
+                mSavedSynthesisMillis += phrase.getSynthesisMillis();
+                putInMemory(key, phrase);
+                return phrase;
+            }
+            mDisk.remove(key);
+            mDiskBytes -= entry.mFile.length();
+            entry.mFile.delete();
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Like {@link #get(String)} without reading anything, and without counting as a lookup.
+     */
+    public synchronized boolean contains(String key) {
+        return mMemory.containsKey(key) || mDisk.containsKey(key);
+    }
+
+    /**
+     * Caches a phrase in both tiers. Phrases bigger than a quarter of the memory budget
+     * aren't worth keeping and are left out.
+     *
+     * @param pcm mono 16-bit little-endian PCM, between its position and limit
+     * @param synthesisMillis how long the phrase took to synthesize
+     */
+    public synchronized void put(String key, ByteBuffer pcm, int sampleRate,
+            long synthesisMillis) {
+        if (pcm.remaining() > mMemoryBudget / 4 || mMemory.containsKey(key)) {
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(pcm.remaining());
+        copy.put(pcm.duplicate()).flip();
+        putInMemory(key, new Phrase(copy.asReadOnlyBuffer(), sampleRate, synthesisMillis));
+        if (!mDisk.containsKey(key)) {
+            write(key, copy.duplicate(), sampleRate, synthesisMillis);
+        }
+    }
+
+    private void putInMemory(String key, Phrase phrase) {
+        mMemory.put(key, phrase);
+        mMemoryBytes += phrase.mPcm.remaining();
+        Iterator<Map.Entry<String, Phrase>> eldest = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMemoryBudget && eldest.hasNext()) {
+            Map.Entry<String, Phrase> entry = eldest.next();
+            if (entry.getKey().equals(key)) {
+                continue;
+            }
+            mMemoryBytes -= entry.getValue().mPcm.remaining();
+            eldest.remove();
+            mMemoryEvictions++;
+        }
+    }
+
+    private void write(String key, ByteBuffer pcm, int sampleRate, long synthesisMillis) {
+        if (!mDirectory.isDirectory()) {
+            return;
+        }
+        File file = new File(mDirectory, key + "_" + sampleRate + "_" + synthesisMillis + SUFFIX);
+        // Written under another name first, so a crash never leaves half a phrase behind.
+        File partial = new File(mDirectory, key + ".partial");
+        int length = pcm.remaining();
+        try (FileOutputStream out = new FileOutputStream(partial)) {
+            while (pcm.hasRemaining()) {
+                out.getChannel().write(pcm);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "couldn't write a phrase to disk", e);
+            partial.delete();
+            return;
+        }
+        if (!partial.renameTo(file)) {
+            partial.delete();
+            return;
+        }
+        mDisk.put(key, new DiskEntry(file, sampleRate, synthesisMillis));
+        mDiskBytes += length;
+        trimDisk();
+    }
+
+    private Phrase map(DiskEntry entry) {
+        try (RandomAccessFile file = new RandomAccessFile(entry.mFile, "r")) {
+            // The mapping outlives the file being closed.
+            ByteBuffer pcm = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    file.length());
+            return new Phrase(pcm, entry.mSampleRate, entry.mSynthesisMillis);
+        } catch (IOException e) {
+            Log.w(TAG, "couldn't map " + entry.mFile, e);
+            return null;
+        }
+    }
+
+    private void trimDisk() {
+        Iterator<DiskEntry> eldest = mDisk.values().iterator();
+        while (mDiskBytes > mDiskBudget && eldest.hasNext()) {
+            DiskEntry entry = eldest.next();
+            mDiskBytes -= entry.mFile.length();
+            entry.mFile.delete();
+            eldest.remove();
+            mDiskEvictions++;
+        }
+    }
+
+    /**
+     * @return the share of lookups that didn't need the engine
+     */
+    public synchronized double getHitRatio() {
+        long lookups = mMemoryHits + mDiskHits + mMisses;
+        return lookups > 0 ? (double) (mMemoryHits + mDiskHits) / lookups : 0;
+    }
+
+    public synchronized long getMemoryHits() {
+        return mMemoryHits;
+    }
+
+    public synchronized long getDiskHits() {
+        return mDiskHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getMemoryEvictions() {
+        return mMemoryEvictions;
+    }
+
+    public synchronized long getDiskEvictions() {
+        return mDiskEvictions;
+    }
+
+    /**
+     * @return how long the engine would have spent synthesizing the phrases that were hits
+     */
+    public synchronized long getSavedSynthesisMillis() {
+        return mSavedSynthesisMillis;
+    }
+
+    public synchronized void logStats() {
+        Log.i(TAG, String.format(Locale.US, "phrase cache: %.0f%% hits (%d memory, %d disk," +
+                        " %d misses), %d + %d evicted, %d ms of synthesis saved," +
+                        " %d bytes in memory, %d on disk", getHitRatio() * 100, mMemoryHits,
+                mDiskHits, mMisses, mMemoryEvictions, mDiskEvictions, mSavedSynthesisMillis,
+                mMemoryBytes, mDiskBytes));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size circular buffer that always holds the most recent audio written to it, so the
+ * moments before a turn starts can still be sent. Only use it from one thread.
+ */
+public class PreRollBuffer {
+    private final byte[] mData;
+    private int mWritePosition;
+    private int mSize;
+
+    /**
+     * @param capacity how many bytes of the most recent audio to keep, rounded down to whole
+     *   16-bit samples
+     */
+    public PreRollBuffer(int capacity) {
+        mData = new byte[capacity & ~1];
+    }
+
+    /**
+     * Appends the bytes between the buffer's position and limit, overwriting the oldest audio
+     * once full. The buffer's position isn't changed.
+     */
+    public void write(ByteBuffer audio) {
+        if (mData.length == 0) {
+            return;
+        }
+        int start = audio.position();
+        int length = audio.limit() - start;
+        if (length > mData.length) {
+            start += length - mData.length;
+            length = mData.length;
+        }
+        for (int i = 0; i < length; i++) {
+            mData[mWritePosition] = audio.get(start + i);
+            mWritePosition = (mWritePosition + 1) % mData.length;
+        }
+        mSize = Math.min(mData.length, mSize + length);
+    }
+
+    /**
+     * Moves the oldest audio into {@code destination}, as much as fits.
+     *
+     * @return the number of bytes moved
+     */
+    public int read(ByteBuffer destination) {
+        int length = Math.min(mSize, destination.remaining());
+        int readPosition = (mWritePosition - mSize + mData.length) % mData.length;
+        int firstPart = Math.min(length, mData.length - readPosition);
+        destination.put(mData, readPosition, firstPart);
+        destination.put(mData, 0, length - firstPart);
+        mSize -= length;
+        return length;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * @return the number of bytes waiting to be read
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mData.length;
+    }
+}
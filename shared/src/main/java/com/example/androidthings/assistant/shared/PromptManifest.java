@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the list of prompts the app speaks, so they can be synthesized ahead of time. The
+ * manifest is a JSON object with a "prompts" array of strings, see res/raw/prompts.json.
+ */
+public class PromptManifest {
+    public static List<String> fromResource(Context context, int resourceId)
+            throws IOException, JSONException {
+        InputStream is = context.getResources().openRawResource(resourceId);
+        byte[] bytes = new byte[is.available()];
+        is.read(bytes);
+        is.close();
+        JSONArray prompts = new JSONObject(new String(bytes, "UTF-8")).getJSONArray("prompts");
+        List<String> texts = new ArrayList<>(prompts.length());
+        for (int i = 0; i < prompts.length(); i++) {
+            texts.add(prompts.getString(i));
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Takes the work of handling Assist responses off the gRPC callback thread.
+ *
+ * The response observer only works out what each response carries and dispatches it as typed
+ * events. Every event type has its own queue and consumer thread, so audio is never stuck
+ * behind JSON parsing, text to speech or UI updates. Events of one type are consumed in the
+ * order they were dispatched; there's no ordering between types.
+ *
+ * How long events wait in each queue is measured, see {@link #getAverageQueueMillis(EventType)}
+ * and {@link #getMaxQueueMillis(EventType)}.
+ */
+public class ResponseEventDispatcher {
+    private static final String TAG = ResponseEventDispatcher.class.getSimpleName();
+
+    public enum EventType {
+        /** A transcript of what the user said, a String. */
+        TRANSCRIPT,
+        /** A new volume percentage, an Integer. */
+        VOLUME,
+        /** The conversation state to send with the next request, a ByteString. */
+        CONVERSATION_STATE,
+        /** A chunk of response audio, a ByteBuffer, or null once the response is over. */
+        AUDIO,
+        /** A device action request, the JSON String. */
+        DEVICE_ACTION
+    }
+
+    /**
+     * Handles the events of one type on that type's thread.
+     */
+    public interface Consumer<T> {
+        void onEvent(T payload);
+    }
+
+    private static class Event {
+        final Object mPayload;
+        final long mDispatchedAtNanos;
+
+        Event(Object payload) {
+            mPayload = payload;
+            mDispatchedAtNanos = System.nanoTime();
+        }
+    }
+
+    private static class Lane implements Runnable {
+        final EventType mType;
+        final Consumer<Object> mConsumer;
+        final int mThreadPriority;
+        final LinkedBlockingQueue<Event> mQueue = new LinkedBlockingQueue<>();
+        Thread mThread;
+
+        // Written by the lane's thread.
+        volatile long mEvents;
+        volatile long mTotalQueueNanos;
+        volatile long mMaxQueueNanos;
+
+        Lane(EventType type, Consumer<Object> consumer, int threadPriority) {
+            mType = type;
+            mConsumer = consumer;
+            mThreadPriority = threadPriority;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(mThreadPriority);
+            while (true) {
+                Event event;
+                try {
+                    event = mQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long queueNanos = System.nanoTime() - event.mDispatchedAtNanos;
+                mEvents++;
+                mTotalQueueNanos += queueNanos;
+                if (queueNanos > mMaxQueueNanos) {
+                    mMaxQueueNanos = queueNanos;
+                }
+                try {
+                    mConsumer.onEvent(event.mPayload);
+                } catch (RuntimeException e) {
+                    // One bad event shouldn't take the whole lane down.
+                    Log.e(TAG, "error handling a " + mType + " event", e);
+                }
+            }
+        }
+    }
+
+    private final EnumMap<EventType, Lane> mLanes = new EnumMap<>(EventType.class);
+    private boolean mStarted;
+
+    /**
+     * Sets what handles events of a type. Call for every type that gets dispatched, before
+     * {@link #start()}.
+     *
+     * @param threadPriority the priority of the type's thread, see {@link Process}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void setConsumer(EventType type, int threadPriority, Consumer<T> consumer) {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        mLanes.put(type, new Lane(type, (Consumer<Object>) consumer, threadPriority));
+    }
+
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        for (Lane lane : mLanes.values()) {
+            lane.mThread = new Thread(lane, "response-" + lane.mType.name().toLowerCase());
+            lane.mThread.start();
+        }
+    }
+
+    /**
+     * Stops every consumer thread once it's done with its current event. Events still queued
+     * are dropped.
+     */
+    public synchronized void stop() {
+        for (Lane lane : mLanes.values()) {
+            if (lane.mThread == null) {
+                continue;
+            }
+            lane.mThread.interrupt();
+            try {
+                lane.mThread.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "interrupted while stopping the dispatcher", e);
+                Thread.currentThread().interrupt();
+            }
+            lane.mThread = null;
+            lane.mQueue.clear();
+        }
+        mStarted = false;
+    }
+
+    /**
+     * Queues an event for its type's consumer. Never blocks.
+     */
+    public void dispatch(EventType type, Object payload) {
+        Lane lane = mLanes.get(type);
+        if (lane == null) {
+            Log.w(TAG, "no consumer for " + type + " events");
+            return;
+        }
+        lane.mQueue.add(new Event(payload));
+    }
+
+    /**
+     * Drops the events of a type that are still queued. The one being handled, if any, is
+     * left to finish.
+     */
+    public void discard(EventType type) {
+        Lane lane = mLanes.get(type);
+        if (lane != null) {
+            lane.mQueue.clear();
+        }
+    }
+
+    public long getEventCount(EventType type) {
+        Lane lane = mLanes.get(type);
+        return lane == null ? 0 : lane.mEvents;
+    }
+
+    /**
+     * @return how long events of the type waited for their consumer on average
+     */
+    public double getAverageQueueMillis(EventType type) {
+        Lane lane = mLanes.get(type);
+        long events = lane == null ? 0 : lane.mEvents;
+        return events == 0 ? 0 : lane.mTotalQueueNanos / 1e6 / events;
+    }
+
+    /**
+     * @return the longest an event of the type has waited for its consumer
+     */
+    public double getMaxQueueMillis(EventType type) {
+        Lane lane = mLanes.get(type);
+        return lane == null ? 0 : lane.mMaxQueueNanos / 1e6;
+    }
+
+    /**
+     * Logs the queue latencies of every event type.
+     */
+    public void logStats() {
+        StringBuilder stats = new StringBuilder("event queue latency");
+        for (EventType type : mLanes.keySet()) {
+            stats.append(String.format(" | %s: %d events, avg %.2f ms, max %.2f ms", type,
+                    getEventCount(type), getAverageQueueMillis(type), getMaxQueueMillis(type)));
+        }
+        Log.i(TAG, stats.toString());
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays the Assistant's audio responses on its own thread while they're still streaming in.
+ *
+ * Chunks handed to {@link #onAudio(ByteBuffer)} go into a {@link JitterBuffer}, which holds
+ * them back until enough has arrived to ride out the link's jitter (or the response ends).
+ * Then a {@link MixBus} source is opened and fed every chunk as it arrives. Underruns are
+ * reported back to the jitter buffer so it can buffer more on the next response.
+ */
+public class ResponsePlayer implements Runnable {
+    private static final String TAG = ResponsePlayer.class.getSimpleName();
+
+    // Upper bound on how long the player sleeps if it somehow misses an unpark.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // How much audio the mix bus source holds, like a track's buffer.
+    private static final int SOURCE_CAPACITY_MILLIS = 80;
+
+    private final MixBus mMixBus;
+    private final int mPriority;
+    private final JitterBuffer mJitterBuffer;
+    private final int mSampleRate;
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    // Written by the thread delivering the response.
+    private volatile long mTurnEndedAt;
+    private volatile long mFirstChunkAt;
+
+    private volatile long mTimeToFirstAudioMillis = -1;
+    private volatile int mSourceDepthMillis;
+
+    // Only touched by the player thread.
+    private MixBus.Source mSource;
+    private long mFramesWritten;
+    private int mLastUnderrunCount;
+
+    /**
+     * @param mixBus plays the responses
+     * @param priority the priority of the responses on the bus
+     * @param jitterBuffer where responses wait to be played
+     * @param sampleRate the sample rate of the responses, which are 16-bit mono PCM
+     */
+    public ResponsePlayer(MixBus mixBus, int priority, JitterBuffer jitterBuffer,
+            int sampleRate) {
+        mMixBus = mixBus;
+        mPriority = priority;
+        mJitterBuffer = jitterBuffer;
+        mSampleRate = sampleRate;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, "responsePlayer");
+        mThread.start();
+    }
+
+    /**
+     * Stops playing right away and waits for the player thread to finish. Queued audio is
+     * thrown away.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted while stopping playback", e);
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mJitterBuffer.clear();
+    }
+
+    /**
+     * Call when the user's turn ends, to measure the time to first audio from there.
+     */
+    public void onTurnEnd() {
+        mTurnEndedAt = SystemClock.elapsedRealtime();
+        mFirstChunkAt = 0;
+    }
+
+    /**
+     * Queues a chunk of response audio, between its position and limit. The player owns the
+     * buffer from now on.
+     */
+    public void onAudio(ByteBuffer audioData) {
+        if (mFirstChunkAt == 0) {
+            mFirstChunkAt = SystemClock.elapsedRealtime();
+        }
+        mJitterBuffer.offer(audioData);
+        wake();
+    }
+
+    /**
+     * Call once the response is complete, or has failed. Whatever audio arrived still plays.
+     */
+    public void onResponseEnd() {
+        mJitterBuffer.endResponse();
+        wake();
+    }
+
+    /**
+     * Drops the response in flight, played or not. Call from the thread delivering the
+     * response, once it's done delivering the old one; the next response can be delivered
+     * right after.
+     */
+    public void interrupt() {
+        mJitterBuffer.abortResponse();
+        wake();
+    }
+
+    public JitterBuffer getJitterBuffer() {
+        return mJitterBuffer;
+    }
+
+    /**
+     * @return the time from the end of the last turn to its response starting to play, or -1
+     *   before the first response
+     */
+    public long getTimeToFirstAudioMillis() {
+        return mTimeToFirstAudioMillis;
+    }
+
+    /**
+     * @return how much audio is waiting to be heard, in the jitter buffer and on the bus
+     */
+    public int getDepthMillis() {
+        return mJitterBuffer.getQueuedMillis() + mSourceDepthMillis;
+    }
+
+    private synchronized void wake() {
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        while (mRunning) {
+            ByteBuffer chunk = mJitterBuffer.poll();
+            if (chunk == null) {
+                checkUnderruns(true);
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            if (chunk == JitterBuffer.END_OF_RESPONSE) {
+                finishResponse();
+                continue;
+            }
+            if (chunk == JitterBuffer.RESPONSE_ABORTED) {
+                dropResponse();
+                continue;
+            }
+            boolean first = mSource == null;
+            if (first) {
+                startSource();
+            }
+            mFramesWritten += chunk.remaining() / 2;
+            mSource.write(chunk, true);
+            if (first) {
+                // Whatever happened before the first write isn't the link's fault.
+                mLastUnderrunCount = mSource.getUnderruns();
+            }
+            checkUnderruns(false);
+        }
+        if (mSource != null) {
+            mSource.close();
+            mSource = null;
+        }
+    }
+
+    private void dropResponse() {
+        if (mSource != null) {
+            mSource.close();
+            mSource = null;
+        }
+        mSourceDepthMillis = 0;
+        Log.i(TAG, "response interrupted after " + mFramesWritten * 1000 / mSampleRate + " ms");
+        mFramesWritten = 0;
+    }
+
+    private void checkUnderruns(boolean waitingForAudio) {
+        if (mSource == null) {
+            return;
+        }
+        int underruns = mSource.getUnderruns();
+        if (underruns > mLastUnderrunCount) {
+            mJitterBuffer.onUnderrun(underruns - mLastUnderrunCount, waitingForAudio);
+            mLastUnderrunCount = underruns;
+        }
+        mSourceDepthMillis = mSource.getQueuedFrames() * 1000 / mSampleRate;
+    }
+
+    private void startSource() {
+        mSource = mMixBus.openSource("response", mSampleRate, mPriority, SOURCE_CAPACITY_MILLIS);
+        mFramesWritten = 0;
+        long now = SystemClock.elapsedRealtime();
+        long turnEndedAt = mTurnEndedAt;
+        long firstChunkAt = mFirstChunkAt;
+        mTimeToFirstAudioMillis = turnEndedAt != 0 ? now - turnEndedAt : -1;
+        Log.i(TAG, "time to first audio: " + mTimeToFirstAudioMillis + " ms after the turn" +
+                " ended, " + (firstChunkAt != 0 ? now - firstChunkAt : -1) +
+                " ms after the first chunk arrived (target depth: " +
+                mJitterBuffer.getTargetDepthMillis() + " ms)");
+    }
+
+    private void finishResponse() {
+        if (mSource == null) {
+            return;
+        }
+        // The source still plays out what it has, then leaves the bus.
+        mSource.end();
+        mSource = null;
+        mSourceDepthMillis = 0;
+        Log.i(TAG, "played " + mFramesWritten * 1000 / mSampleRate + " ms of response" +
+                ", target depth now " + mJitterBuffer.getTargetDepthMillis() + " ms" +
+                ", max queued: " + mJitterBuffer.getMaxQueuedMillis() + " ms" +
+                ", inter-arrival jitter: " +
+                Math.round(mJitterBuffer.getInterArrivalJitterMillis()) + " ms" +
+                ", underruns: " + mJitterBuffer.getUnderruns() +
+                ", late chunks: " + mJitterBuffer.getLateChunks() +
+                ", rebuffers: " + mJitterBuffer.getRebuffers());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory-mapped scratch file used as a ring buffer for audio that shouldn't sit on the Java
+ * heap. Data is copied in once, and handed out as direct slices of the mapping that can be
+ * written straight to an AudioTrack, so it never comes back onto the heap.
+ *
+ * The file is unlinked as soon as it's mapped, so nothing is left behind if the process dies.
+ * One thread appends, another releases slices, in the order they were appended.
+ *
+ * The file is mapped once, and every spill reuses that mapping, so create one for the whole
+ * session rather than one per response. Java has no way to unmap it: the mapping lives until
+ * the SpillFile and every slice handed out are garbage collected, even after {@link #close()}.
+ */
+public class SpillFile implements Closeable {
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMapping;
+    private final int mCapacity;
+
+    // Logical byte offsets, only ever growing. Written only by the appending thread.
+    private volatile long mWritten;
+    private final AtomicLong mReleased = new AtomicLong();
+
+    private volatile long mSpilledBytes;
+
+    /**
+     * @param file where to put the scratch file, anything already there is overwritten
+     * @param capacity how many bytes the file holds at once, rounded down to whole 16-bit
+     *   samples
+     */
+    public SpillFile(File file, int capacity) throws IOException {
+        mCapacity = capacity & ~1;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(mCapacity);
+            mMapping = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Copies the bytes between the position and limit of {@code data} into the file, and adds
+     * slices of the mapping holding them to {@code slices}: usually one, two when the data
+     * wraps around the end of the file. The position of {@code data} moves to its limit.
+     *
+     * @return false, with nothing copied, if there isn't room for all of it
+     */
+    public boolean append(ByteBuffer data, Queue<ByteBuffer> slices) {
+        int length = data.remaining();
+        if (mWritten + length - mReleased.get() > mCapacity) {
+            return false;
+        }
+        int limit = data.limit();
+        while (data.hasRemaining()) {
+            int offset = (int) (mWritten % mCapacity);
+            int part = Math.min(data.remaining(), mCapacity - offset);
+            ByteBuffer slice = mMapping.duplicate();
+            slice.limit(offset + part).position(offset);
+            slice = slice.slice();
+            data.limit(data.position() + part);
+            slice.put(data);
+            data.limit(limit);
+            slice.flip();
+            slices.add(slice);
+            mWritten += part;
+        }
+        mSpilledBytes += length;
+        return true;
+    }
+
+    /**
+     * Frees up the space of a slice once it's been played. Slices have to be released in the
+     * order they were appended.
+     */
+    public void release(ByteBuffer slice) {
+        mReleased.addAndGet(slice.capacity());
+    }
+
+    /**
+     * Frees up everything, e.g. after the slices were thrown away. Only call while nothing is
+     * being appended.
+     */
+    public void releaseAll() {
+        mReleased.set(mWritten);
+    }
+
+    /**
+     * @return how many bytes are in the file and not released yet
+     */
+    public int getUsedBytes() {
+        return (int) (mWritten - mReleased.get());
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return how many bytes have ever gone into the file
+     */
+    public long getSpilledBytes() {
+        return mSpilledBytes;
+    }
+
+    /**
+     * Closes the file. The mapping stays valid, so slices still held by a player can finish,
+     * and is only unmapped once it's been collected.
+     */
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free queue for exactly one producer thread and one consumer thread.
+ *
+ * The producer only writes the tail and the consumer only writes the head, so neither side
+ * ever waits on a lock. Capacity is rounded up to a power of two.
+ */
+public class SpscRing<T> {
+    private final Object[] mSlots;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile int mHighWaterMark;
+
+    public SpscRing(int capacity) {
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mSlots = new Object[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return false if the ring is full, in which case the item wasn't added
+     */
+    public boolean offer(T item) {
+        long tail = mTail.get();
+        int size = (int) (tail - mHead.get());
+        if (size >= mSlots.length) {
+            return false;
+        }
+        mSlots[(int) tail & mMask] = item;
+        mTail.lazySet(tail + 1);
+        if (size + 1 > mHighWaterMark) {
+            mHighWaterMark = size + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return the oldest item, or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long head = mHead.get();
+        if (head >= mTail.get()) {
+            return null;
+        }
+        int index = (int) head & mMask;
+        T item = (T) mSlots[index];
+        mSlots[index] = null;
+        mHead.lazySet(head + 1);
+        return item;
+    }
+
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * @return the most items that have been waiting in the ring at once
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+}
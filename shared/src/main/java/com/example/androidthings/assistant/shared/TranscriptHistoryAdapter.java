@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.ArrayDeque;
+
+/**
+ * The last few transcripts, oldest first, for a ListView.
+ *
+ * The history is a fixed size ring, so a device that has been up for weeks costs the main
+ * thread as much as one that just started. Transcripts can be added from any thread. They're
+ * handed to the main thread at most once per frame, however many arrive, and rows that still
+ * show the same transcript aren't rebound.
+ */
+public class TranscriptHistoryAdapter extends BaseAdapter {
+    // Roughly one frame at 60 Hz.
+    private static final long FRAME_MILLIS = 16;
+
+    private final LayoutInflater mInflater;
+    private final Handler mMainHandler;
+    private final String[] mTranscripts;
+    // Index of the oldest transcript and how many there are. Main thread only.
+    private int mOldest;
+    private int mCount;
+    // How many transcripts were ever shown, for the item ids. Main thread only.
+    private long mShownTotal;
+
+    // Transcripts waiting for the next frame, guarded by itself.
+    private final ArrayDeque<String> mPending = new ArrayDeque<>();
+    private boolean mFlushScheduled;
+    private long mLastFlushAt;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public TranscriptHistoryAdapter(Context context, Handler mainHandler, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mInflater = LayoutInflater.from(context);
+        mMainHandler = mainHandler;
+        mTranscripts = new String[capacity];
+    }
+
+    /**
+     * Adds a transcript to the history in the next frame. Can be called from any thread.
+     */
+    public void add(String transcript) {
+        synchronized (mPending) {
+            if (mPending.size() == mTranscripts.length) {
+                // It would scroll out of the history before anyone saw it.
+                mPending.removeFirst();
+            }
+            mPending.addLast(transcript);
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+            long flushAt = Math.max(SystemClock.uptimeMillis(), mLastFlushAt + FRAME_MILLIS);
+            mMainHandler.postAtTime(mFlush, flushAt);
+        }
+    }
+
+    private void flush() {
+        synchronized (mPending) {
+            mFlushScheduled = false;
+            mLastFlushAt = SystemClock.uptimeMillis();
+            String transcript;
+            while ((transcript = mPending.pollFirst()) != null) {
+                int index = (mOldest + mCount) % mTranscripts.length;
+                mTranscripts[index] = transcript;
+                if (mCount < mTranscripts.length) {
+                    mCount++;
+                } else {
+                    mOldest = (mOldest + 1) % mTranscripts.length;
+                }
+                mShownTotal++;
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Drops any transcripts that haven't been shown yet. Call from the main thread.
+     */
+    public void release() {
+        synchronized (mPending) {
+            mPending.clear();
+            mFlushScheduled = false;
+        }
+        mMainHandler.removeCallbacks(mFlush);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mTranscripts[(mOldest + position) % mTranscripts.length];
+    }
+
+    @Override
+    public long getItemId(int position) {
+        // Ids follow the transcript rather than the row, so they survive the ring moving on.
+        return mShownTotal - mCount + position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) mInflater.inflate(android.R.layout.simple_list_item_1, parent,
+                    false);
+        }
+        String transcript = getItem(position);
+        if (view.getTag() != transcript) {
+            // Only rebind rows that now show a different transcript.
+            view.setText(transcript);
+            view.setTag(transcript);
+        }
+        return view;
+    }
+}
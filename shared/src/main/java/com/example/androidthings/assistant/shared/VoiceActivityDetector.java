@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A cheap voice activity detector for 16-bit little endian mono PCM.
+ *
+ * Each block is classified by its energy compared to a running noise floor, with the zero
+ * crossing rate used to reject hiss that's only slightly above the floor. Speech has to last
+ * for the onset time before it counts, and it keeps counting for the hangover time after the
+ * last speech block so short pauses between words don't end the utterance.
+ *
+ * The noise floor follows the signal slowly even through speech. Real speech keeps pausing,
+ * which pulls the floor straight back down, but noise that rises and stays up is taken into
+ * the floor within seconds instead of counting as one endless utterance.
+ *
+ * Nothing is allocated per block, so it's safe to run on the capture thread.
+ */
+public class VoiceActivityDetector {
+    // Full scale 16-bit audio, 20 * log10(32768).
+    private static final double FULL_SCALE_DB = 90.309;
+    // Blocks quieter than this are never speech, however quiet the room is.
+    private static final double MIN_SPEECH_DBFS = -55;
+    // Above this zero crossing rate a block needs twice the margin to count as speech.
+    private static final double MAX_VOICED_ZCR = 0.35;
+    // How fast the noise floor follows the signal down and up.
+    private static final double NOISE_FALL_RATE = 0.2;
+    private static final double NOISE_RISE_RATE = 0.02;
+    // Time constant of the floor following a level that counts as speech the whole time.
+    private static final double SPEECH_FOLLOW_MILLIS = 8000;
+
+    private final int mSampleRate;
+    private final double mThresholdDb;
+    private final int mOnsetMillis;
+    private final int mHangoverMillis;
+
+    private double mNoiseFloorDb = Double.NaN;
+    private boolean mSpeaking;
+    private int mSpeechMillis;
+    private int mSilenceMillis;
+
+    private double mLastDbfs;
+    private double mLastZcr;
+
+    /**
+     * @param sampleRate the sample rate of the audio
+     * @param thresholdDb how far above the noise floor a block has to be to count as speech
+     * @param onsetMillis how much continuous speech starts an utterance
+     * @param hangoverMillis how much silence ends an utterance
+     */
+    public VoiceActivityDetector(int sampleRate, double thresholdDb, int onsetMillis,
+                                 int hangoverMillis) {
+        mSampleRate = sampleRate;
+        mThresholdDb = thresholdDb;
+        mOnsetMillis = onsetMillis;
+        mHangoverMillis = hangoverMillis;
+    }
+
+    /**
+     * Classifies the block between position and limit. The buffer's position isn't changed.
+     *
+     * @return true while an utterance is going on, including the hangover after it
+     */
+    public boolean process(ByteBuffer pcm) {
+        int start = pcm.position();
+        int samples = (pcm.limit() - start) / 2;
+        if (samples == 0) {
+            return mSpeaking;
+        }
+        double sumSquares = 0;
+        int crossings = 0;
+        int previous = 0;
+        for (int i = 0; i < samples; i++) {
+            int offset = start + i * 2;
+            int sample = (short) ((pcm.get(offset) & 0xff) | (pcm.get(offset + 1) << 8));
+            sumSquares += (double) sample * sample;
+            if (i > 0 && (sample ^ previous) < 0) {
+                crossings++;
+            }
+            previous = sample;
+        }
+        mLastDbfs = 10 * Math.log10(sumSquares / samples + 1) - FULL_SCALE_DB;
+        mLastZcr = (double) crossings / samples;
+        int blockMillis = samples * 1000 / mSampleRate;
+
+        if (Double.isNaN(mNoiseFloorDb)) {
+            mNoiseFloorDb = mLastDbfs;
+        }
+        double margin = mLastDbfs - mNoiseFloorDb;
+        boolean speechBlock = mLastDbfs > MIN_SPEECH_DBFS && (margin > mThresholdDb * 2 ||
+                (margin > mThresholdDb && mLastZcr < MAX_VOICED_ZCR));
+
+        if (speechBlock) {
+            mSpeechMillis += blockMillis;
+            mSilenceMillis = 0;
+            if (!mSpeaking && mSpeechMillis >= mOnsetMillis) {
+                mSpeaking = true;
+            }
+            mNoiseFloorDb += (mLastDbfs - mNoiseFloorDb)
+                    * Math.min(1, blockMillis / SPEECH_FOLLOW_MILLIS);
+        } else {
+            mSpeechMillis = 0;
+            mSilenceMillis += blockMillis;
+            if (mSpeaking && mSilenceMillis >= mHangoverMillis) {
+                mSpeaking = false;
+            }
+            double rate = mLastDbfs < mNoiseFloorDb ? NOISE_FALL_RATE : NOISE_RISE_RATE;
+            mNoiseFloorDb += (mLastDbfs - mNoiseFloorDb) * rate;
+        }
+        return mSpeaking;
+    }
+
+    public boolean isSpeaking() {
+        return mSpeaking;
+    }
+
+    /**
+     * Forgets the current utterance but keeps the learned noise floor.
+     */
+    public void reset() {
+        mSpeaking = false;
+        mSpeechMillis = 0;
+        mSilenceMillis = 0;
+    }
+
+    public double getNoiseFloorDbfs() {
+        return mNoiseFloorDb;
+    }
+
+    public double getLastDbfs() {
+        return mLastDbfs;
+    }
+
+    public double getLastZeroCrossingRate() {
+        return mLastZcr;
+    }
+}
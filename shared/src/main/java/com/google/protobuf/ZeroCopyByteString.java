@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.protobuf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The protobuf-lite runtime we get through grpc-protobuf-lite 1.2.0 is protobuf-lite 3.0.1,
+ * which predates UnsafeByteOperations, so this lives in the protobuf package to reach the
+ * package-private NioByteString constructor. That's an internal of 3.0.1, ZeroCopyByteStringTest
+ * fails if an upgrade removes it or starts copying. The returned ByteString shares the buffer's
+ * memory, so the buffer must not be modified while the ByteString is still in use.
+ */
+public final class ZeroCopyByteString {
+    private ZeroCopyByteString() {
+    }
+
+    /**
+     * Wraps the bytes between the buffer's position and limit without copying them.
+     */
+    public static ByteString wrap(ByteBuffer buffer) {
+        return new NioByteString(buffer);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveBatcherTest {
+    private static final int CHUNK_BYTES = 320;
+    private static final int CHUNK_MILLIS = 10;
+    private static final int MAX_CHUNKS = 8;
+    // As many as it takes to shrink by one chunk.
+    private static final int HEALTHY_RUN = 16;
+
+    private AdaptiveBatcher mBatcher;
+
+    @Before
+    public void setUp() {
+        mBatcher = new AdaptiveBatcher(CHUNK_BYTES, CHUNK_MILLIS, CHUNK_MILLIS,
+                CHUNK_MILLIS * MAX_CHUNKS);
+    }
+
+    private void sendHealthy(int messages) {
+        for (int i = 0; i < messages; i++) {
+            mBatcher.onMessageSent(mBatcher.getTargetBytes(), 0, 0);
+        }
+    }
+
+    private void sendBackedUp() {
+        mBatcher.onMessageSent(mBatcher.getTargetBytes(), 1, 0);
+    }
+
+    @Test
+    public void doublesWhileAudioIsPending() {
+        assertEquals(CHUNK_BYTES, mBatcher.getTargetBytes());
+        sendBackedUp();
+        assertEquals(2 * CHUNK_BYTES, mBatcher.getTargetBytes());
+        sendBackedUp();
+        assertEquals(4 * CHUNK_BYTES, mBatcher.getTargetBytes());
+        assertEquals(2, mBatcher.getGrowCount());
+    }
+
+    @Test
+    public void neverGrowsPastTheMaximum() {
+        for (int i = 0; i < 10; i++) {
+            sendBackedUp();
+        }
+        assertEquals(MAX_CHUNKS * CHUNK_BYTES, mBatcher.getTargetBytes());
+        assertEquals(mBatcher.getMaxFrameBytes(), mBatcher.getTargetBytes());
+        assertEquals(CHUNK_MILLIS * MAX_CHUNKS, mBatcher.getTargetFrameMillis());
+        // 1, 2, 4, 8.
+        assertEquals(3, mBatcher.getGrowCount());
+    }
+
+    @Test
+    public void growsOnceReadyWaitsStayLong() {
+        // A single slow wait is smoothed away.
+        mBatcher.onMessageSent(CHUNK_BYTES, 0, 100);
+        assertEquals(CHUNK_BYTES, mBatcher.getTargetBytes());
+        int messages = 1;
+        while (mBatcher.getTargetBytes() == CHUNK_BYTES && messages < 100) {
+            mBatcher.onMessageSent(CHUNK_BYTES, 0, 100);
+            messages++;
+        }
+        assertEquals(2 * CHUNK_BYTES, mBatcher.getTargetBytes());
+        // Takes the smoothed wait past 50 ms.
+        assertEquals(6, messages);
+    }
+
+    @Test
+    public void shrinksOneChunkPerHealthyRun() {
+        for (int i = 0; i < 3; i++) {
+            sendBackedUp();
+        }
+        sendHealthy(HEALTHY_RUN - 1);
+        assertEquals(MAX_CHUNKS * CHUNK_BYTES, mBatcher.getTargetBytes());
+        sendHealthy(1);
+        assertEquals((MAX_CHUNKS - 1) * CHUNK_BYTES, mBatcher.getTargetBytes());
+        assertEquals(1, mBatcher.getShrinkCount());
+
+        sendHealthy(HEALTHY_RUN * MAX_CHUNKS);
+        assertEquals(CHUNK_BYTES, mBatcher.getTargetBytes());
+        assertEquals(MAX_CHUNKS - 1, mBatcher.getShrinkCount());
+    }
+
+    @Test
+    public void backedUpMessageRestartsTheHealthyRun() {
+        for (int i = 0; i < 3; i++) {
+            sendBackedUp();
+        }
+        sendHealthy(HEALTHY_RUN - 1);
+        sendBackedUp();
+        sendHealthy(HEALTHY_RUN - 1);
+        assertEquals(MAX_CHUNKS * CHUNK_BYTES, mBatcher.getTargetBytes());
+        assertEquals(0, mBatcher.getShrinkCount());
+    }
+
+    @Test
+    public void resetStartsTheNextTurnSmall() {
+        for (int i = 0; i < 10; i++) {
+            mBatcher.onMessageSent(mBatcher.getTargetBytes(), 1, 500);
+        }
+        long messages = mBatcher.getMessageCount();
+        mBatcher.reset();
+        assertEquals(CHUNK_BYTES, mBatcher.getTargetBytes());
+        // The last turn's slow waits are forgotten too.
+        sendHealthy(1);
+        assertEquals(CHUNK_BYTES, mBatcher.getTargetBytes());
+        assertEquals(messages + 1, mBatcher.getMessageCount());
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes the calling thread allocates, for tests that check a loop doesn't allocate
+ * once it's warmed up. Needs a HotSpot JVM, which is what unit tests run on.
+ */
+class Allocations {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Allocations() {
+    }
+
+    /**
+     * @return how many bytes the calling thread has allocated so far
+     */
+    static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Runs {@code loop} once to warm it up, then again while counting.
+     *
+     * @return the bytes allocated by the second run
+     */
+    static long measure(Runnable loop) {
+        loop.run();
+        long before = allocatedBytes();
+        loop.run();
+        return allocatedBytes() - before;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AudioBufferPoolTest {
+    private static final int CHUNK_BYTES = 3200;
+    private static final int CYCLES = 10000;
+
+    @Test
+    public void reusesReleasedBuffers() {
+        AudioBufferPool pool = new AudioBufferPool(CHUNK_BYTES, 1);
+        ByteBuffer first = pool.acquire();
+        first.position(100);
+        pool.release(first);
+        ByteBuffer second = pool.acquire();
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(CHUNK_BYTES, second.limit());
+        assertEquals(0, pool.getAllocationCount());
+    }
+
+    @Test
+    public void allocatesOnlyWhenEmpty() {
+        AudioBufferPool pool = new AudioBufferPool(CHUNK_BYTES, 1);
+        pool.acquire();
+        ByteBuffer extra = pool.acquire();
+        assertEquals(CHUNK_BYTES, extra.capacity());
+        assertEquals(1, pool.getAllocationCount());
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        final AudioBufferPool pool = new AudioBufferPool(CHUNK_BYTES, 2);
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < CYCLES; i++) {
+                    ByteBuffer buffer = pool.acquire();
+                    buffer.put(0, (byte) i);
+                    pool.release(buffer);
+                }
+            }
+        });
+        assertEquals(0, pool.getAllocationCount());
+        // Not one buffer's worth over all the cycles.
+        assertTrue("allocated " + allocated + " bytes", allocated < CHUNK_BYTES);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class AudioCaptureTest {
+    // 10 ms.
+    private static final int CHUNK_BYTES = 320;
+    private static final int RING_CAPACITY = 4;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private FakeAudioRecord mRecord;
+    private AudioCapture mCapture;
+
+    @Before
+    public void setUp() {
+        mRecord = new FakeAudioRecord();
+        mCapture = new AudioCapture(mRecord, CHUNK_BYTES, RING_CAPACITY, 0);
+    }
+
+    @After
+    public void tearDown() {
+        mRecord.close();
+        mCapture.stop();
+    }
+
+    private ByteBuffer next() {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        ByteBuffer chunk;
+        while ((chunk = mCapture.poll()) == null) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("nothing published");
+            }
+            Thread.yield();
+        }
+        return chunk;
+    }
+
+    @Test
+    public void discardSkipsAnEndOfTurnStillWaitingForRoom() {
+        mCapture.beginTurn(0);
+        mCapture.start();
+        // Chunks 1 to 4 fill the ring, 5 is dropped.
+        mRecord.record(5);
+        mRecord.awaitReads(6);
+        mCapture.endTurn();
+        // So is 6, and then the turn closes with no room for its end.
+        mRecord.record(1);
+        mRecord.awaitReads(7);
+        assertEquals(2, mCapture.getOverrunCount());
+
+        // Barge-in: the consumer gives up on the turn and the next one starts.
+        mCapture.discardTurn();
+        mCapture.beginTurn(0);
+        // Chunk 7 is from between the turns, 8 is the first of the new one.
+        mRecord.record(2);
+        ByteBuffer chunk = next();
+        assertNotSame("the old turn's end came through", AudioCapture.END_OF_TURN, chunk);
+        assertEquals(8, chunk.get(0));
+        mCapture.release(chunk);
+
+        mRecord.awaitReads(9);
+        mCapture.endTurn();
+        mRecord.record(1);
+        chunk = next();
+        assertEquals(9, chunk.get(0));
+        mCapture.release(chunk);
+        assertSame(AudioCapture.END_OF_TURN, next());
+    }
+
+    @Test
+    public void discardKeepsTheNextTurnIfItHasAlreadyStarted() {
+        mCapture.beginTurn(0);
+        mCapture.start();
+        mRecord.record(1);
+        mCapture.release(next());
+        mRecord.awaitReads(2);
+        mCapture.endTurn();
+        mCapture.beginTurn(0);
+        // Chunk 2 is the end of the old turn, 3 the start of the new one. Both are in before
+        // the consumer gets around to discarding the old turn.
+        mRecord.record(2);
+        mRecord.awaitReads(4);
+        mCapture.discardTurn();
+
+        ByteBuffer chunk = next();
+        assertEquals(3, chunk.get(0));
+        mCapture.release(chunk);
+    }
+}
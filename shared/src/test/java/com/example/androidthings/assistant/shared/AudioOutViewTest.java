@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocation benchmark for taking AudioOut bytes out of a response: a read-only view of the
+ * message's bytes against the copy toByteArray() makes.
+ */
+public class AudioOutViewTest {
+    // What the Assistant sends per AudioOut message: 100 ms of 16 kHz LINEAR16.
+    private static final int AUDIO_OUT_BYTES = 3200;
+    private static final int CHUNKS = 1000;
+
+    /**
+     * @return the audio bytes the way they come out of a parsed response
+     */
+    private static ByteString parsedAudio() throws IOException {
+        byte[] audio = new byte[AUDIO_OUT_BYTES];
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (byte) i;
+        }
+        byte[] message = new byte[AUDIO_OUT_BYTES + 8];
+        CodedOutputStream out = CodedOutputStream.newInstance(message);
+        out.writeBytesNoTag(ByteString.copyFrom(audio));
+        return CodedInputStream.newInstance(message).readBytes();
+    }
+
+    private static long bytesPerChunk(final ByteString audio, final boolean view) {
+        final long[] sum = new long[1];
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < CHUNKS; i++) {
+                    ByteBuffer buffer = view ? audio.asReadOnlyByteBuffer()
+                            : ByteBuffer.wrap(audio.toByteArray());
+                    sum[0] += buffer.get(buffer.limit() - 1);
+                }
+            }
+        });
+        return allocated / CHUNKS;
+    }
+
+    @Test
+    public void viewHasTheSameBytes() throws IOException {
+        ByteString audio = parsedAudio();
+        ByteBuffer view = audio.asReadOnlyByteBuffer();
+        assertEquals(AUDIO_OUT_BYTES, view.remaining());
+        assertEquals(ByteBuffer.wrap(audio.toByteArray()), view);
+    }
+
+    @Test
+    public void viewDoesNotAllocateThePayload() throws IOException {
+        ByteString audio = parsedAudio();
+        long copy = bytesPerChunk(audio, false);
+        long view = bytesPerChunk(audio, true);
+        assertTrue("copy allocated " + copy + " bytes", copy >= AUDIO_OUT_BYTES);
+        assertTrue("view allocated " + view + " bytes", view < AUDIO_OUT_BYTES / 16);
+    }
+}
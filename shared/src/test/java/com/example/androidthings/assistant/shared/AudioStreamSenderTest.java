@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.assistant.embedded.v1alpha2.AudioInConfig;
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.grpc.stub.StreamObserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AudioStreamSenderTest {
+    private static final int CHUNK_BYTES = 320;
+    private static final int CHUNK_MILLIS = 10;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * An always ready request stream that keeps the number of every chunk sent on it.
+     */
+    private static class FakeCall implements StreamObserver<AssistRequest> {
+        final List<Integer> chunks = new ArrayList<>();
+        volatile boolean completed;
+
+        @Override
+        public synchronized void onNext(AssistRequest request) {
+            ByteString audio = request.getAudioIn();
+            for (int i = 0; i < audio.size(); i += CHUNK_BYTES) {
+                chunks.add((int) audio.byteAt(i));
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+        }
+
+        synchronized int sent() {
+            return chunks.size();
+        }
+    }
+
+    private FakeAudioRecord mRecord;
+    private AudioCapture mCapture;
+    private AudioStreamSender mSender;
+
+    @Before
+    public void setUp() {
+        mRecord = new FakeAudioRecord();
+        mCapture = new AudioCapture(mRecord, CHUNK_BYTES, 8, 0);
+        mSender = new AudioStreamSender(mCapture, new AdaptiveBatcher(CHUNK_BYTES, CHUNK_MILLIS,
+                CHUNK_MILLIS, CHUNK_MILLIS * 4), 4, PendingAudioQueue.OverflowPolicy.FAIL_TURN);
+    }
+
+    @After
+    public void tearDown() {
+        mSender.cancel();
+        mRecord.close();
+        mCapture.stop();
+    }
+
+    private static void awaitSent(FakeCall call, int chunks) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (call.sent() < chunks) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("only sent " + call.sent() + " chunks");
+            }
+            Thread.yield();
+        }
+    }
+
+    private static void awaitCompleted(FakeCall call) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!call.completed) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("never completed");
+            }
+            Thread.yield();
+        }
+    }
+
+    @Test
+    public void bargeInBeforeTheEndOfTurnIsPublished() {
+        FakeCall first = new FakeCall();
+        mSender.start(first, AudioInConfig.Encoding.LINEAR16);
+        mCapture.beginTurn(0);
+        mCapture.start();
+        mRecord.record(1);
+        awaitSent(first, 1);
+
+        // The turn ends, and the next one interrupts it before the capture thread has
+        // published the end.
+        mRecord.awaitReads(2);
+        mCapture.endTurn();
+        mSender.cancelTurn();
+        FakeCall second = new FakeCall();
+        mSender.start(second, AudioInConfig.Encoding.LINEAR16);
+        mCapture.beginTurn(0);
+        // Chunk 2 still belongs to the first turn.
+        mRecord.record(2);
+        mRecord.awaitReads(4);
+        mCapture.endTurn();
+        mRecord.record(1);
+
+        awaitCompleted(second);
+        assertEquals(Arrays.asList(3, 4), second.chunks);
+        assertFalse(first.completed);
+    }
+}
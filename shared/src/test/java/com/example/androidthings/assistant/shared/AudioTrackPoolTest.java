@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Soak tests the pool with fake tracks, counting every native track made and released.
+ */
+public class AudioTrackPoolTest {
+    // As many as a turn plays at once, so a turn never has to make one.
+    private static final int MAX_IDLE = 3;
+    private static final int TURNS = 5000;
+
+    private static class FakeTrack extends AudioTrack {
+        volatile boolean released;
+        volatile boolean broken;
+
+        FakeTrack() {
+            super(null, null, 0, AudioTrack.MODE_STREAM, 0);
+        }
+
+        @Override
+        public int getState() {
+            return broken || released ? STATE_UNINITIALIZED : STATE_INITIALIZED;
+        }
+
+        @Override
+        public void stop() {
+            if (released) {
+                throw new IllegalStateException("stopped after release");
+            }
+        }
+
+        @Override
+        public void release() {
+            if (released) {
+                throw new IllegalStateException("released twice");
+            }
+            released = true;
+        }
+    }
+
+    private final List<FakeTrack> mTracks = new ArrayList<>();
+    private final AudioFormat mFormat = new AudioFormat();
+    private AudioTrackPool mPool;
+
+    @Before
+    public void setUp() {
+        mPool = new AudioTrackPool(new AudioTrackPool.TrackFactory() {
+            @Override
+            public AudioTrack createTrack(AudioFormat format, AudioAttributes attributes) {
+                FakeTrack track = new FakeTrack();
+                synchronized (mTracks) {
+                    mTracks.add(track);
+                }
+                return track;
+            }
+        }, MAX_IDLE);
+    }
+
+    private int unreleasedTracks() {
+        int count = 0;
+        synchronized (mTracks) {
+            for (FakeTrack track : mTracks) {
+                if (!track.released) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void reusesRecycledTracks() {
+        AudioTrack first = mPool.lease(mFormat, null);
+        mPool.recycle(first);
+        assertSame(first, mPool.lease(mFormat, null));
+        assertEquals(1, mPool.getCreatedTracks());
+        assertEquals(1, mPool.getReusedLeases());
+    }
+
+    @Test
+    public void releaseWaitsForLeasedTracks() {
+        AudioTrack idle = mPool.lease(mFormat, null);
+        AudioTrack leased = mPool.lease(mFormat, null);
+        mPool.recycle(idle);
+        mPool.release();
+        assertTrue(((FakeTrack) idle).released);
+        // Still playing somewhere, it goes when it comes back.
+        assertFalse(((FakeTrack) leased).released);
+        mPool.recycle(leased);
+        assertTrue(((FakeTrack) leased).released);
+        assertNull(mPool.lease(mFormat, null));
+        assertEquals(0, mPool.getLiveTracks());
+    }
+
+    @Test
+    public void soakDoesNotLeakTracks() {
+        Random random = new Random(1);
+        List<AudioTrack> leased = new ArrayList<>();
+        for (int turn = 0; turn < TURNS; turn++) {
+            // A response, maybe speech over it, maybe a sound file too.
+            int tracks = 1 + random.nextInt(3);
+            for (int i = 0; i < tracks; i++) {
+                leased.add(mPool.lease(mFormat, null));
+            }
+            if (random.nextInt(100) == 0) {
+                // Now and then a track dies under us, e.g. the audio server restarted.
+                ((FakeTrack) leased.get(0)).broken = true;
+            }
+            for (AudioTrack track : leased) {
+                mPool.recycle(track);
+            }
+            leased.clear();
+            assertEquals(0, mPool.getLeasedTracks());
+            assertTrue(mPool.getLiveTracks() <= MAX_IDLE);
+            assertEquals(mPool.getLiveTracks(), unreleasedTracks());
+        }
+        // Creating a track is the slow part, nearly every lease should skip it.
+        assertTrue("created " + mPool.getCreatedTracks() + " tracks",
+                mPool.getCreatedTracks() < TURNS / 10);
+        mPool.release();
+        assertEquals(0, mPool.getLiveTracks());
+        assertEquals(0, unreleasedTracks());
+    }
+
+    @Test
+    public void concurrentSoakDoesNotLeakTracks() throws InterruptedException {
+        final int threads = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int turn = 0; turn < TURNS; turn++) {
+                            AudioTrack track = mPool.lease(mFormat, null);
+                            mPool.recycle(track);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(failure.get());
+        assertEquals(0, mPool.getLeasedTracks());
+        assertEquals(mPool.getLiveTracks(), unreleasedTracks());
+        assertTrue(mPool.getLiveTracks() <= MAX_IDLE);
+        mPool.release();
+        assertEquals(0, unreleasedTracks());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EchoSuppressorTest {
+    // 3 s of 16 kHz stereo PCM: the left channel is what the speaker played, the right what
+    // the mic heard. The echo comes back 40 ms late through a short room response, over a
+    // little noise. From 2.0 to 2.5 s someone talks over the playback, loudly.
+    private static final String FIXTURE = "echo-16k-stereo.pcm";
+    private static final int SAMPLE_RATE = 16000;
+    private static final int DOUBLE_TALK_START = SAMPLE_RATE * 2;
+    private static final int DOUBLE_TALK_END = SAMPLE_RATE * 5 / 2;
+    // The app's settings.
+    private static final int BLOCK_SAMPLES = 128;
+    private static final int FILTER_MILLIS = 32;
+    private static final int MAX_DELAY_MILLIS = 500;
+
+    private short[] mFar;
+    private short[] mMic;
+    private short[] mOut;
+    private EchoSuppressor mSuppressor;
+
+    @Before
+    public void setUp() throws IOException {
+        ByteBuffer fixture = ByteBuffer.wrap(Mp3FrameParserTest.readFixture(FIXTURE))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int samples = fixture.remaining() / 4;
+        mFar = new short[samples];
+        mMic = new short[samples];
+        mOut = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            mFar[i] = fixture.getShort();
+            mMic[i] = fixture.getShort();
+        }
+        mSuppressor = new EchoSuppressor(SAMPLE_RATE, BLOCK_SAMPLES, FILTER_MILLIS,
+                MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * Plays and records the fixture in lockstep, a block at a time, up to {@code end}.
+     */
+    private void run(int start, int end) {
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int offset = start; offset < end; offset += BLOCK_SAMPLES) {
+            mSuppressor.offerReference(mFar, offset, BLOCK_SAMPLES);
+            block.clear();
+            for (int i = 0; i < BLOCK_SAMPLES; i++) {
+                block.putShort(mMic[offset + i]);
+            }
+            block.flip();
+            mSuppressor.process(block);
+            for (int i = 0; i < BLOCK_SAMPLES; i++) {
+                mOut[offset + i] = block.getShort(i * 2);
+            }
+        }
+    }
+
+    /**
+     * @return how much quieter the output is than the mic between two points, in dB
+     */
+    private double attenuationDb(int start, int end) {
+        double mic = 0;
+        double out = 0;
+        for (int i = start; i < end; i++) {
+            mic += (double) mMic[i] * mMic[i];
+            out += (double) mOut[i] * mOut[i];
+        }
+        return 10 * Math.log10(mic / out);
+    }
+
+    @Test
+    public void learnsTheEchoPath() {
+        run(0, DOUBLE_TALK_START);
+        assertEquals(40, mSuppressor.getDelayMillis(), BLOCK_SAMPLES * 1000 / SAMPLE_RATE);
+        // Counts the time it took to learn too.
+        assertTrue("attenuation " + mSuppressor.getAttenuationDb(),
+                mSuppressor.getAttenuationDb() >= 6);
+        double learned = attenuationDb(DOUBLE_TALK_START - SAMPLE_RATE / 2, DOUBLE_TALK_START);
+        assertTrue("attenuation " + learned, learned >= 15);
+        assertEquals(0, mSuppressor.getDoubleTalkBlocks());
+    }
+
+    @Test
+    public void holdsAdaptationDuringDoubleTalk() {
+        run(0, DOUBLE_TALK_START);
+        double before = attenuationDb(DOUBLE_TALK_START - SAMPLE_RATE / 4, DOUBLE_TALK_START);
+        run(DOUBLE_TALK_START, mFar.length);
+        long doubleTalkBlocks = mSuppressor.getDoubleTalkBlocks();
+        assertTrue("double talk blocks " + doubleTalkBlocks, doubleTalkBlocks
+                >= (DOUBLE_TALK_END - DOUBLE_TALK_START) / BLOCK_SAMPLES / 4);
+        // Had the filter learned from the talker, the echo would be back once they stop.
+        double after = attenuationDb(DOUBLE_TALK_END + SAMPLE_RATE / 8, mFar.length);
+        assertTrue("attenuation " + before + " dB before, " + after + " dB after",
+                after >= before - 3);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.media.AudioRecord;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A microphone the test lets through one chunk at a time. Every byte of a chunk is its number,
+ * counting from 1, so the test can tell which chunks made it where.
+ */
+class FakeAudioRecord extends AudioRecord {
+    static final int SAMPLE_RATE = 16000;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final Semaphore mPermits = new Semaphore(0);
+    private final AtomicInteger mReads = new AtomicInteger();
+    private volatile boolean mClosed;
+    // Only touched by the capture thread.
+    private int mChunks;
+
+    FakeAudioRecord() {
+        super(0, SAMPLE_RATE, 0, 0, 0);
+    }
+
+    /**
+     * Lets the capture thread read this many more chunks.
+     */
+    void record(int chunks) {
+        mPermits.release(chunks);
+    }
+
+    /**
+     * Waits until the capture thread has started this many reads, so everything it does
+     * between reads is done for the ones before.
+     */
+    void awaitReads(int reads) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mReads.get() < reads) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("capture thread stuck after " + mReads.get() + " reads");
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Fails every read from now on, so the capture thread can be stopped.
+     */
+    void close() {
+        mClosed = true;
+        mPermits.release(Integer.MAX_VALUE / 2);
+    }
+
+    @Override
+    public void startRecording() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public int getSampleRate() {
+        return SAMPLE_RATE;
+    }
+
+    @Override
+    public int read(ByteBuffer audioBuffer, int sizeInBytes, int readMode) {
+        mReads.incrementAndGet();
+        try {
+            if (!mPermits.tryAcquire(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) || mClosed) {
+                return -1;
+            }
+        } catch (InterruptedException e) {
+            return -1;
+        }
+        byte number = (byte) ++mChunks;
+        for (int i = 0; i < sizeInBytes; i++) {
+            audioBuffer.put(i, number);
+        }
+        return sizeInBytes;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import org.jflac.FLACDecoder;
+import org.jflac.PCMProcessor;
+import org.jflac.metadata.StreamInfo;
+import org.jflac.util.ByteData;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips through jflac as the reference decoder, the server's decoder is just as strict
+ * about CRCs and sample numbers.
+ */
+public class FlacEncoderTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int CHUNK_SAMPLES = 512;
+
+    /**
+     * Speech-ish test signal: a few harmonics with a moving pitch, pauses, and noise.
+     */
+    private static short[] speechLike(int samples, long seed) {
+        Random random = new Random(seed);
+        short[] pcm = new short[samples];
+        double phase = 0;
+        for (int i = 0; i < samples; i++) {
+            double pitch = 120 + 40 * Math.sin(2 * Math.PI * i / SAMPLE_RATE);
+            phase += 2 * Math.PI * pitch / SAMPLE_RATE;
+            double envelope = (i / (SAMPLE_RATE / 4)) % 3 == 2 ? 0 : 6000;
+            double value = envelope * (Math.sin(phase) + 0.5 * Math.sin(3 * phase)
+                    + 0.25 * Math.sin(7 * phase)) + random.nextGaussian() * 50;
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+        return pcm;
+    }
+
+    private static ByteBuffer toPcm(short[] samples, int from, int count) {
+        ByteBuffer pcm = ByteBuffer.allocate(count * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; i++) {
+            pcm.putShort(samples[from + i]);
+        }
+        pcm.flip();
+        return pcm;
+    }
+
+    private static byte[] encode(FlacEncoder encoder, short[] samples, int chunkSamples) {
+        ByteArrayOutputStream flac = new ByteArrayOutputStream();
+        ByteBuffer out = ByteBuffer.allocate(FlacEncoder.STREAM_HEADER_BYTES
+                + encoder.getMaxEncodedBytes(chunkSamples * 2));
+        encoder.writeStreamHeader(out);
+        flac.write(out.array(), 0, out.position());
+        for (int i = 0; i < samples.length; i += chunkSamples) {
+            out.clear();
+            ByteBuffer pcm = toPcm(samples, i, Math.min(chunkSamples, samples.length - i));
+            int written = encoder.encode(pcm, out);
+            assertEquals(out.position(), written);
+            assertTrue(written <= encoder.getMaxEncodedBytes(pcm.remaining()));
+            flac.write(out.array(), 0, written);
+        }
+        return flac.toByteArray();
+    }
+
+    /**
+     * Decodes with jflac, failing on any bad frame.
+     */
+    static short[] decode(byte[] flac) throws IOException {
+        final ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        final int[] sampleRate = new int[1];
+        FLACDecoder decoder = new FLACDecoder(new ByteArrayInputStream(flac));
+        decoder.addPCMProcessor(new PCMProcessor() {
+            @Override
+            public void processStreamInfo(StreamInfo streamInfo) {
+                sampleRate[0] = streamInfo.getSampleRate();
+                assertEquals(1, streamInfo.getChannels());
+                assertEquals(16, streamInfo.getBitsPerSample());
+            }
+
+            @Override
+            public void processPCM(ByteData data) {
+                pcm.write(data.getData(), 0, data.getLen());
+            }
+        });
+        decoder.decode();
+        assertEquals(0, decoder.getBadFrames());
+        assertEquals(SAMPLE_RATE, sampleRate[0]);
+        ByteBuffer bytes = ByteBuffer.wrap(pcm.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        short[] samples = new short[bytes.remaining() / 2];
+        bytes.asShortBuffer().get(samples);
+        return samples;
+    }
+
+    private static void assertRoundTrip(short[] samples) throws IOException {
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, CHUNK_SAMPLES);
+        assertArrayEquals(samples, decode(encode(encoder, samples, CHUNK_SAMPLES)));
+    }
+
+    @Test
+    public void roundTripsSpeech() throws IOException {
+        assertRoundTrip(speechLike(SAMPLE_RATE * 3, 1));
+    }
+
+    @Test
+    public void roundTripsSilence() throws IOException {
+        assertRoundTrip(new short[SAMPLE_RATE]);
+    }
+
+    @Test
+    public void roundTripsFullScaleNoise() throws IOException {
+        // Incompressible, so every frame falls back to verbatim.
+        Random random = new Random(2);
+        short[] samples = new short[SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        assertRoundTrip(samples);
+    }
+
+    @Test
+    public void roundTripsOddChunkSizes() throws IOException {
+        short[] samples = speechLike(SAMPLE_RATE, 3);
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, CHUNK_SAMPLES);
+        // Longer than a block, so chunks get split, and not a multiple of it.
+        assertArrayEquals(samples, decode(encode(encoder, samples, CHUNK_SAMPLES * 2 + 17)));
+    }
+
+    @Test
+    public void startsEveryStreamAtSampleZero() throws IOException {
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, CHUNK_SAMPLES);
+        encode(encoder, speechLike(SAMPLE_RATE, 4), CHUNK_SAMPLES);
+        short[] second = speechLike(SAMPLE_RATE, 5);
+        assertArrayEquals(second, decode(encode(encoder, second, CHUNK_SAMPLES)));
+    }
+
+    @Test
+    public void compressesSpeech() {
+        short[] samples = speechLike(SAMPLE_RATE * 3, 6);
+        byte[] flac = encode(new FlacEncoder(SAMPLE_RATE, CHUNK_SAMPLES), samples,
+                CHUNK_SAMPLES);
+        assertTrue("FLAC took " + flac.length + " bytes", flac.length < samples.length * 2 * 0.7);
+    }
+
+    /**
+     * Not a strict benchmark, but the encoder runs on every capture chunk, so it has to stay far
+     * ahead of real time even on a slow board.
+     */
+    @Test
+    public void encodesFarFasterThanRealTime() {
+        short[] samples = speechLike(SAMPLE_RATE * 10, 7);
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, CHUNK_SAMPLES);
+        ByteBuffer pcm = toPcm(samples, 0, samples.length);
+        ByteBuffer out = ByteBuffer.allocateDirect(encoder.getMaxEncodedBytes(pcm.remaining()));
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 10; run++) {
+            out.clear();
+            long start = System.nanoTime();
+            encoder.encode(pcm, out);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double realTime = samples.length * 1e9 / SAMPLE_RATE / best;
+        assertTrue("only " + realTime + "x real time", realTime > 50);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class JitterBufferTest {
+    private static final int SAMPLE_RATE = 16000;
+    // 20 ms of audio.
+    private static final int CHUNK_BYTES = 640;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    // No prebuffer, so every poll hands out whatever is queued.
+    private final JitterBuffer mBuffer = new JitterBuffer(SAMPLE_RATE, 0, 0);
+    private SpillFile mSpillFile;
+
+    @After
+    public void tearDown() throws IOException {
+        if (mSpillFile != null) {
+            mSpillFile.close();
+        }
+    }
+
+    private static ByteBuffer chunk(int tag) {
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+        chunk.put(0, (byte) tag);
+        return chunk;
+    }
+
+    @Test
+    public void abortKeepsTheNextResponse() {
+        for (int i = 0; i < 3; i++) {
+            mBuffer.offer(chunk(1));
+        }
+        mBuffer.endResponse();
+        mBuffer.offer(chunk(2));
+        // The next response arrives before the player gets round to the abort.
+        mBuffer.abortResponse();
+        mBuffer.offer(chunk(3));
+        mBuffer.offer(chunk(3));
+        mBuffer.endResponse();
+
+        assertSame(JitterBuffer.RESPONSE_ABORTED, mBuffer.poll());
+        assertEquals(40, mBuffer.getQueuedMillis());
+        assertEquals(3, mBuffer.poll().get(0));
+        assertEquals(3, mBuffer.poll().get(0));
+        assertSame(JitterBuffer.END_OF_RESPONSE, mBuffer.poll());
+        assertEquals(null, mBuffer.poll());
+        assertEquals(0, mBuffer.getQueuedMillis());
+        assertEquals(0, mBuffer.getHeapQueuedBytes());
+    }
+
+    @Test
+    public void abortReleasesSpilledAudio() throws IOException {
+        mSpillFile = new SpillFile(mFolder.newFile(), CHUNK_BYTES * 4);
+        mBuffer.setSpillFile(mSpillFile, 0);
+        for (int i = 0; i < 4; i++) {
+            mBuffer.offer(chunk(1));
+        }
+        assertEquals(CHUNK_BYTES * 4, mSpillFile.getUsedBytes());
+        mBuffer.abortResponse();
+
+        assertSame(JitterBuffer.RESPONSE_ABORTED, mBuffer.poll());
+        assertEquals(0, mSpillFile.getUsedBytes());
+        // The room is there again for the next response.
+        mBuffer.offer(chunk(2));
+        assertEquals(CHUNK_BYTES, mSpillFile.getUsedBytes());
+        assertEquals(2, mBuffer.poll().get(0));
+    }
+
+    @Test
+    public void abortForgetsTheStarvedResponse() {
+        mBuffer.offer(chunk(1));
+        mBuffer.poll();
+        // The track ran dry waiting for the rest of the response.
+        mBuffer.onUnderrun(1, true);
+        mBuffer.abortResponse();
+        assertSame(JitterBuffer.RESPONSE_ABORTED, mBuffer.poll());
+
+        mBuffer.offer(chunk(2));
+        assertEquals(0, mBuffer.getLateChunks());
+    }
+}
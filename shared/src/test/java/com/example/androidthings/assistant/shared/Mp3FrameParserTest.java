@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Mp3FrameParserTest {
+    // 3 s of speech-like audio, 16 kHz mono at 32 kbps: 86 frames of 144 bytes.
+    static final String FIXTURE = "speech-16k-mono.mp3";
+    private static final int FIXTURE_FRAMES = 86;
+    private static final int FRAME_SAMPLES = 576;
+
+    static byte[] readFixture(String name) throws IOException {
+        InputStream in = Mp3FrameParserTest.class.getClassLoader().getResourceAsStream(name);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static class Frames implements Mp3FrameParser.Listener {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int count;
+
+        @Override
+        public void onFrame(ByteBuffer frame, int sampleRate, int channelCount) {
+            assertEquals(16000, sampleRate);
+            assertEquals(1, channelCount);
+            bytes.write(frame.array(), frame.position(), frame.remaining());
+            count++;
+        }
+    }
+
+    private static Frames parse(byte[] stream, int pieceBytes) {
+        Mp3FrameParser parser = new Mp3FrameParser();
+        Frames frames = new Frames();
+        for (int i = 0; i < stream.length; i += pieceBytes) {
+            parser.push(ByteBuffer.wrap(stream, i, Math.min(pieceBytes, stream.length - i)),
+                    frames);
+        }
+        return frames;
+    }
+
+    @Test
+    public void findsEveryFrame() throws IOException {
+        byte[] mp3 = readFixture(FIXTURE);
+        Frames frames = parse(mp3, mp3.length);
+        assertEquals(FIXTURE_FRAMES, frames.count);
+        assertArrayEquals(mp3, frames.bytes.toByteArray());
+    }
+
+    @Test
+    public void findsTheSameFramesInAnyPieces() throws IOException {
+        byte[] mp3 = readFixture(FIXTURE);
+        for (int pieceBytes : new int[] {1, 3, 143, 145, 1000}) {
+            assertArrayEquals("pieces of " + pieceBytes, mp3,
+                    parse(mp3, pieceBytes).bytes.toByteArray());
+        }
+    }
+
+    @Test
+    public void skipsId3TagAndGarbage() throws IOException {
+        byte[] mp3 = readFixture(FIXTURE);
+        // A 20 byte ID3v2.4 tag, then a few bytes of junk in the middle of the stream.
+        byte[] tag = new byte[10 + 20];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 4;
+        tag[9] = 20;
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(tag);
+        stream.write(mp3, 0, 144 * 10);
+        stream.write(new byte[] {1, 2, 3, (byte) 0xff, 0});
+        stream.write(mp3, 144 * 10, mp3.length - 144 * 10);
+        Mp3FrameParser parser = new Mp3FrameParser();
+        Frames frames = new Frames();
+        parser.push(ByteBuffer.wrap(stream.toByteArray()), frames);
+        assertArrayEquals(mp3, frames.bytes.toByteArray());
+        assertEquals(5, parser.getSkippedGarbage());
+    }
+
+    /**
+     * The bandwidth half of the MP3 against LINEAR16 comparison, the decoder's CPU cost is
+     * measured on a device by MediaCodecMp3DecoderBenchmark.
+     */
+    @Test
+    public void mp3IsAFractionOfPcm() throws IOException {
+        byte[] mp3 = readFixture(FIXTURE);
+        long pcmBytes = (long) FIXTURE_FRAMES * FRAME_SAMPLES * 2;
+        long start = System.nanoTime();
+        for (int run = 0; run < 100; run++) {
+            parse(mp3, 1600);
+        }
+        long parseMicrosPerSecond = (System.nanoTime() - start) / 100 / 1000
+                * 16000 / (FIXTURE_FRAMES * FRAME_SAMPLES);
+        assertTrue(mp3.length + " bytes for " + pcmBytes + " bytes of PCM",
+                pcmBytes >= mp3.length * 7L);
+        // Framing only looks at headers, it should be lost in the noise next to decoding.
+        assertTrue("framing took " + parseMicrosPerSecond + " us per second of audio",
+                parseMicrosPerSecond < 10000);
+    }
+}
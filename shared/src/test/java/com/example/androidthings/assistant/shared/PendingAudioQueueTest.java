@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PendingAudioQueueTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int CHUNK_SAMPLES = 512;
+
+    private static ByteBuffer bytes(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length);
+        for (int value : values) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] drain(PendingAudioQueue queue) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer entry;
+        while ((entry = queue.peek()) != null) {
+            out.write(entry.array(), entry.position(), entry.remaining());
+            queue.remove();
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void dropOldestDropsTheOldestEntry() {
+        PendingAudioQueue queue =
+                new PendingAudioQueue(2, 4, PendingAudioQueue.OverflowPolicy.DROP_OLDEST);
+        queue.add(bytes(1, 2));
+        queue.add(bytes(3, 4));
+        queue.add(bytes(5, 6));
+        assertArrayEquals(new byte[] {3, 4, 5, 6}, drain(queue));
+        assertEquals(1, queue.getDroppedEntries());
+        assertEquals(2, queue.getDroppedBytes());
+    }
+
+    @Test
+    public void coalesceAppendsUntilFull() {
+        PendingAudioQueue queue =
+                new PendingAudioQueue(2, 4, PendingAudioQueue.OverflowPolicy.COALESCE);
+        queue.add(bytes(1, 2));
+        queue.add(bytes(3, 4));
+        queue.add(bytes(5, 6));
+        assertEquals(2, queue.size());
+        queue.add(bytes(7, 8));
+        assertEquals(2, queue.getCoalescedChunks());
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, drain(queue));
+    }
+
+    @Test
+    public void failTurnRefusesOnceFull() {
+        PendingAudioQueue queue =
+                new PendingAudioQueue(2, 4, PendingAudioQueue.OverflowPolicy.FAIL_TURN);
+        assertTrue(queue.add(bytes(1)));
+        assertTrue(queue.add(bytes(2)));
+        assertFalse(queue.add(bytes(3)));
+    }
+
+    @Test
+    public void keepsPinnedBytesInFrontOfTheOldestAudio() {
+        PendingAudioQueue queue =
+                new PendingAudioQueue(2, 4, PendingAudioQueue.OverflowPolicy.DROP_OLDEST);
+        queue.add(bytes(9, 1), 1);
+        queue.add(bytes(2));
+        queue.add(bytes(3));
+        queue.add(bytes(4, 5));
+        assertArrayEquals(new byte[] {9, 3, 4, 5}, drain(queue));
+        assertEquals(2, queue.getDroppedBytes());
+    }
+
+    @Test
+    public void keepsPinnedBytesWhenTheNextEntryIsFull() {
+        PendingAudioQueue queue =
+                new PendingAudioQueue(2, 4, PendingAudioQueue.OverflowPolicy.COALESCE);
+        queue.add(bytes(9, 1), 1);
+        queue.add(bytes(2, 3, 4, 5));
+        queue.add(bytes(6));
+        assertArrayEquals(new byte[] {9, 6}, drain(queue));
+        assertEquals(5, queue.getDroppedBytes());
+    }
+
+    /**
+     * A stall long enough to overflow the queue right after the stream header is queued, the
+     * way a turn starts while the call is still being set up.
+     */
+    private static void assertStallStillDecodes(PendingAudioQueue.OverflowPolicy policy)
+            throws IOException {
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, CHUNK_SAMPLES);
+        int entryBytes = FlacEncoder.STREAM_HEADER_BYTES
+                + encoder.getMaxEncodedBytes(CHUNK_SAMPLES * 2);
+        PendingAudioQueue queue = new PendingAudioQueue(4, entryBytes, policy);
+        ByteBuffer batch = ByteBuffer.allocate(entryBytes);
+        ByteBuffer pcm = ByteBuffer.allocate(CHUNK_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+        short[] samples = new short[CHUNK_SAMPLES * 40];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (8000 * Math.sin(i * 0.05) + i % 7);
+        }
+        for (int chunk = 0; chunk * CHUNK_SAMPLES < samples.length; chunk++) {
+            batch.clear();
+            int pinned = 0;
+            if (chunk == 0) {
+                encoder.writeStreamHeader(batch);
+                pinned = FlacEncoder.STREAM_HEADER_BYTES;
+            }
+            pcm.clear();
+            for (int i = 0; i < CHUNK_SAMPLES; i++) {
+                pcm.putShort(samples[chunk * CHUNK_SAMPLES + i]);
+            }
+            pcm.flip();
+            encoder.encode(pcm, batch);
+            batch.flip();
+            assertTrue(queue.add(batch, pinned));
+        }
+        assertTrue(queue.getDroppedEntries() > 0);
+
+        short[] decoded = FlacEncoderTest.decode(drain(queue));
+        assertTrue(decoded.length > 0);
+        // Only the oldest audio went, what's left is the end of the turn.
+        assertArrayEquals(Arrays.copyOfRange(samples, samples.length - decoded.length,
+                samples.length), decoded);
+    }
+
+    @Test
+    public void flacStreamSurvivesDropOldest() throws IOException {
+        assertStallStillDecodes(PendingAudioQueue.OverflowPolicy.DROP_OLDEST);
+    }
+
+    @Test
+    public void flacStreamSurvivesCoalesce() throws IOException {
+        assertStallStillDecodes(PendingAudioQueue.OverflowPolicy.COALESCE);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpscRingTest {
+    private static final int ITEMS = 1000000;
+
+    @Test
+    public void roundsCapacityUpToAPowerOfTwo() {
+        assertEquals(1, new SpscRing<Integer>(1).capacity());
+        assertEquals(2, new SpscRing<Integer>(2).capacity());
+        assertEquals(4, new SpscRing<Integer>(3).capacity());
+        assertEquals(8, new SpscRing<Integer>(5).capacity());
+        assertEquals(8, new SpscRing<Integer>(8).capacity());
+        assertEquals(1024, new SpscRing<Integer>(1000).capacity());
+    }
+
+    @Test
+    public void emptyRingPollsNull() {
+        SpscRing<Integer> ring = new SpscRing<>(4);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        ring.offer(1);
+        assertEquals(1, (int) ring.poll());
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void fullRingRefusesUntilPolled() {
+        SpscRing<Integer> ring = new SpscRing<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+        assertEquals(0, (int) ring.poll());
+        assertTrue(ring.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, (int) ring.poll());
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void keepsOrderWrappingAroundPastCapacity() {
+        SpscRing<Integer> ring = new SpscRing<>(4);
+        int next = 0;
+        for (int i = 0; i < 3; i++) {
+            ring.offer(next++);
+        }
+        // Every slot is reused many times over, with three items always in flight.
+        for (int expected = 0; expected < 1000; expected++) {
+            assertTrue(ring.offer(next++));
+            assertEquals(expected, (int) ring.poll());
+            assertEquals(3, ring.size());
+        }
+    }
+
+    @Test
+    public void highWaterMarkKeepsTheMostWaiting() {
+        SpscRing<Integer> ring = new SpscRing<>(4);
+        assertEquals(0, ring.getHighWaterMark());
+        ring.offer(1);
+        ring.offer(2);
+        ring.offer(3);
+        ring.poll();
+        ring.poll();
+        ring.offer(4);
+        assertEquals(3, ring.getHighWaterMark());
+        ring.offer(5);
+        ring.offer(6);
+        // Refused, so it never counted.
+        ring.offer(7);
+        assertEquals(4, ring.getHighWaterMark());
+    }
+
+    @Test
+    public void producerAndConsumerThreadsLoseNothing() throws InterruptedException {
+        final SpscRing<Integer> ring = new SpscRing<>(64);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITEMS; i++) {
+                    while (!ring.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        int expected = 0;
+        while (expected < ITEMS) {
+            Integer item = ring.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected++, (int) item);
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.getHighWaterMark() <= ring.capacity());
+    }
+}
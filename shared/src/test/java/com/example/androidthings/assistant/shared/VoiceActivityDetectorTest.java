@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VoiceActivityDetectorTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BLOCK_SAMPLES = 512;
+    private static final int BLOCK_MILLIS = BLOCK_SAMPLES * 1000 / SAMPLE_RATE;
+
+    private final ByteBuffer mBlock =
+            ByteBuffer.allocate(BLOCK_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+    private final Random mRandom = new Random(1);
+    private VoiceActivityDetector mVad;
+    private long mSample;
+
+    @Before
+    public void setUp() {
+        mVad = new VoiceActivityDetector(SAMPLE_RATE, 9, 64, 800);
+        // A quiet room to learn the floor from.
+        feed(2000, 0);
+    }
+
+    /**
+     * Feeds a low tone of the given amplitude over light noise.
+     *
+     * @return true if every block after the first onset counted as speech
+     */
+    private boolean feed(int millis, int amplitude) {
+        boolean started = false;
+        boolean held = true;
+        for (int elapsed = 0; elapsed < millis; elapsed += BLOCK_MILLIS) {
+            mBlock.clear();
+            for (int i = 0; i < BLOCK_SAMPLES; i++, mSample++) {
+                double tone = amplitude * Math.sin(2 * Math.PI * 200 * mSample / SAMPLE_RATE);
+                mBlock.putShort((short) (tone + mRandom.nextGaussian() * 30));
+            }
+            mBlock.flip();
+            boolean speaking = mVad.process(mBlock);
+            started |= speaking;
+            held &= !started || speaking;
+        }
+        return started && held;
+    }
+
+    @Test
+    public void holdsThroughPausesBetweenWords() {
+        feed(400, 3000);
+        assertTrue(mVad.isSpeaking());
+        for (int word = 0; word < 50; word++) {
+            assertTrue("lost speech at word " + word, feed(200, 0) && feed(400, 3000));
+        }
+    }
+
+    @Test
+    public void sustainedNoiseStopsCountingAsSpeech() {
+        feed(1000, 3000);
+        assertTrue(mVad.isSpeaking());
+        // A fan that comes on and stays on is speech at first, but not for long.
+        feed(30000, 3000);
+        assertFalse(mVad.isSpeaking());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.protobuf;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ZeroCopyByteString reaches into protobuf-lite 3.0.1 internals, these fail if an upgrade
+ * takes them away or makes them copy.
+ */
+public class ZeroCopyByteStringTest {
+    private static ByteBuffer directBuffer(byte... bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.clear();
+        return buffer;
+    }
+
+    @Test
+    public void wrapsPositionToLimit() {
+        ByteBuffer buffer = directBuffer((byte) 1, (byte) 2, (byte) 3, (byte) 4, (byte) 5);
+        buffer.position(1);
+        buffer.limit(4);
+        ByteString bytes = ZeroCopyByteString.wrap(buffer);
+        assertEquals(3, bytes.size());
+        assertArrayEquals(new byte[] {2, 3, 4}, bytes.toByteArray());
+        // The buffer itself is left alone.
+        assertEquals(1, buffer.position());
+        assertEquals(4, buffer.limit());
+    }
+
+    @Test
+    public void sharesTheBuffersMemory() {
+        ByteBuffer buffer = directBuffer((byte) 1, (byte) 2, (byte) 3);
+        ByteString bytes = ZeroCopyByteString.wrap(buffer);
+        buffer.put(1, (byte) 42);
+        assertEquals(42, bytes.byteAt(1));
+    }
+
+    @Test
+    public void serializesTheWrappedBytes() throws IOException {
+        ByteBuffer buffer = directBuffer((byte) 7, (byte) 8, (byte) 9);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZeroCopyByteString.wrap(buffer).writeTo(out);
+        assertArrayEquals(new byte[] {7, 8, 9}, out.toByteArray());
+    }
+}
@@ -10,6 +10,7 @@ import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.UtteranceProgressListener;
 import android.util.Log;
@@ -17,11 +18,14 @@ import android.widget.ArrayAdapter;
 import android.widget.ListView;
 
 import com.asha.libresample2.Resample;
+import com.example.androidthings.assistant.shared.AudioBufferPool;
+import com.example.androidthings.assistant.shared.AudioRequests;
+import com.example.androidthings.assistant.shared.AudioTrackPool;
 import com.example.androidthings.assistant.shared.BoardDefaults;
 import com.example.androidthings.assistant.shared.Credentials;
+import com.example.androidthings.assistant.shared.DacPowerManager;
 import com.example.androidthings.assistant.shared.MyDevice;
 import com.google.android.things.contrib.driver.button.Button;
-import com.google.android.things.contrib.driver.voicehat.Max98357A;
 import com.google.android.things.contrib.driver.voicehat.VoiceHat;
 import com.google.android.things.pio.Gpio;
 import com.google.android.things.pio.PeripheralManager;
@@ -69,6 +73,8 @@ public class MyAssistant implements Button.OnButtonEventListener {
     // Peripheral and drivers constants.
     private static final boolean USE_VOICEHAT_DAC = true;
     private static final int BUTTON_DEBOUNCE_DELAY_MS = 20;
+    // How long the Voice HAT's amp stays on after the last sound.
+    private static final long DAC_HOLD_OFF_MILLIS = 3000;
 
     // Audio constants.
     private static final int SAMPLE_RATE = 16000;
@@ -104,7 +110,8 @@ public class MyAssistant implements Button.OnButtonEventListener {
                     .setSampleRate(SAMPLE_RATE)
                     .build();
     private static final int SAMPLE_BLOCK_SIZE = 1024;
-    private int mOutputBufferSize;
+    // How many idle output tracks to keep warm for each format.
+    private static final int TRACK_POOL_IDLE_TRACKS = 2;
 
     // Google Assistant API constants.
     private static final String ASSISTANT_ENDPOINT = "embeddedassistant.googleapis.com";
@@ -136,7 +143,6 @@ public class MyAssistant implements Button.OnButtonEventListener {
                             Log.i(TAG, "assistant volume changed: " + mVolumePercentage);
                             float vol = AudioTrack.getMaxVolume() * mVolumePercentage / 100.0f;
                             myTTS.speak("Volume set");
-                            mAudioTrack.setVolume(vol);
                             myTTS.setVolume(vol/100.0f);
 
                         }
@@ -144,7 +150,7 @@ public class MyAssistant implements Button.OnButtonEventListener {
                     }
                     if (value.getAudioOut() != null) {
                         final ByteBuffer audioData =
-                                ByteBuffer.wrap(value.getAudioOut().getAudioData().toByteArray());
+                                value.getAudioOut().getAudioData().asReadOnlyByteBuffer();
                         Log.d(TAG, "converse audio size: " + audioData.remaining());
                         mAssistantResponses.add(audioData);
                     }
@@ -188,43 +194,35 @@ public class MyAssistant implements Button.OnButtonEventListener {
 
                 @Override
                 public void onCompleted() {
-                    mAudioTrack = new AudioTrack.Builder()
-                            .setAudioFormat(AUDIO_FORMAT_OUT_MONO)
-                            .setBufferSizeInBytes(mOutputBufferSize)
-                            .setTransferMode(AudioTrack.MODE_STREAM)
-                            .build();
+                    // A warm track from the pool, it goes back once the response is written.
+                    AudioTrack audioTrack = mTrackPool.lease(AUDIO_FORMAT_OUT_MONO, null);
+                    if (audioTrack == null) {
+                        Log.w(TAG, "track pool released, dropping the response");
+                        mAssistantResponses.clear();
+                        return;
+                    }
                     //todo check if you need to set volume like this
                     float vol = AudioTrack.getMaxVolume() * mVolumePercentage / 100.0f;
-                    mAudioTrack.setVolume(vol);
-                    //need to maintain volume across these objects?
-                    if (mAudioOutputDevice != null) {
-                        mAudioTrack.setPreferredDevice(mAudioOutputDevice);
-                    }
-                    mAudioTrack.play();
-                    if (mDac != null) {
-                        try {
-                            mDac.setSdMode(Max98357A.SD_MODE_LEFT);
-                        } catch (IOException e) {
-                            Log.e(TAG, "unable to modify dac trigger", e);
-                        }
+                    audioTrack.setVolume(vol);
+                    audioTrack.play();
+                    if (mDacPower != null) {
+                        mDacPower.acquire();
                     }
                     for (ByteBuffer audioData : mAssistantResponses) {
                         final ByteBuffer buf = audioData;
                         Log.d(TAG, "Playing a bit of audio");
-                        mAudioTrack.write(buf, buf.remaining(),
+                        audioTrack.write(buf, buf.remaining(),
                                 AudioTrack.WRITE_BLOCKING);
 
                         //todo: according to this https://developer.android.com/reference/android/media/AudioTrack#play()
                         //write is where audio to be played is determined.
                     }
                     mAssistantResponses.clear();
-                    mAudioTrack.stop();
-                    if (mDac != null) {
-                        try {
-                            mDac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
-                        } catch (IOException e) {
-                            Log.e(TAG, "unable to modify dac trigger", e);
-                        }
+                    // Stops the track, which still plays out what it has.
+                    mTrackPool.recycle(audioTrack);
+                    if (mDacPower != null) {
+                        // Shut down after the hold-off, which also covers the track's tail.
+                        mDacPower.release();
                     }
 
                     Log.i(TAG, "assistant response finished");
@@ -247,7 +245,8 @@ public class MyAssistant implements Button.OnButtonEventListener {
     }
 
     // Audio playback and recording objects.
-    private AudioTrack mAudioTrack;
+    // Warm output tracks for responses and text to speech.
+    private AudioTrackPool mTrackPool;
     private AudioRecord mAudioRecord;
 
     // Audio routing configuration: use default routing.
@@ -261,13 +260,15 @@ public class MyAssistant implements Button.OnButtonEventListener {
     // Hardware peripherals.
     private Button mButton;
     private Gpio mLed;
-    private Max98357A mDac;
+    private DacPowerManager mDacPower;
 
     // Assistant Thread and Runnables implementing the push-to-talk functionality.
     private ByteString mConversationState = null;
     private HandlerThread mAssistantThread;
     private Handler mAssistantHandler;
     private ArrayList<ByteBuffer> mAssistantResponses = new ArrayList<>();
+    private final AudioBufferPool mAudioBufferPool =
+            new AudioBufferPool(SAMPLE_BLOCK_SIZE, 2);
 
 
     private Runnable mStartAssistantRequest = new Runnable() {
@@ -307,7 +308,7 @@ public class MyAssistant implements Button.OnButtonEventListener {
     private Runnable mStreamAssistantRequest = new Runnable() {
         @Override
         public void run() {
-            ByteBuffer audioData = ByteBuffer.allocateDirect(SAMPLE_BLOCK_SIZE);
+            ByteBuffer audioData = mAudioBufferPool.acquire();
             if (mAudioInputDevice != null) {
                 mAudioRecord.setPreferredDevice(mAudioInputDevice);
             }
@@ -315,12 +316,13 @@ public class MyAssistant implements Button.OnButtonEventListener {
                     mAudioRecord.read(audioData, audioData.capacity(), AudioRecord.READ_BLOCKING);
             if (result < 0) {
                 Log.e(TAG, "error reading from audio stream:" + result);
+                mAudioBufferPool.release(audioData);
                 return;
             }
             Log.d(TAG, "streaming ConverseRequest: " + result);
-            mAssistantRequestObserver.onNext(AssistRequest.newBuilder()
-                    .setAudioIn(ByteString.copyFrom(audioData))
-                    .build());
+            // The bytes are serialized by the time sendAudio returns, so the buffer is free again.
+            AudioRequests.sendAudio(mAssistantRequestObserver, audioData, result);
+            mAudioBufferPool.release(audioData);
             mAssistantHandler.post(mStreamAssistantRequest);
         }
     };
@@ -334,7 +336,6 @@ public class MyAssistant implements Button.OnButtonEventListener {
                 mAssistantRequestObserver = null;
             }
             mAudioRecord.stop();
-            mAudioTrack.play();//todo: is this a better text to speech?
         }
     };
 
@@ -388,8 +389,7 @@ public class MyAssistant implements Button.OnButtonEventListener {
         try {
             if (USE_VOICEHAT_DAC) {
                 Log.i(TAG, "initializing DAC trigger");
-                mDac = VoiceHat.openDac();
-                mDac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
+                mDacPower = new DacPowerManager(VoiceHat.openDac(), DAC_HOLD_OFF_MILLIS);
 
                 mButton = VoiceHat.openButton();
                 mLed = VoiceHat.openLed();
@@ -413,14 +413,22 @@ public class MyAssistant implements Button.OnButtonEventListener {
         int maxVolume = manager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
         Log.i(TAG, "setting volume to: " + maxVolume);
         manager.setStreamVolume(AudioManager.STREAM_MUSIC, maxVolume, 0);
-        mOutputBufferSize = AudioTrack.getMinBufferSize(AUDIO_FORMAT_OUT_MONO.getSampleRate(),
-                AUDIO_FORMAT_OUT_MONO.getChannelMask(),
-                AUDIO_FORMAT_OUT_MONO.getEncoding());
-        mAudioTrack = new AudioTrack.Builder()
-                .setAudioFormat(AUDIO_FORMAT_OUT_MONO)
-                .setBufferSizeInBytes(mOutputBufferSize)
-                .build();
-        mAudioTrack.play();
+        mTrackPool = new AudioTrackPool((format, attributes) -> {
+            AudioTrack.Builder builder = new AudioTrack.Builder()
+                    .setAudioFormat(format)
+                    .setBufferSizeInBytes(AudioTrack.getMinBufferSize(format.getSampleRate(),
+                            format.getChannelMask(), format.getEncoding()))
+                    .setTransferMode(AudioTrack.MODE_STREAM);
+            if (attributes != null) {
+                builder.setAudioAttributes(attributes);
+            }
+            AudioTrack track = builder.build();
+            if (mAudioOutputDevice != null) {
+                track.setPreferredDevice(mAudioOutputDevice);
+            }
+            return track;
+        }, TRACK_POOL_IDLE_TRACKS);
+        mTrackPool.prewarm(AUDIO_FORMAT_OUT_MONO, null);
         int inputBufferSize = AudioRecord.getMinBufferSize(AUDIO_FORMAT_STEREO.getSampleRate(),
                 AUDIO_FORMAT_STEREO.getChannelMask(),
                 AUDIO_FORMAT_STEREO.getEncoding());
@@ -483,10 +491,6 @@ public class MyAssistant implements Button.OnButtonEventListener {
             mAudioRecord.stop();
             mAudioRecord = null;
         }
-        if (mAudioTrack != null) {
-            mAudioTrack.stop();
-            mAudioTrack = null;
-        }
         if (mLed != null) {
             try {
                 mLed.close();
@@ -503,17 +507,17 @@ public class MyAssistant implements Button.OnButtonEventListener {
             }
             mButton = null;
         }
-        if (mDac != null) {
-            try {
-                mDac.close();
-            } catch (IOException e) {
-                Log.w(TAG, "error closing voice hat trigger", e);
-            }
-            mDac = null;
+        if (mDacPower != null) {
+            mDacPower.close();
+            mDacPower = null;
         }
         mAssistantHandler.post(() -> mAssistantHandler.removeCallbacks(mStreamAssistantRequest));
         myTTS.shutdown();
         mAssistantThread.quitSafely();
+        if (mTrackPool != null) {
+            mTrackPool.release();
+            mTrackPool = null;
+        }
     }
 
 
@@ -532,6 +536,11 @@ public class MyAssistant implements Button.OnButtonEventListener {
 
         private static final String UTTERANCE_ID =
                 "com.example.androidthings.bluetooth.audio.UTTERANCE_ID";
+        // Writes speech to the track from onAudioAvailable as it's synthesized, rather than
+        // playing the wav file once it's all done.
+        private static final boolean STREAM_SPEECH = true;
+        // Where the engine writes while streaming, what it writes there is thrown away.
+        private static final String STREAM_SINK = "/dev/null";
 
         private boolean available = false;
         private boolean ttsRunning = false;
@@ -546,7 +555,14 @@ public class MyAssistant implements Button.OnButtonEventListener {
 
         private AudioAttributes attributes;
         private AudioTrack at;
-        private AudioTrack.Builder atBuilder;
+        private float volume = 1.0f;
+
+        // When the text being synthesized was handed to the engine, 0 once it's been heard.
+        private volatile long synthesisStartedAt;
+        private long streamedUtterances;
+        private long streamedFirstSampleMillis;
+        private long fileUtterances;
+        private long fileFirstSampleMillis;
 
         /**
          * @see //https://developer.android.com/reference/android/media/AudioTrack
@@ -615,13 +631,10 @@ public class MyAssistant implements Button.OnButtonEventListener {
                 //this.at =
                 //        .build();
                 at.play();
-                if (mDac != null) {
-                    try {
-                        mDac.setSdMode(Max98357A.SD_MODE_LEFT);
-                    } catch (IOException e) {
-                        Log.e(TAG, "unable to modify dac trigger", e);
-                    }
+                if (mDacPower != null) {
+                    mDacPower.acquire();
                 }
+                recordFirstSample(false);
 
                 while((i = dis.read(s, 0, BUFFER_SIZE)) > -1){
                     int status = at.write(s, 0,  i, AudioTrack.WRITE_BLOCKING);
@@ -633,12 +646,9 @@ public class MyAssistant implements Button.OnButtonEventListener {
                 dis.close();
                 fin.close();
                 //https://stackoverflow.com/questions/12347823/how-to-reopen-a-file-from-a-input-stream
-                if (mDac != null) {
-                    try {
-                        mDac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
-                    } catch (IOException e) {
-                        Log.e(TAG, "unable to modify dac trigger", e);
-                    }
+                if (mDacPower != null) {
+                    // Shut down after the hold-off, which also covers the track's tail.
+                    mDacPower.release();
                 }
                 //AudioTrack.write: https://developer.android.com/reference/android/media/AudioTrack.html#write(java.nio.ByteBuffer,%20int,%20int)
                 //AudioTrack.play: https://developer.android.com/reference/android/media/AudioTrack.html#play()
@@ -672,8 +682,6 @@ public class MyAssistant implements Button.OnButtonEventListener {
             resample = new Resample();
             resample.create(TTS_SAMPLE_RATE, SAMPLE_RATE, minBufferSize, 1);
 
-            atBuilder = new AudioTrack.Builder();
-
             AudioFormat.Builder afBuilder = new AudioFormat.Builder();
 
             afBuilder.setEncoding(AudioFormat.ENCODING_PCM_16BIT)
@@ -681,15 +689,8 @@ public class MyAssistant implements Button.OnButtonEventListener {
                     .setSampleRate(TTS_SAMPLE_RATE);
 
 
-            atBuilder
-                    //.setAudioFormat(AUDIO_FORMAT_OUT_MONO)
-                    .setAudioFormat(afBuilder.build())
-                    .setTransferMode(AudioTrack.MODE_STREAM)
-                    .setBufferSizeInBytes(minBufferSize)
-                    .setAudioAttributes(attributes);
-
-            //at = this.atBuilder.build();
-            at.setPreferredDevice(MyAssistant.this.mAudioOutputDevice);
+            // Leased for as long as text to speech is around, see shutdown.
+            at = mTrackPool.lease(afBuilder.build(), attributes);
             this.setVolume(1.0f);
 
             //todo: you might need to specify the TTS engine so you can pass the encoding when you synthesize the file
@@ -729,6 +730,7 @@ public class MyAssistant implements Button.OnButtonEventListener {
          * @param vol a float between 0 and 1 that sets the volume
          */
         public void setVolume(float vol){
+            volume = vol;
             at.setVolume(vol);
         }
 
@@ -748,6 +750,7 @@ public class MyAssistant implements Button.OnButtonEventListener {
             this.myFile.delete();//todo: should this be here???
             this.tts.stop();
             this.tts.shutdown();
+            mTrackPool.recycle(at);
         }
 
 
@@ -781,7 +784,11 @@ public class MyAssistant implements Button.OnButtonEventListener {
                 //pre lolipop devices: https://stackoverflow.com/questions/34562771/how-to-save-audio-file-from-speech-synthesizer-in-android-android-speech-tts
                 params.putString(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, UTTERANCE_ID);
                 //You were explicitly setting the engine here. You should add that in.
-                tts.synthesizeToFile(textToSpeehQueue.peekFirst(), params, myFile, UTTERANCE_ID);
+                synthesisStartedAt = SystemClock.elapsedRealtime();
+                // When streaming, the audio comes from onAudioAvailable and the file is just
+                // somewhere for the engine to write.
+                tts.synthesizeToFile(textToSpeehQueue.peekFirst(), params,
+                        STREAM_SPEECH ? new File(STREAM_SINK) : myFile, UTTERANCE_ID);
             }else{
                 if(!ttsRunning){
                     Log.e(TAG, "Error in synthesizeNextFile", new IllegalStateException("ttsRunning is true." +
@@ -821,9 +828,51 @@ public class MyAssistant implements Button.OnButtonEventListener {
         @Override
         public void onDone(String utteranceId) {
             Log.i(TAG, "Text to speech synthesis done");
+            if (STREAM_SPEECH) {
+                // A streaming track plays out what it has before it stops.
+                at.stop();
+                if (mDacPower != null) {
+                    mDacPower.release();
+                }
+                MyAssistant.this.mAssistantHandler.post(() -> {
+                    textToSpeehQueue.remove();
+                    ttsRunning = false;
+                    synthesizeNextFile();
+                });
+                return;
+            }
             MyAssistant.this.mAssistantHandler.post(this.runSynthesizedFile);
         }
 
+        /**
+         * Gets the track ready for streamed speech, leasing one at the engine's sample rate if
+         * it isn't the rate of the one we have.
+         *
+         * @see UtteranceProgressListener#onBeginSynthesis(String, int, int, int)
+         */
+        @Override
+        public void onBeginSynthesis(String utteranceId, int sampleRateInHz, int audioFormat,
+                                     int channelCount) {
+            if (!STREAM_SPEECH) {
+                return;
+            }
+            if (at.getSampleRate() != sampleRateInHz || at.getAudioFormat() != audioFormat
+                    || at.getChannelCount() != channelCount) {
+                mTrackPool.recycle(at);
+                at = mTrackPool.lease(new AudioFormat.Builder()
+                        .setEncoding(audioFormat)
+                        .setChannelMask(channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO
+                                : AudioFormat.CHANNEL_OUT_STEREO)
+                        .setSampleRate(sampleRateInHz)
+                        .build(), attributes);
+                at.setVolume(volume);
+            }
+            at.play();
+            if (mDacPower != null) {
+                mDacPower.acquire();
+            }
+        }
+
         /**
          * According to this you need network connection.
          *
@@ -874,11 +923,11 @@ public class MyAssistant implements Button.OnButtonEventListener {
         }
 
         /**
-         * Simply logs the fact that audio is available to be spoken
+         * Plays streamed speech as soon as it's synthesized. The write blocks the callback
+         * thread while the track is full, which keeps the engine from running too far ahead.
          *
          * @param utteranceId the ID of the audio to be spoken
          * @param audio the byte array of the audio.
-         *        todo: you might be able to play this audio directly with AudioTrack
          * @see UtteranceProgressListener#onAudioAvailable(String, byte[])
          * @see this#speak(String)
          */
@@ -886,6 +935,35 @@ public class MyAssistant implements Button.OnButtonEventListener {
         public void onAudioAvailable(String utteranceId, byte[] audio){
             super.onAudioAvailable(utteranceId, audio);
             Log.d(TAG, "Text to speech engine audio available");
+            if (STREAM_SPEECH) {
+                recordFirstSample(true);
+                at.write(audio, 0, audio.length, AudioTrack.WRITE_BLOCKING);
+            }
+        }
+
+        /**
+         * Logs how long the current text took from going to the engine to its first sample
+         * going to the track, along with the averages for streamed and file speech.
+         */
+        private synchronized void recordFirstSample(boolean streamed) {
+            long startedAt = synthesisStartedAt;
+            if (startedAt == 0) {
+                return;
+            }
+            synthesisStartedAt = 0;
+            long millis = SystemClock.elapsedRealtime() - startedAt;
+            if (streamed) {
+                streamedUtterances++;
+                streamedFirstSampleMillis += millis;
+            } else {
+                fileUtterances++;
+                fileFirstSampleMillis += millis;
+            }
+            Log.i(TAG, "speech time to first sample: " + millis + " ms, average " +
+                    (streamedUtterances > 0 ? streamedFirstSampleMillis / streamedUtterances
+                            : -1) + " ms streamed, " +
+                    (fileUtterances > 0 ? fileFirstSampleMillis / fileUtterances : -1) +
+                    " ms from a file");
         }
 
 
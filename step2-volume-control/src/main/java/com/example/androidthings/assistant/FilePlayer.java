@@ -1,13 +1,13 @@
 package com.example.androidthings.assistant;
 
-import android.media.AudioAttributes;
-import android.media.AudioDeviceInfo;
 import android.media.AudioFormat;
 import android.media.AudioTrack;
 import android.os.Handler;
 import android.provider.MediaStore;
 import android.util.Log;
 
+import com.example.androidthings.assistant.shared.MixBus;
+
 
 import java.io.DataInputStream;
 import java.io.File;
@@ -22,26 +22,30 @@ import java.util.Arrays;
 import static android.content.ContentValues.TAG;
 
 public class FilePlayer {
+    // How much of the file the mixer moves into the bus ahead of playback.
+    private static final int SOURCE_CAPACITY_MILLIS = 100;
 
     private File atFile;
     private FileInputStream fin;
     private DataInputStream dis;
-    private MyAudioTrack at;
-    private AudioAttributes attributes;
+    private MixBus.Source source;
     private int bufferSize;
     private AudioFormat af;
-    private AudioDeviceInfo device;
+    private MixBus mixBus;
+    private int priority;
     private byte[] header = new byte[44];
 
 
     /**
-     * Don't forget to create at!
+     * source is opened on mixBus when the file is played.
      * @param fileName
+     * @param mixBus plays the file, resampled if it has to be
+     * @param priority the file's priority on the bus
      */
-    public FilePlayer(String fileName, AudioAttributes attributes, AudioDeviceInfo device){
+    public FilePlayer(String fileName, MixBus mixBus, int priority){
         setFile(fileName);
-        this.attributes = attributes;
-        this.device = device;
+        this.mixBus = mixBus;
+        this.priority = priority;
     }
 
 
@@ -105,12 +109,17 @@ public class FilePlayer {
                     getFileSize());
             //todo: make the number of bytes in this file the position marker
             setupBuffer();
-            setupAudioTrack();
+            if (!setupSource()) {
+                dis.close();
+                fin.close();
+                this.atFile.delete();
+                return;
+            }
             actuallyPlay();
             dis.close();
             fin.close();
             this.atFile.delete();
-            this.at = null;
+            this.source = null;
         } catch (FileNotFoundException e) {
             // TODO
             e.printStackTrace();
@@ -124,20 +133,23 @@ public class FilePlayer {
     /**
      * This actually plays the file. It's called in playWav. The rest of playWav sets things up.
      *
+     * The file is handed to the bus a block at a time without waiting for it to play, so the
+     * thread this runs on is free again as soon as the file's been read.
+     *
      * @throws IOException
      * @see this#playWav()
      */
     private void actuallyPlay() throws IOException{
-        this.at.play();
         int i = 0;
         byte[] s = new byte[this.bufferSize];
         while((i = dis.read(s, 0, this.bufferSize)) > -1){
-            int status = this.at.write(s, 0,  i, AudioTrack.WRITE_BLOCKING);
-            Log.v(TAG, "status: " + status + " data: "+ Arrays.toString(s));
-            Log.v(TAG, "Status: " + status + " expected data amount: " + (i - 0));
+            // The bus keeps the block, so each one gets its own array.
+            this.source.enqueue(Arrays.copyOf(s, i));
+            Log.v(TAG, "queued " + i + " bytes");
         }
-        Log.i(TAG, "done playing file!");
-        this.at.stop();
+        Log.i(TAG, "done queueing file!");
+        // The bus plays out the rest.
+        this.source.end();
     }
 
     /**
@@ -286,17 +298,19 @@ public class FilePlayer {
     }
 
     /**
-     * read AudioTrack parameters from header and use them
+     * read the format from the header and open a source on the bus for it
+     *
+     * @return false if the bus can't play the file
      */
-    private void setupAudioTrack(){
-        int mOutputBufferSize = AudioTrack.getMinBufferSize(getSampleRate(),
-                getChannel(),
-                getEncoding());
+    private boolean setupSource(){
         setupAudioFormat();
-        MyAudioTrack.Builder ab = new MyAudioTrack.Builder();
-        ab.setAudioAttributes(this.attributes).setAudioFormat(this.af).setBufferSizeInBytes(mOutputBufferSize);
-        this.at = ab.build();
-        at.setVolume(MyAssistant.volFloat);
-        this.at.setPreferredDevice(this.device);
+        if (this.af.getEncoding() != AudioFormat.ENCODING_PCM_16BIT
+                || this.af.getChannelMask() != AudioFormat.CHANNEL_OUT_MONO) {
+            Log.e(TAG, "The mix bus only plays 16-bit mono wav files");
+            return false;
+        }
+        this.source = this.mixBus.openSource(this.atFile.getName(), this.af.getSampleRate(),
+                this.priority, SOURCE_CAPACITY_MILLIS);
+        return true;
     }
 }
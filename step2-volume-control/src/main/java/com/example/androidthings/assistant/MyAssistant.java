@@ -12,15 +12,37 @@ import android.media.MediaRecorder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.UtteranceProgressListener;
+import android.speech.tts.Voice;
 import android.util.Log;
-import android.widget.ArrayAdapter;
 import android.widget.ListView;
 
+import com.example.androidthings.assistant.shared.AdaptiveBatcher;
+import com.example.androidthings.assistant.shared.AudioCapture;
+import com.example.androidthings.assistant.shared.AudioDecoder;
+import com.example.androidthings.assistant.shared.AudioStreamSender;
+import com.example.androidthings.assistant.shared.AudioTrackPool;
 import com.example.androidthings.assistant.shared.BoardDefaults;
 import com.example.androidthings.assistant.shared.Credentials;
+import com.example.androidthings.assistant.shared.DacPowerManager;
+import com.example.androidthings.assistant.shared.DrainWatcher;
+import com.example.androidthings.assistant.shared.EchoSuppressor;
+import com.example.androidthings.assistant.shared.JitterBuffer;
+import com.example.androidthings.assistant.shared.MediaCodecMp3Decoder;
+import com.example.androidthings.assistant.shared.MixBus;
 import com.example.androidthings.assistant.shared.MyDevice;
+import com.example.androidthings.assistant.shared.PhraseCache;
+import com.example.androidthings.assistant.shared.PromptManifest;
+import com.example.androidthings.assistant.shared.PendingAudioQueue;
+import com.example.androidthings.assistant.shared.ResponseEventDispatcher;
+import com.example.androidthings.assistant.shared.ResponseEventDispatcher.EventType;
+import com.example.androidthings.assistant.shared.ResponsePlayer;
+import com.example.androidthings.assistant.shared.SpillFile;
+import com.example.androidthings.assistant.shared.TranscriptHistoryAdapter;
+import com.example.androidthings.assistant.shared.VoiceActivityDetector;
 import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.voicehat.VoiceHat;
 import com.google.android.things.pio.Gpio;
@@ -40,16 +62,25 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
 import io.grpc.auth.MoreCallCredentials;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 
 /**
@@ -66,22 +97,22 @@ public class MyAssistant implements Button.OnButtonEventListener {
     // Peripheral and drivers constants.
     public static final boolean USE_VOICEHAT_DAC = true;
     private static final int BUTTON_DEBOUNCE_DELAY_MS = 20;
+    // How long the Voice HAT's amp stays on after the last sound, so a clip that follows
+    // doesn't have to wait for it to wake up.
+    private static final long DAC_HOLD_OFF_MILLIS = 3000;
+    // How often a stopping track's playback head is checked, and how long it can sit still
+    // before we give up waiting for it to drain.
+    private static final long DRAIN_POLL_MILLIS = 20;
+    private static final long DRAIN_STALL_MILLIS = 1000;
 
     // Audio constants.
     private static final int SAMPLE_RATE = 16000;
     private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
-    private static AudioInConfig.Encoding ENCODING_INPUT = AudioInConfig.Encoding.LINEAR16;
-    private static AudioOutConfig.Encoding ENCODING_OUTPUT = AudioOutConfig.Encoding.LINEAR16;
-    private static final AudioInConfig ASSISTANT_AUDIO_REQUEST_CONFIG =
-            AudioInConfig.newBuilder()
-                    .setEncoding(ENCODING_INPUT)
-                    .setSampleRateHertz(SAMPLE_RATE)
-                    .build();
-    private static final AudioOutConfig ASSISTANT_AUDIO_RESPONSE_CONFIG =
-            AudioOutConfig.newBuilder()
-                    .setEncoding(ENCODING_OUTPUT)
-                    .setSampleRateHertz(SAMPLE_RATE)
-                    .build();
+    // FLAC roughly halves the uplink, LINEAR16 costs no CPU. See setInputEncoding.
+    private static AudioInConfig.Encoding ENCODING_INPUT = AudioInConfig.Encoding.FLAC;
+    // MP3 responses are around a tenth of the size of LINEAR16 ones but have to be decoded.
+    // Falls back to LINEAR16 without a working MP3 decoder. See setOutputEncoding.
+    private static AudioOutConfig.Encoding ENCODING_OUTPUT = AudioOutConfig.Encoding.MP3;
     private static final AudioFormat AUDIO_FORMAT_STEREO =
             new AudioFormat.Builder()
                     .setChannelMask(AudioFormat.CHANNEL_IN_STEREO)
@@ -101,7 +132,55 @@ public class MyAssistant implements Button.OnButtonEventListener {
                     .setSampleRate(SAMPLE_RATE)
                     .build();
     private static final int SAMPLE_BLOCK_SIZE = 1024;
-    private int mOutputBufferSize;
+    private static final int SAMPLE_BLOCK_MILLIS = SAMPLE_BLOCK_SIZE / 2 * 1000 / SAMPLE_RATE;
+    // Bounds for how much audio the adaptive batcher puts in one request message.
+    private static final int MIN_AUDIO_FRAME_MILLIS = SAMPLE_BLOCK_MILLIS;
+    private static final int MAX_AUDIO_FRAME_MILLIS = 256;
+    // How many chunks (32 ms each) the capture thread can get ahead of the network.
+    private static final int CAPTURE_RING_CHUNKS = 64;
+    // How many messages can wait for a slow uplink, and what to do once that's full.
+    private static final int PENDING_AUDIO_MESSAGES = 16;
+    private static final PendingAudioQueue.OverflowPolicy PENDING_AUDIO_OVERFLOW =
+            PendingAudioQueue.OverflowPolicy.COALESCE;
+    // Voice activity detection trims leading silence and ends the turn after trailing silence.
+    // In hands-free mode the mic stays open and speech starts a turn without the button.
+    private static final boolean USE_VAD = true;
+    private static final boolean HANDS_FREE = false;
+    private static final double VAD_THRESHOLD_DB = 9;
+    private static final int VAD_ONSET_MILLIS = 64;
+    private static final int VAD_HANGOVER_MILLIS = 800;
+    // With a hot mic, recording keeps running between turns and the last PRE_ROLL_MILLIS of
+    // audio before the button press are sent with the turn. Hands-free is always hot.
+    private static final boolean HOT_MIC = true;
+    private static final int PRE_ROLL_MILLIS = 300;
+    // Echo suppression takes our own playback out of the mic, so it can stay open while the
+    // speaker plays. The filter covers ECHO_FILTER_MILLIS of the echo's tail, and the delay in
+    // front of it is found up to ECHO_MAX_DELAY_MILLIS.
+    private static final boolean USE_ECHO_SUPPRESSION = true;
+    private static final int ECHO_BLOCK_SAMPLES = 128;
+    private static final int ECHO_FILTER_MILLIS = 32;
+    private static final int ECHO_MAX_DELAY_MILLIS = 500;
+    private static final int PRE_ROLL_BYTES = SAMPLE_RATE * 2 * PRE_ROLL_MILLIS / 1000;
+    // Bounds for how much of a response is buffered before it starts playing. The jitter
+    // buffer picks the depth in between from how evenly the response audio arrives.
+    private static final int MIN_RESPONSE_BUFFER_MILLIS = 60;
+    private static final int MAX_RESPONSE_BUFFER_MILLIS = 600;
+    // Responses usually arrive much faster than they play. Past RESPONSE_HEAP_BYTES (8 s) the
+    // rest waits in a memory-mapped scratch file, which holds up to 16 minutes.
+    private static final int RESPONSE_HEAP_BYTES = 256 * 1024;
+    private static final int RESPONSE_SPILL_FILE_BYTES = 32 * 1024 * 1024;
+    // How many idle output tracks to keep warm for each format.
+    private static final int TRACK_POOL_IDLE_TRACKS = 2;
+    // Synthesized prompts are kept so they can be spoken again without the engine, the most
+    // recent in memory (32 s at 16 kHz) and more on disk. Phrases over a quarter of the memory
+    // budget aren't kept.
+    private static final int PHRASE_MEMORY_BYTES = 1024 * 1024;
+    private static final long PHRASE_DISK_BYTES = 16 * 1024 * 1024;
+    // How much audio the mix bus mixes at a time. While a response plays, text to speech
+    // is ducked under it.
+    private static final int MIX_BLOCK_MILLIS = 10;
+    private static final int RESPONSE_PRIORITY = 2;
+    private static final int SPEECH_PRIORITY = 1;
 
     // Google Assistant API constants.
     private static final String ASSISTANT_ENDPOINT = "embeddedassistant.googleapis.com";
@@ -109,124 +188,108 @@ public class MyAssistant implements Button.OnButtonEventListener {
     // gRPC client and stream observers.
     private EmbeddedAssistantGrpc.EmbeddedAssistantStub mAssistantService;
     private StreamObserver<AssistRequest> mAssistantRequestObserver;
+    // The latest call, which may still be responding after the turn ends.
+    private AssistCall mAssistCall;
 
-    private StreamObserver<AssistResponse> mAssistantResponseObserver =
-            new StreamObserver<AssistResponse>() {
-                @Override
-                public void onNext(AssistResponse value) {
-                    if (value.getEventType() != null) {
-                        Log.d(TAG, "converse response event: " + value.getEventType());
-                    }
-                    if (value.getSpeechResultsList() != null && value.getSpeechResultsList().size() > 0) {
-                        for (SpeechRecognitionResult result : value.getSpeechResultsList()) {
-                            final String spokenRequestText = result.getTranscript();
-                            if (!spokenRequestText.isEmpty()) {
-                                Log.i(TAG, "assistant request text: " + spokenRequestText);
-                                mMainHandler.post(() -> mAssistantRequestsAdapter.add(spokenRequestText));
-                            }
-                        }
-                    }
-                    if (value.getDialogStateOut() != null) {
-                        int volume = value.getDialogStateOut().getVolumePercentage();
-                        if(volume > 0){
-                            mVolumePercentage = volume;
-                            Log.i(TAG, "assistant volume changed: " + mVolumePercentage);
-                            float vol = AudioTrack.getMaxVolume() * mVolumePercentage / 100.0f;
-                            MyAssistant.volFloat = vol;
-
-                            myTTS.speak("volume set hello");
+    /**
+     * Gets the responses of one Assist call. Each call has its own, so one that has been
+     * interrupted can't get in the way of the next.
+     */
+    private class AssistCall implements ClientResponseObserver<AssistRequest, AssistResponse> {
+        StreamObserver<AssistRequest> mRequests;
+        // Set on the assistant thread when a new turn cuts this one off.
+        volatile boolean mInterrupted;
+        volatile boolean mFinished;
 
-                        }
-                        mConversationState = value.getDialogStateOut().getConversationState();
-                    }
-                    if (value.getAudioOut() != null) {
-                        final ByteBuffer audioData =
-                                ByteBuffer.wrap(value.getAudioOut().getAudioData().toByteArray());
-                        Log.d(TAG, "converse audio size: " + audioData.remaining());
-                        mAssistantResponses.add(audioData);
-                    }
-                    if (value.getDeviceAction() != null &&
-                            !value.getDeviceAction().getDeviceRequestJson().isEmpty()) {
-                        // Iterate through JSON object
-                        try {
-                            JSONObject deviceAction =
-                                    new JSONObject(value.getDeviceAction().getDeviceRequestJson());
-                            JSONArray inputs = deviceAction.getJSONArray("inputs");
-                            for (int i = 0; i < inputs.length(); i++) {
-                                if (inputs.getJSONObject(i).getString("intent")
-                                        .equals("action.devices.EXECUTE")) {
-                                    JSONArray commands = inputs.getJSONObject(i)
-                                            .getJSONObject("payload")
-                                            .getJSONArray("commands");
-                                    for (int j = 0; j < commands.length(); j++) {
-                                        JSONArray execution = commands.getJSONObject(j)
-                                                .getJSONArray("execution");
-                                        for (int k = 0; k < execution.length(); k++) {
-                                            String command = execution.getJSONObject(k)
-                                                    .getString("command");
-                                            JSONObject params = execution.getJSONObject(k)
-                                                    .optJSONObject("params");
-                                            handleDeviceAction(command, params);
-                                        }
-                                    }
-                                }
-                            }
-                        } catch (JSONException | IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
+        /**
+         * Wakes the audio sender whenever the call can take more audio.
+         */
+        @Override
+        public void beforeStart(ClientCallStreamObserver<AssistRequest> requestStream) {
+            requestStream.setOnReadyHandler(() -> mAudioSender.onReady());
+        }
 
+        /**
+         * Only sorts out what the response carries. The handling happens on the
+         * dispatcher's threads, so the next message isn't held up by it.
+         */
+        @Override
+        public void onNext(AssistResponse value) {
+            if (mInterrupted) {
+                return;
+            }
+            if (value.getEventType() != null) {
+                Log.d(TAG, "converse response event: " + value.getEventType());
+            }
+            if (value.getEventType() == AssistResponse.EventType.END_OF_UTTERANCE) {
+                // The server has stopped listening, anything else we send is wasted.
+                long receivedAt = SystemClock.elapsedRealtime();
+                mAssistantHandler.post(() -> onEndOfUtterance(receivedAt));
+            }
+            for (SpeechRecognitionResult result : value.getSpeechResultsList()) {
+                String spokenRequestText = result.getTranscript();
+                if (!spokenRequestText.isEmpty()) {
+                    mResponseEvents.dispatch(EventType.TRANSCRIPT, spokenRequestText);
                 }
-
-                @Override
-                public void onError(Throwable t) {
-                    Log.e(TAG, "converse error:", t);
+            }
+            if (value.hasDialogStateOut()) {
+                int volume = value.getDialogStateOut().getVolumePercentage();
+                if (volume > 0) {
+                    mResponseEvents.dispatch(EventType.VOLUME, volume);
                 }
+                mResponseEvents.dispatch(EventType.CONVERSATION_STATE,
+                        value.getDialogStateOut().getConversationState());
+            }
+            if (value.getAudioOut() != null && !value.getAudioOut().getAudioData().isEmpty()) {
+                // A read-only view of the message's bytes: the only copy the audio gets
+                // is the one into the track.
+                mResponseEvents.dispatch(EventType.AUDIO,
+                        value.getAudioOut().getAudioData().asReadOnlyByteBuffer());
+            }
+            if (value.getDeviceAction() != null &&
+                    !value.getDeviceAction().getDeviceRequestJson().isEmpty()) {
+                mResponseEvents.dispatch(EventType.DEVICE_ACTION,
+                        value.getDeviceAction().getDeviceRequestJson());
+            }
 
-                /**
-                 * runs the response audio
-                 */
-                private Runnable respond = new Runnable() {
-                    @Override
-                    public void run() {
-                        mAudioTrack = MyAssistant.this.matB.build();
-                        // setting the volume every time because I'm creating mAudioTrack every time
-
-                        mAudioTrack.setVolume(volFloat);
-
-                        if (mAudioOutputDevice != null) {
-                            mAudioTrack.setPreferredDevice(mAudioOutputDevice);
-                        }
-
-                        mAudioTrack.play();
+        }
 
-                        for (ByteBuffer audioData : mAssistantResponses) {
-                            final ByteBuffer buf = audioData;
-                            Log.d(TAG, "Playing a bit of audio");
-                            mAudioTrack.write(buf, buf.remaining(),
-                                    AudioTrack.WRITE_BLOCKING);
-                        }
-                        mAssistantResponses.clear();
-                        mAudioTrack.stop();
-                        mAudioTrack = null;//not sure if this is necessary
-                    }
-                };
+        @Override
+        public void onError(Throwable t) {
+            mFinished = true;
+            if (mInterrupted) {
+                // Our own cancel, the playback has been dealt with already.
+                Log.i(TAG, "interrupted call ended: " + t.getMessage());
+                return;
+            }
+            Log.e(TAG, "converse error:", t);
+            endResponse();
+        }
 
-                @Override
-                public void onCompleted() {
-                    mAssistantHandler.post(this.respond);
+        private void endResponse() {
+            // Queued behind the response's audio, see onAudioEvent.
+            mResponseEvents.dispatch(EventType.AUDIO, null);
+        }
 
+        @Override
+        public void onCompleted() {
+            mFinished = true;
+            if (mInterrupted) {
+                return;
+            }
+            // The response has been playing since the prebuffer filled up.
+            endResponse();
 
-                    Log.i(TAG, "assistant response finished");
-                    if (mLed != null) {
-                        try {
-                            mLed.setValue(false);
-                        } catch (IOException e) {
-                            Log.e(TAG, "error turning off LED:", e);
-                        }
-                    }
+            Log.i(TAG, "assistant response finished");
+            if (mLed != null) {
+                try {
+                    mLed.setValue(false);
+                } catch (IOException e) {
+                    Log.e(TAG, "error turning off LED:", e);
                 }
-            };
+            }
+        }
+    }
 
     /**
      * see here
@@ -253,9 +316,100 @@ public class MyAssistant implements Button.OnButtonEventListener {
         }
     }
 
+    /**
+     * Handles the audio of the response in flight on the dispatcher's audio thread. A null
+     * chunk ends the response, and RESPONSE_INTERRUPTED drops it.
+     */
+    private void onAudioEvent(ByteBuffer audioData) {
+        AudioDecoder decoder = mResponseDecoder;
+        if (audioData == RESPONSE_INTERRUPTED) {
+            // Whatever the decoder still holds belongs to the old response.
+            if (decoder != null) {
+                decoder.endOfStream(mDiscardedAudioListener);
+            }
+            // On this lane, so the jitter buffer forgets the old response's arrivals before the
+            // next response's first chunk is offered.
+            mResponsePlayer.interrupt();
+            return;
+        }
+        if (audioData == null) {
+            if (decoder != null) {
+                decoder.endOfStream(mDecodedAudioListener);
+            }
+            mResponsePlayer.onResponseEnd();
+            mResponseEvents.logStats();
+            Log.i(TAG, String.format(Locale.US, "output tracks: %d live, %d created, %d reused" +
+                            ", lease %.2f ms new / %.2f ms warm", mTrackPool.getLiveTracks(),
+                    mTrackPool.getCreatedTracks(), mTrackPool.getReusedLeases(),
+                    mTrackPool.getAverageCreateMillis(), mTrackPool.getAverageReuseMillis()));
+            Log.i(TAG, "mix bus: slowest mix " + mMixBus.getMaxMixMicros() + " us, slowest write "
+                    + mMixBus.getMaxWriteMicros() + " us, waited for room "
+                    + mMixBus.getHeadroomParks() + " times");
+            DrainWatcher drainWatcher = MyAudioTrack.getDrainWatcher();
+            if (drainWatcher != null) {
+                Log.i(TAG, String.format(Locale.US, "drains: %d done, %d missed, %.1f ms late" +
+                                " on average, %.1f ms at worst", drainWatcher.getCompletedCount(),
+                        drainWatcher.getMissedCount(), drainWatcher.getAverageLatencyMillis(),
+                        drainWatcher.getMaxLatencyMillis()));
+            }
+            return;
+        }
+        Log.d(TAG, "converse audio size: " + audioData.remaining());
+        if (decoder != null) {
+            decoder.decode(audioData, mDecodedAudioListener);
+        } else {
+            mResponsePlayer.onAudio(audioData);
+        }
+    }
+
+    private void onVolumeEvent(int volume) {
+        mVolumePercentage = volume;
+        Log.i(TAG, "assistant volume changed: " + mVolumePercentage);
+        float vol = AudioTrack.getMaxVolume() * mVolumePercentage / 100.0f;
+        MyAssistant.volFloat = vol;
+        mMixBus.setVolume(vol);
+
+        myTTS.speak("volume set hello");
+    }
+
+    private void onDeviceActionEvent(String deviceRequestJson) {
+        // Iterate through JSON object
+        try {
+            JSONObject deviceAction = new JSONObject(deviceRequestJson);
+            JSONArray inputs = deviceAction.getJSONArray("inputs");
+            for (int i = 0; i < inputs.length(); i++) {
+                if (inputs.getJSONObject(i).getString("intent")
+                        .equals("action.devices.EXECUTE")) {
+                    JSONArray commands = inputs.getJSONObject(i)
+                            .getJSONObject("payload")
+                            .getJSONArray("commands");
+                    for (int j = 0; j < commands.length(); j++) {
+                        JSONArray execution = commands.getJSONObject(j)
+                                .getJSONArray("execution");
+                        for (int k = 0; k < execution.length(); k++) {
+                            String command = execution.getJSONObject(k)
+                                    .getString("command");
+                            JSONObject params = execution.getJSONObject(k)
+                                    .optJSONObject("params");
+                            handleDeviceAction(command, params);
+                        }
+                    }
+                }
+            }
+        } catch (JSONException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     // Audio playback and recording objects.
-    private MyAudioTrack mAudioTrack;
+    private ResponsePlayer mResponsePlayer;
+    private SpillFile mResponseSpillFile;
     private AudioRecord mAudioRecord;
+    private AudioCapture mAudioCapture;
+    private EchoSuppressor mEchoSuppressor;
+    private AudioStreamSender mAudioSender;
+    // Hands response events from the gRPC thread to a thread per event type.
+    private ResponseEventDispatcher mResponseEvents;
 
     // Audio routing configuration: use default routing.
     private AudioDeviceInfo mAudioInputDevice;
@@ -270,23 +424,66 @@ public class MyAssistant implements Button.OnButtonEventListener {
     private Gpio mLed;
 
     // Assistant Thread and Runnables implementing the push-to-talk functionality.
-    private ByteString mConversationState = null;
+    // Set on the dispatcher's conversation state thread.
+    private volatile ByteString mConversationState = null;
     private HandlerThread mAssistantThread;
     private Handler mAssistantHandler;
-    private ArrayList<ByteBuffer> mAssistantResponses = new ArrayList<>();
+    // When the button was pressed, for the turn start latency.
+    private volatile long mTurnRequestedAt;
+    // When END_OF_UTTERANCE ended the turn, 0 once the saving has been recorded.
+    private long mEndOfUtteranceAt;
+    private long mEndOfUtteranceTurns;
+    private long mEndOfUtteranceSavedMillis;
+    private volatile AudioInConfig.Encoding mInputEncoding = ENCODING_INPUT;
+    private volatile AudioOutConfig.Encoding mOutputEncoding = ENCODING_OUTPUT;
+    // Null if the platform has no MP3 decoder.
+    private MediaCodecMp3Decoder mMp3Decoder;
+    // Decodes the response in flight, null for LINEAR16.
+    private volatile AudioDecoder mResponseDecoder;
+    private final AudioDecoder.Listener mDecodedAudioListener =
+            pcm -> mResponsePlayer.onAudio(pcm);
+    private final AudioDecoder.Listener mDiscardedAudioListener = pcm -> { };
+    // Queued on the audio lane when a new turn interrupts the response.
+    private static final ByteBuffer RESPONSE_INTERRUPTED = ByteBuffer.allocate(0);
+    // When the button was pressed or speech was heard, for the barge-in latency.
+    private volatile long mInterruptRequestedAt;
+    private long mBargeIns;
+    private long mBargeInTotalMillis;
+    private long mBargeInMaxMillis;
 
 
     private Runnable mStartAssistantRequest = new Runnable() {
         @Override
         public void run() {
+            if (mAssistantRequestObserver != null) {
+                // The voice activity detector and the button can both start a turn.
+                return;
+            }
             Log.i(TAG, "starting assistant request");
-            mAudioRecord.startRecording();
-            mAssistantRequestObserver = mAssistantService.assist(mAssistantResponseObserver);
-
+            // A turn that was never released doesn't count towards the saving.
+            mEndOfUtteranceAt = 0;
+            boolean bargeIn = interruptResponse();
+            mAssistCall = new AssistCall();
+            mAssistantRequestObserver = mAssistantService.assist(mAssistCall);
+            mAssistCall.mRequests = mAssistantRequestObserver;
+
+            AudioInConfig.Encoding inputEncoding = mInputEncoding;
+            AudioOutConfig.Encoding outputEncoding = mOutputEncoding;
+            if (outputEncoding == AudioOutConfig.Encoding.MP3
+                    && (mMp3Decoder == null || mMp3Decoder.hasFailed())) {
+                // MP3 we can't decode would play as silence.
+                Log.w(TAG, "no working MP3 decoder, asking for LINEAR16 responses");
+                outputEncoding = AudioOutConfig.Encoding.LINEAR16;
+                mOutputEncoding = outputEncoding;
+            }
+            mResponseDecoder = outputEncoding == AudioOutConfig.Encoding.MP3 ? mMp3Decoder : null;
             AssistConfig.Builder converseConfigBuilder = AssistConfig.newBuilder()
-                    .setAudioInConfig(ASSISTANT_AUDIO_REQUEST_CONFIG)
+                    .setAudioInConfig(AudioInConfig.newBuilder()
+                            .setEncoding(inputEncoding)
+                            .setSampleRateHertz(SAMPLE_RATE)
+                            .build())
                     .setAudioOutConfig(AudioOutConfig.newBuilder()
-                            .setEncoding(ENCODING_OUTPUT)
+                            .setEncoding(outputEncoding)
                             .setSampleRateHertz(SAMPLE_RATE)
                             .setVolumePercentage(mVolumePercentage)
                             .build())
@@ -307,58 +504,151 @@ public class MyAssistant implements Button.OnButtonEventListener {
                             .setConfig(converseConfigBuilder.build())
                             .build());
 
-            mAssistantHandler.post(mStreamAssistantRequest);
+            // From here on the sender thread owns mAssistantRequestObserver.
+            mAudioSender.start(mAssistantRequestObserver, inputEncoding);
+            mAudioCapture.beginTurn(mTurnRequestedAt);
+            mAudioCapture.start();
+            if (bargeIn) {
+                recordBargeIn();
+            }
         }
     };
-    private Runnable mStreamAssistantRequest = new Runnable() {
+
+    /**
+     * Cuts off the last response if it's still coming in or playing: the call is cancelled,
+     * the audio still queued for it is dropped and the output goes quiet. The conversation
+     * state it has sent so far is kept for the next turn. Called on the assistant thread.
+     *
+     * @return true if there was anything to interrupt
+     */
+    private boolean interruptResponse() {
+        AssistCall call = mAssistCall;
+        boolean inFlight = call != null && !call.mFinished;
+        if (!inFlight && !mMixBus.isPlaying()) {
+            return false;
+        }
+        Log.i(TAG, "barge-in, interrupting the response");
+        if (inFlight) {
+            call.mInterrupted = true;
+            // The sender may still be finishing the last turn on this call.
+            mAudioSender.cancelTurn();
+            call.mRequests.onError(Status.CANCELLED
+                    .withDescription("interrupted by a new turn").asRuntimeException());
+        }
+        mMixBus.interrupt();
+        mResponseEvents.discard(EventType.AUDIO);
+        mResponseEvents.dispatch(EventType.AUDIO, RESPONSE_INTERRUPTED);
+        return true;
+    }
+
+    /**
+     * Records how long it took from the button press, or the speech, that interrupted a
+     * response to the capture starting. Called on the assistant thread.
+     */
+    private void recordBargeIn() {
+        long latency = SystemClock.elapsedRealtime() - mInterruptRequestedAt;
+        mBargeIns++;
+        mBargeInTotalMillis += latency;
+        mBargeInMaxMillis = Math.max(mBargeInMaxMillis, latency);
+        Log.i(TAG, "barge-in latency: " + latency + " ms, average " +
+                mBargeInTotalMillis / mBargeIns + " ms, worst " + mBargeInMaxMillis + " ms" +
+                " over " + mBargeIns + " barge-ins");
+    }
+    /**
+     * Called on the capture thread, so everything is posted to the assistant thread.
+     */
+    private AudioCapture.Listener mVoiceActivityListener = new AudioCapture.Listener() {
         @Override
-        public void run() {
-            ByteBuffer audioData = ByteBuffer.allocateDirect(SAMPLE_BLOCK_SIZE);
-            if (mAudioInputDevice != null) {
-                mAudioRecord.setPreferredDevice(mAudioInputDevice);
-            }
-            int result =
-                    mAudioRecord.read(audioData, audioData.capacity(), AudioRecord.READ_BLOCKING);
-            if (result < 0) {
-                Log.e(TAG, "error reading from audio stream:" + result);
-                return;
-            }
-            Log.d(TAG, "streaming ConverseRequest: " + result);
-            mAssistantRequestObserver.onNext(AssistRequest.newBuilder()
-                    .setAudioIn(ByteString.copyFrom(audioData))
-                    .build());
-            mAssistantHandler.post(mStreamAssistantRequest);
+        public void onSpeechStart() {
+            Log.i(TAG, "speech detected, starting a hands-free turn");
+            mInterruptRequestedAt = SystemClock.elapsedRealtime();
+            mAssistantHandler.post(mStartAssistantRequest);
+        }
+
+        @Override
+        public void onSpeechEnd() {
+            Log.i(TAG, "trailing silence, ending the turn");
+            mAssistantHandler.post(mStopAssistantRequest);
         }
     };
     private Runnable mStopAssistantRequest = new Runnable() {
         @Override
         public void run() {
+            if (mAssistantRequestObserver == null) {
+                // Already ended by END_OF_UTTERANCE, this is when it would have ended otherwise.
+                recordEndOfUtteranceSaving();
+                return;
+            }
             Log.i(TAG, "ending assistant request");
-            mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
-            if (mAssistantRequestObserver != null) {
-                mAssistantRequestObserver.onCompleted();
-                mAssistantRequestObserver = null;
+            // The sender completes the request stream once it reaches the end of the turn.
+            mAudioCapture.endTurn();
+            mResponsePlayer.onTurnEnd();
+            if (!HOT_MIC && !HANDS_FREE) {
+                mAudioCapture.stop();
+            }
+            mAssistantRequestObserver = null;
+            Log.i(TAG, "turn start latency: " + mAudioCapture.getTurnStartLatencyMillis()
+                    + "ms, pre-roll sent: " + mAudioCapture.getTurnStartPreRollMillis() + "ms");
+            if (mEchoSuppressor != null) {
+                Log.i(TAG, String.format(Locale.US, "echo suppression: %.1f dB, delay %d ms" +
+                                ", %.0f us per block (worst %d us), %d double talk blocks",
+                        mEchoSuppressor.getAttenuationDb(), mEchoSuppressor.getDelayMillis(),
+                        mEchoSuppressor.getAverageBlockMicros(),
+                        mEchoSuppressor.getMaxBlockMicros(),
+                        mEchoSuppressor.getDoubleTalkBlocks()));
             }
-            mAudioRecord.stop();
         }
     };
 
-    // List & adapter to store and display the history of Assistant Requests.
-    private ArrayList<String> mAssistantRequests = new ArrayList<>();
-    private ArrayAdapter<String> mAssistantRequestsAdapter;
+    /**
+     * Ends the turn without waiting for the button or the voice activity detector. The sender
+     * half-closes the request stream after the last chunk. Called on the assistant thread.
+     */
+    private void onEndOfUtterance(long receivedAt) {
+        if (mAssistantRequestObserver == null) {
+            // The turn had ended already.
+            return;
+        }
+        Log.i(TAG, "end of utterance, stopping the capture");
+        mEndOfUtteranceAt = receivedAt;
+        mStopAssistantRequest.run();
+    }
+
+    /**
+     * Records how much earlier END_OF_UTTERANCE ended the turn than the button or the voice
+     * activity detector did. Called on the assistant thread.
+     */
+    private void recordEndOfUtteranceSaving() {
+        long endOfUtteranceAt = mEndOfUtteranceAt;
+        if (endOfUtteranceAt == 0) {
+            return;
+        }
+        mEndOfUtteranceAt = 0;
+        long savedMillis = SystemClock.elapsedRealtime() - endOfUtteranceAt;
+        mEndOfUtteranceTurns++;
+        mEndOfUtteranceSavedMillis += savedMillis;
+        Log.i(TAG, "end of utterance saved " + savedMillis + "ms of streaming, average "
+                + mEndOfUtteranceSavedMillis / mEndOfUtteranceTurns + "ms over "
+                + mEndOfUtteranceTurns + " turns");
+    }
+
+    // The history of Assistant Requests, only the last TRANSCRIPT_HISTORY_SIZE are kept.
+    private static final int TRANSCRIPT_HISTORY_SIZE = 100;
+    private TranscriptHistoryAdapter mAssistantRequestsAdapter;
     private static int mVolumePercentage = 100;
 
     private Handler mMainHandler;
     public CustomTTS myTTS;
-    private MyAudioTrack.Builder matB;
+    private PhraseCache mPhraseCache;
+    // Warm output tracks, and the bus that mixes everything into one of them.
+    private AudioTrackPool mTrackPool;
+    private MixBus mMixBus;
 
     public MyAssistant(Activity context){
         this.context = context;
-        mAssistantRequestsAdapter =
-                new ArrayAdapter<String>(context, android.R.layout.simple_list_item_1,
-                        mAssistantRequests);
-
         mMainHandler = new Handler(context.getMainLooper());
+        mAssistantRequestsAdapter = new TranscriptHistoryAdapter(context, mMainHandler,
+                TRANSCRIPT_HISTORY_SIZE);
 
         mAssistantThread = new HandlerThread("assistantThread");
         mAssistantThread.start();
@@ -375,14 +665,58 @@ public class MyAssistant implements Button.OnButtonEventListener {
         int maxVolume = manager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
         Log.i(TAG, "setting volume to: " + maxVolume);
         manager.setStreamVolume(AudioManager.STREAM_MUSIC, maxVolume, 0);
-        mOutputBufferSize = AudioTrack.getMinBufferSize(AUDIO_FORMAT_OUT_MONO.getSampleRate(),
-                AUDIO_FORMAT_OUT_MONO.getChannelMask(),
-                AUDIO_FORMAT_OUT_MONO.getEncoding());
-
-        this.matB = new MyAudioTrack.Builder();
+        mTrackPool = new AudioTrackPool((format, attributes) -> {
+            MyAudioTrack.Builder builder = new MyAudioTrack.Builder();
+            builder.setAudioFormat(format)
+                    .setBufferSizeInBytes(AudioTrack.getMinBufferSize(format.getSampleRate(),
+                            format.getChannelMask(), format.getEncoding()))
+                    .setTransferMode(AudioTrack.MODE_STREAM);
+            if (attributes != null) {
+                builder.setAudioAttributes(attributes);
+            }
+            MyAudioTrack track = builder.build();
+            if (mAudioOutputDevice != null) {
+                track.setPreferredDevice(mAudioOutputDevice);
+            }
+            return track;
+        }, TRACK_POOL_IDLE_TRACKS);
+        // Responses and text to speech all play through the one track the bus leases.
+        mMixBus = new MixBus(mTrackPool, AUDIO_FORMAT_OUT_MONO, MIX_BLOCK_MILLIS);
+        mMixBus.setVolume(volFloat);
+        mMixBus.start();
+        JitterBuffer jitterBuffer = new JitterBuffer(SAMPLE_RATE, MIN_RESPONSE_BUFFER_MILLIS,
+                MAX_RESPONSE_BUFFER_MILLIS);
+        try {
+            mResponseSpillFile = new SpillFile(new File(context.getCacheDir(), "response.spill"),
+                    RESPONSE_SPILL_FILE_BYTES);
+            jitterBuffer.setSpillFile(mResponseSpillFile, RESPONSE_HEAP_BYTES);
+        } catch (IOException e) {
+            Log.e(TAG, "error creating the response spill file, keeping responses on the heap", e);
+        }
+        mResponsePlayer = new ResponsePlayer(mMixBus, RESPONSE_PRIORITY, jitterBuffer,
+                SAMPLE_RATE);
+        mResponsePlayer.start();
+        if (MediaCodecMp3Decoder.isAvailable(SAMPLE_RATE)) {
+            mMp3Decoder = new MediaCodecMp3Decoder(SAMPLE_RATE);
+        } else {
+            Log.w(TAG, "no MP3 decoder on this device, responses will be LINEAR16");
+        }
 
-        this.matB.setAudioFormat(AUDIO_FORMAT_OUT_MONO).setBufferSizeInBytes(mOutputBufferSize)
-                .setTransferMode(AudioTrack.MODE_STREAM);
+        mResponseEvents = new ResponseEventDispatcher();
+        mResponseEvents.<ByteBuffer>setConsumer(EventType.AUDIO,
+                Process.THREAD_PRIORITY_URGENT_AUDIO, this::onAudioEvent);
+        mResponseEvents.<String>setConsumer(EventType.TRANSCRIPT,
+                Process.THREAD_PRIORITY_DEFAULT, spokenRequestText -> {
+                    Log.i(TAG, "assistant request text: " + spokenRequestText);
+                    mAssistantRequestsAdapter.add(spokenRequestText);
+                });
+        mResponseEvents.<Integer>setConsumer(EventType.VOLUME,
+                Process.THREAD_PRIORITY_DEFAULT, this::onVolumeEvent);
+        mResponseEvents.<ByteString>setConsumer(EventType.CONVERSATION_STATE,
+                Process.THREAD_PRIORITY_DEFAULT, state -> mConversationState = state);
+        mResponseEvents.<String>setConsumer(EventType.DEVICE_ACTION,
+                Process.THREAD_PRIORITY_BACKGROUND, this::onDeviceActionEvent);
+        mResponseEvents.start();
 
         int inputBufferSize = AudioRecord.getMinBufferSize(AUDIO_FORMAT_STEREO.getSampleRate(),
                 AUDIO_FORMAT_STEREO.getChannelMask(),
@@ -392,6 +726,31 @@ public class MyAssistant implements Button.OnButtonEventListener {
                 .setAudioFormat(AUDIO_FORMAT_IN_MONO)
                 .setBufferSizeInBytes(inputBufferSize)
                 .build();
+        if (mAudioInputDevice != null) {
+            mAudioRecord.setPreferredDevice(mAudioInputDevice);
+        }
+        mAudioCapture = new AudioCapture(mAudioRecord, SAMPLE_BLOCK_SIZE, CAPTURE_RING_CHUNKS,
+                PRE_ROLL_BYTES);
+        AdaptiveBatcher batcher = new AdaptiveBatcher(SAMPLE_BLOCK_SIZE, SAMPLE_BLOCK_MILLIS,
+                MIN_AUDIO_FRAME_MILLIS, MAX_AUDIO_FRAME_MILLIS);
+        mAudioSender = new AudioStreamSender(mAudioCapture, batcher, PENDING_AUDIO_MESSAGES,
+                PENDING_AUDIO_OVERFLOW);
+        mAudioSender.setOnTurnFailed(() -> mAssistantHandler.post(mStopAssistantRequest));
+        if (USE_ECHO_SUPPRESSION) {
+            mEchoSuppressor = new EchoSuppressor(SAMPLE_RATE, ECHO_BLOCK_SAMPLES,
+                    ECHO_FILTER_MILLIS, ECHO_MAX_DELAY_MILLIS);
+            mAudioCapture.setEchoSuppressor(mEchoSuppressor);
+            mMixBus.setEchoReference(mEchoSuppressor);
+        }
+        if (USE_VAD) {
+            mAudioCapture.setVoiceActivityDetector(
+                    new VoiceActivityDetector(SAMPLE_RATE, VAD_THRESHOLD_DB, VAD_ONSET_MILLIS,
+                            VAD_HANGOVER_MILLIS),
+                    HANDS_FREE, mVoiceActivityListener);
+        }
+        if (HOT_MIC || HANDS_FREE) {
+            mAudioCapture.start();
+        }
 
         ManagedChannel channel = ManagedChannelBuilder.forTarget(ASSISTANT_ENDPOINT).build();
         try {
@@ -403,7 +762,15 @@ public class MyAssistant implements Button.OnButtonEventListener {
             Log.e(TAG, "error creating assistant service:", e);
         }
 
-        myTTS = new CustomTTS();
+        mPhraseCache = new PhraseCache(new File(context.getFilesDir(), "phrases"),
+                PHRASE_MEMORY_BYTES, PHRASE_DISK_BYTES);
+        List<String> prompts = Collections.emptyList();
+        try {
+            prompts = PromptManifest.fromResource(context, R.raw.prompts);
+        } catch (IOException|JSONException e) {
+            Log.e(TAG, "error reading the prompt manifest:", e);
+        }
+        myTTS = new CustomTTS(prompts);
     }
 
     /**
@@ -412,8 +779,16 @@ public class MyAssistant implements Button.OnButtonEventListener {
      * @see  <a href="https://github.com/androidthings/sample-googleassistant"> the docs for changing the output channel</a>
      */
     private void setupAudioOut(){
+        MyAudioTrack.setDrainWatcher(new DrainWatcher(DRAIN_POLL_MILLIS, DRAIN_STALL_MILLIS));
         // Use I2S with the Voice HAT.
         if (USE_VOICEHAT_DAC) {
+            Log.i(TAG, "initializing DAC trigger");
+            try {
+                MyAudioTrack.setDacPower(new DacPowerManager(VoiceHat.openDac(),
+                        DAC_HOLD_OFF_MILLIS));
+            } catch (IOException e) {
+                Log.e(TAG, "error opening the DAC trigger, leaving the amp off", e);
+            }
             Log.d(TAG, "enumerating devices");
             mAudioInputDevice = findAudioDevice(AudioManager.GET_DEVICES_INPUTS,
                     AudioDeviceInfo.TYPE_BUS);
@@ -485,25 +860,82 @@ public class MyAssistant implements Button.OnButtonEventListener {
             Log.d(TAG, "error toggling LED:", e);
         }
         if (pressed) {
+            mTurnRequestedAt = SystemClock.elapsedRealtime();
+            mInterruptRequestedAt = mTurnRequestedAt;
             mAssistantHandler.post(mStartAssistantRequest);
         } else {
             mAssistantHandler.post(mStopAssistantRequest);
         }
     }
 
+    /**
+     * Picks how microphone audio is sent from the next turn on, LINEAR16 or FLAC.
+     */
+    public void setInputEncoding(AudioInConfig.Encoding encoding) {
+        if (encoding != AudioInConfig.Encoding.LINEAR16
+                && encoding != AudioInConfig.Encoding.FLAC) {
+            throw new IllegalArgumentException("unsupported audio in encoding: " + encoding);
+        }
+        mInputEncoding = encoding;
+    }
+
+    /**
+     * Picks how response audio is received from the next turn on, LINEAR16 or MP3.
+     */
+    public void setOutputEncoding(AudioOutConfig.Encoding encoding) {
+        if (encoding != AudioOutConfig.Encoding.LINEAR16
+                && encoding != AudioOutConfig.Encoding.MP3) {
+            throw new IllegalArgumentException("unsupported audio out encoding: " + encoding);
+        }
+        mOutputEncoding = encoding;
+    }
+
     public void stop(){
         this.myTTS.stop();
     }
 
     public void kill(){
         Log.i(TAG, "destroying assistant demo");
+        if (mAudioCapture != null) {
+            mAudioCapture.stop();
+            mAudioSender.cancel();
+        }
         if (mAudioRecord != null) {
-            mAudioRecord.stop();
+            mAudioRecord.release();
             mAudioRecord = null;
         }
-        if (mAudioTrack != null) {
-            mAudioTrack.stop();
-            mAudioTrack = null;
+        if (mResponseEvents != null) {
+            mResponseEvents.stop();
+            mResponseEvents = null;
+        }
+        mAssistantRequestsAdapter.release();
+        if (mResponsePlayer != null) {
+            mResponsePlayer.stop();
+            mResponsePlayer = null;
+        }
+        if (mMixBus != null) {
+            mMixBus.stop();
+            mMixBus = null;
+        }
+        if (mTrackPool != null) {
+            mTrackPool.release();
+            mTrackPool = null;
+        }
+        if (MyAudioTrack.getDrainWatcher() != null) {
+            MyAudioTrack.getDrainWatcher().release();
+            MyAudioTrack.setDrainWatcher(null);
+        }
+        if (mMp3Decoder != null) {
+            mMp3Decoder.release();
+            mMp3Decoder = null;
+        }
+        if (mResponseSpillFile != null) {
+            try {
+                mResponseSpillFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing the response spill file", e);
+            }
+            mResponseSpillFile = null;
         }
         if (mLed != null) {
             try {
@@ -521,15 +953,10 @@ public class MyAssistant implements Button.OnButtonEventListener {
             }
             mButton = null;
         }
-        if (MyAudioTrack.getmDac() != null) {
-            try {
-                MyAudioTrack.getmDac().close();
-            } catch (IOException e) {
-                Log.w(TAG, "error closing voice hat trigger", e);
-            }
-            MyAudioTrack.setmDac(null);
+        if (MyAudioTrack.getDacPower() != null) {
+            MyAudioTrack.getDacPower().close();
+            MyAudioTrack.setDacPower(null);
         }
-        mAssistantHandler.post(() -> mAssistantHandler.removeCallbacks(mStreamAssistantRequest));
         myTTS.shutdown();
         mAssistantThread.quitSafely();
     }
@@ -545,8 +972,52 @@ public class MyAssistant implements Button.OnButtonEventListener {
      */
     public class CustomTTS extends UtteranceProgressListener implements TextToSpeech.OnInitListener {
         private static final String TTS_ENGINE = "com.svox.pico";
+        // Plays speech from onAudioAvailable as it's synthesized, rather than from a wav file
+        // once it's all done.
+        private static final boolean STREAM_SPEECH = true;
+        private static final String STREAM_PREFIX = "stream-";
+        // Where the engine writes while streaming, what it writes there is thrown away.
+        private static final String STREAM_SINK = "/dev/null";
+        // How much streamed speech the mixer moves into the bus ahead of playback.
+        private static final int STREAM_CAPACITY_MILLIS = 100;
+        // Utterance ID prefix for prompts synthesized ahead of time, they're cached, not played.
+        private static final String WARM_UP_PREFIX = "warmup-";
 
         private String utterance_ID;
+        private final AtomicInteger nextStreamId = new AtomicInteger();
+        // Streamed utterances that have started, by utterance ID.
+        private final Map<String, MixBus.Source> streams = new ConcurrentHashMap<>();
+        // When speak was called, until the utterance's first sample reaches the bus.
+        private final Map<String, Long> speakStartedAt = new ConcurrentHashMap<>();
+        private long streamedUtterances;
+        private long streamedFirstSampleMillis;
+        private long fileUtterances;
+        private long fileFirstSampleMillis;
+        // Part of every phrase's cache key, the engine has no getters for them.
+        private float pitch = 1f;
+        private float speechRate = 1f;
+        // Streamed utterances being recorded for the phrase cache, by utterance ID.
+        private final Map<String, Recording> recordings = new ConcurrentHashMap<>();
+        // Prompts from the manifest still to be synthesized into the phrase cache.
+        private final LinkedList<String> warmUpQueue = new LinkedList<>();
+        private int warmUpTotal;
+        private int warmUpDone;
+        private int warmUpCached;
+        private long warmUpStartedAt;
+
+        /**
+         * The audio of a streamed utterance, kept until it's done so it can be cached.
+         */
+        private class Recording {
+            final String key;
+            final long startedAt = SystemClock.elapsedRealtime();
+            final ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+            int sampleRate;
+
+            Recording(String key) {
+                this.key = key;
+            }
+        }
 
         private AudioAttributes attributes;
 
@@ -554,9 +1025,11 @@ public class MyAssistant implements Button.OnButtonEventListener {
 
         /**
          * initializes the class so it can use text to speech
+         * @param prompts synthesized into the phrase cache once the engine is up
          */
-        public CustomTTS(){
+        public CustomTTS(List<String> prompts){
             Log.i(TAG, "Creating myTTS!");
+            warmUpQueue.addAll(prompts);
             AudioAttributes.Builder audioAttributesBuilder = new AudioAttributes.Builder().
                     setUsage(AudioAttributes.USAGE_VOICE_COMMUNICATION_SIGNALLING).
                     setContentType(AudioAttributes.CONTENT_TYPE_SPEECH).
@@ -593,18 +1066,41 @@ public class MyAssistant implements Button.OnButtonEventListener {
 
         /**
          * This makes speaking much easier.
-         * calls the TextToSpeech method synthesizeToFile, which is played with FilePlayer in
-         * onDone
+         * When streaming, the audio goes to the mix bus from onAudioAvailable as it's
+         * synthesized. Otherwise it calls the TextToSpeech method synthesizeToFile, which is
+         * played with FilePlayer in onDone
          * @param textToSpeak
          */
         public void speak(String textToSpeak){
+            String key = phraseKey(textToSpeak);
+            PhraseCache.Phrase phrase = mPhraseCache.get(key);
+            if (phrase != null) {
+                MixBus.Source source = mMixBus.openSource("phrase", phrase.getSampleRate(),
+                        SPEECH_PRIORITY, STREAM_CAPACITY_MILLIS);
+                source.enqueue(phrase.getPcm());
+                source.end();
+                mPhraseCache.logStats();
+                return;
+            }
             Bundle params = new Bundle();
+            if (STREAM_SPEECH) {
+                String utteranceId = STREAM_PREFIX + nextStreamId.incrementAndGet();
+                speakStartedAt.put(utteranceId, SystemClock.elapsedRealtime());
+                recordings.put(utteranceId, new Recording(key));
+                params.putString(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, utteranceId);
+                // speak() would play it through the engine's own track, this only gets us
+                // the callbacks.
+                this.tts.synthesizeToFile(textToSpeak, params, new File(STREAM_SINK),
+                        utteranceId);
+                return;
+            }
             try{
                 File file = File.createTempFile("tempSoundFile", ".wav");
                 file.setWritable(true, false);
                 file.setReadable(true, false);
                 file.deleteOnExit();
                 utterance_ID = file.getAbsolutePath();
+                speakStartedAt.put(utterance_ID, SystemClock.elapsedRealtime());
                 //pre lolipop devices: https://stackoverflow.com/questions/34562771/how-to-save-audio-file-from-speech-synthesizer-in-android-android-speech-tts
                 params.putString(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, utterance_ID);
                 //You were explicitly setting the engine here. You should add that in.
@@ -642,14 +1138,15 @@ public class MyAssistant implements Button.OnButtonEventListener {
                     // this sets the local: https://proandroiddev.com/change-language-programmatically-at-runtime-on-android-5e6bc15c758
                     //I don't think this is why the speech isn't working.
                     this.tts.setLanguage(myLoc);
-                    this.tts.setPitch(1f);
-                    this.tts.setSpeechRate(1f);
+                    this.tts.setPitch(pitch);
+                    this.tts.setSpeechRate(speechRate);
                     this.tts.setOnUtteranceProgressListener(this);
                 } catch (Exception e) {
                     Log.e(TAG, "Error creating Custom TTS", e);
                 }
                 //this.speak("Hello world");
                 //AudioPlaybackConfiguration
+                startWarmUp();
             } else {
                 Log.w(TAG, "Could not open TTS Engine (onInit status=" + status + ")");
                 //ttsEngine = null;
@@ -667,6 +1164,176 @@ public class MyAssistant implements Button.OnButtonEventListener {
             Log.i(TAG, "Text to speech engine started");
         }
 
+        /**
+         * Starts synthesizing the manifest's prompts into the phrase cache, in the background.
+         */
+        private synchronized void startWarmUp() {
+            warmUpTotal = warmUpQueue.size();
+            warmUpStartedAt = SystemClock.elapsedRealtime();
+            Log.i(TAG, "prompt warm-up: " + warmUpTotal + " prompts");
+            warmUpNext();
+        }
+
+        /**
+         * Hands the engine the next prompt that isn't cached yet. Only one is ever queued on the
+         * engine, so speech for the assistant waits behind one short prompt at most.
+         */
+        private synchronized void warmUpNext() {
+            while (!warmUpQueue.isEmpty()) {
+                String text = warmUpQueue.poll();
+                String key = phraseKey(text);
+                if (mPhraseCache.contains(key)) {
+                    warmUpDone++;
+                    warmUpCached++;
+                    continue;
+                }
+                String utteranceId = WARM_UP_PREFIX + nextStreamId.incrementAndGet();
+                recordings.put(utteranceId, new Recording(key));
+                Bundle params = new Bundle();
+                params.putString(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, utteranceId);
+                if (this.tts.synthesizeToFile(text, params, new File(STREAM_SINK), utteranceId)
+                        == TextToSpeech.SUCCESS) {
+                    return;
+                }
+                Log.w(TAG, "prompt warm-up: couldn't queue \"" + text + "\"");
+                recordings.remove(utteranceId);
+                warmUpDone++;
+            }
+            if (warmUpTotal > 0) {
+                Log.i(TAG, "prompt warm-up: done in " +
+                        (SystemClock.elapsedRealtime() - warmUpStartedAt) + " ms, " +
+                        warmUpCached + " of " + warmUpTotal + " were already cached");
+                warmUpTotal = 0;
+            }
+        }
+
+        /**
+         * @return the phrase cache key for the text spoken with the current settings
+         */
+        private String phraseKey(String text) {
+            Voice voice = tts.getVoice();
+            return PhraseCache.key(text, voice != null ? voice.getName() : TTS_ENGINE,
+                    voice != null ? voice.getLocale() : Locale.getDefault(), pitch, speechRate);
+        }
+
+        /**
+         * Opens a source on the mix bus for a streamed utterance, at whatever rate the engine
+         * synthesizes. Prompts being warmed up are only recorded.
+         *
+         * @see UtteranceProgressListener#onBeginSynthesis(String, int, int, int)
+         */
+        @Override
+        public void onBeginSynthesis(String utteranceId, int sampleRateInHz, int audioFormat,
+                                     int channelCount) {
+            boolean streamed = utteranceId.startsWith(STREAM_PREFIX);
+            if (!streamed && !utteranceId.startsWith(WARM_UP_PREFIX)) {
+                return;
+            }
+            if (audioFormat != AudioFormat.ENCODING_PCM_16BIT || channelCount != 1) {
+                Log.e(TAG, "can't stream speech in format " + audioFormat + " with " +
+                        channelCount + " channels");
+                recordings.remove(utteranceId);
+                return;
+            }
+            if (streamed) {
+                streams.put(utteranceId, mMixBus.openSource(utteranceId, sampleRateInHz,
+                        SPEECH_PRIORITY, STREAM_CAPACITY_MILLIS));
+            }
+            Recording recording = recordings.get(utteranceId);
+            if (recording != null) {
+                recording.sampleRate = sampleRateInHz;
+            }
+        }
+
+        /**
+         * Hands a streamed utterance's audio to the bus as soon as it's synthesized.
+         *
+         * @see UtteranceProgressListener#onAudioAvailable(String, byte[])
+         */
+        @Override
+        public void onAudioAvailable(String utteranceId, byte[] audio) {
+            MixBus.Source source = streams.get(utteranceId);
+            if (source != null) {
+                // Every chunk comes in its own array, so the bus can keep it.
+                source.enqueue(audio);
+                recordFirstSample(utteranceId, true);
+            }
+            Recording recording = recordings.get(utteranceId);
+            if (recording != null) {
+                if (recording.pcm.size() + audio.length > PHRASE_MEMORY_BYTES / 4) {
+                    // Too long to be a prompt, it wouldn't be cached anyway.
+                    recordings.remove(utteranceId);
+                } else {
+                    recording.pcm.write(audio, 0, audio.length);
+                }
+            }
+        }
+
+        /**
+         * @see UtteranceProgressListener#onStop(String, boolean)
+         */
+        @Override
+        public void onStop(String utteranceId, boolean interrupted) {
+            endStream(utteranceId, false);
+        }
+
+        /**
+         * @param played let the source play out what it has, rather than drop it
+         */
+        private void endStream(String utteranceId, boolean played) {
+            speakStartedAt.remove(utteranceId);
+            Recording recording = recordings.remove(utteranceId);
+            if (played && recording != null && recording.sampleRate > 0) {
+                long synthesisMillis = SystemClock.elapsedRealtime() - recording.startedAt;
+                mPhraseCache.put(recording.key, ByteBuffer.wrap(recording.pcm.toByteArray()),
+                        recording.sampleRate, synthesisMillis);
+                mPhraseCache.logStats();
+            }
+            if (utteranceId.startsWith(WARM_UP_PREFIX)) {
+                synchronized (this) {
+                    warmUpDone++;
+                    Log.i(TAG, "prompt warm-up: " + warmUpDone + "/" + warmUpTotal + " ready");
+                }
+                warmUpNext();
+                return;
+            }
+            MixBus.Source source = streams.remove(utteranceId);
+            if (source == null) {
+                return;
+            }
+            if (played) {
+                source.end();
+            } else {
+                source.close();
+            }
+        }
+
+        /**
+         * Logs how long an utterance took from speak to its first sample reaching the bus,
+         * along with the averages for streamed and file speech.
+         */
+        private void recordFirstSample(String utteranceId, boolean streamed) {
+            Long startedAt = speakStartedAt.remove(utteranceId);
+            if (startedAt == null) {
+                return;
+            }
+            long millis = SystemClock.elapsedRealtime() - startedAt;
+            synchronized (this) {
+                if (streamed) {
+                    streamedUtterances++;
+                    streamedFirstSampleMillis += millis;
+                } else {
+                    fileUtterances++;
+                    fileFirstSampleMillis += millis;
+                }
+                Log.i(TAG, "speech time to first sample: " + millis + " ms, average " +
+                        (streamedUtterances > 0 ? streamedFirstSampleMillis / streamedUtterances
+                                : -1) + " ms streamed, " +
+                        (fileUtterances > 0 ? fileFirstSampleMillis / fileUtterances : -1) +
+                        " ms from a file");
+            }
+        }
+
 
 
 
@@ -685,8 +1352,14 @@ public class MyAssistant implements Button.OnButtonEventListener {
         @Override
         public void onDone(String utteranceId) {
             Log.i(TAG, "utterance done!");
-            FilePlayer fp = new FilePlayer(utteranceId, attributes, mAudioOutputDevice);
+            if (utteranceId.startsWith(STREAM_PREFIX) || utteranceId.startsWith(WARM_UP_PREFIX)) {
+                endStream(utteranceId, true);
+                return;
+            }
+            FilePlayer fp = new FilePlayer(utteranceId, mMixBus, SPEECH_PRIORITY);
             fp.playWavToHandler(mAssistantHandler);
+            // Runs once the file has been read and queued on the bus.
+            mAssistantHandler.post(() -> recordFirstSample(utteranceId, false));
         }
 
         /**
@@ -697,6 +1370,7 @@ public class MyAssistant implements Button.OnButtonEventListener {
          */
         @Override
         public void onError(String utteranceId, int errorCode) {
+            endStream(utteranceId, false);
             switch(errorCode){
                 case TextToSpeech.ERROR_INVALID_REQUEST:
                     Log.e(TAG, "Text to speech: invalid request see https://developer.android.com/reference/android/speech/tts/TextToSpeech.html#ERROR_INVALID_REQUEST");
@@ -735,6 +1409,7 @@ public class MyAssistant implements Button.OnButtonEventListener {
          */
         @Override
         public void onError(String utteranceId) {
+            endStream(utteranceId, false);
             Log.e(TAG, "TextToSpeech: utterance error.");
         }
     }
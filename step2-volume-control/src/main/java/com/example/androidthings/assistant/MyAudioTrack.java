@@ -2,13 +2,14 @@ package com.example.androidthings.assistant;
 
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
+import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.os.Handler;
 import android.provider.MediaStore;
 import android.util.Log;
 
-import com.google.android.things.contrib.driver.voicehat.Max98357A;
-import com.google.android.things.contrib.driver.voicehat.VoiceHat;
+import com.example.androidthings.assistant.shared.DacPowerManager;
+import com.example.androidthings.assistant.shared.DrainWatcher;
 import com.google.common.primitives.Ints;
 
 import java.io.DataInputStream;
@@ -18,6 +19,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.content.ContentValues.TAG;
 
@@ -28,21 +31,24 @@ import static android.content.ContentValues.TAG;
  * The class also
  */
 public class MyAudioTrack extends AudioTrack {
-    private static Max98357A mDac;
-    private boolean safeToStop = true;
-    private boolean stopWhenDone = false;
+    // Shared by every track, null when not using the Voice HAT.
+    private static DacPowerManager dacPower;
+    // Whether this track holds the DAC on, only touched while holding the track's lock.
+    private boolean holdsDac = false;
+    // Shared by every track, null stops tracks right away instead of after they drain.
+    private static DrainWatcher drainWatcher;
+    // Frames written since the head was last reset. The writing thread adds to it, and flush()
+    // and forceStop() zero it from whichever thread stops the track, hence the atomic.
+    private final AtomicLong framesWritten = new AtomicLong();
+    // Bumped by every play(), so a stop that's waiting for the drain knows it's stale.
+    private int playGeneration = 0;
+    // Set by release(), so a drain that completes afterwards leaves the native track alone.
+    private boolean released = false;
     //todo add a static default volume variable here
 
     private AudioTrack.OnPlaybackPositionUpdateListener listener = new OnPlaybackPositionUpdateListener (){
         @Override
         public void onMarkerReached(AudioTrack audioTrack) {
-            Log.i(TAG, "MyAudioTrack has reached the marker");
-            safeToStop = true;
-            if(stopWhenDone) {
-                release();//release calls stop, so you don't need to call stop here.
-                Log.i(TAG, "Text to speech synthesis done");
-            }
-
         }
         @Override
         public void onPeriodicNotification(AudioTrack audioTrack) {
@@ -55,37 +61,24 @@ public class MyAudioTrack extends AudioTrack {
 
 
     /**
-     * This initalizes the Dac if it's necessary, then calls the super constructor.
+     * This calls the super constructor, then initalizes the Dac if it's necessary.
      * Also sets the OnPlaybackPositionUpdateListener to this.listener.
      *
-     * @param streamType see super
-     * @param sampleRateInHz see super
-     * @param channelConfig see super
-     * @param audioFormat see super
+     * @param attributes see super
+     * @param format see super
      * @param bufferSizeInBytes see super
      * @param mode see super
+     * @param sessionId see super
      * @throws IllegalArgumentException this comes from AudioTrack's constructor
-     * @see AudioTrack#AudioTrack(int, int, int, int, int, int)
+     * @see AudioTrack#AudioTrack(AudioAttributes, AudioFormat, int, int, int)
      * @see this#listener
      * @see AudioTrack#setPlaybackPositionUpdateListener(OnPlaybackPositionUpdateListener)
      */
-    private MyAudioTrack(
-            int streamType, int sampleRateInHz, int channelConfig, int audioFormat,
-            int bufferSizeInBytes, int mode) throws IllegalArgumentException {
-        super(streamType, sampleRateInHz, channelConfig, audioFormat, bufferSizeInBytes, mode);
+    private MyAudioTrack(AudioAttributes attributes, AudioFormat format, int bufferSizeInBytes,
+            int mode, int sessionId) throws IllegalArgumentException {
+        super(attributes, format, bufferSizeInBytes, mode, sessionId);
         Log.i(TAG, "MyAudioTrack made!");
-        if(MyAssistant.USE_VOICEHAT_DAC) {
-            Log.i(TAG, "initializing DAC trigger");
-            try {
-                setmDac(VoiceHat.openDac());
-                getmDac().setSdMode(Max98357A.SD_MODE_SHUTDOWN);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }else{
-            Log.i(TAG, "Not using the Dac");
-        }
-        setPositionNotificationPeriod(sampleRateInHz);//gets notified once per second
+        setPositionNotificationPeriod(format.getSampleRate());//gets notified once per second
         setPlaybackPositionUpdateListener(this.listener);
     }
 
@@ -113,42 +106,69 @@ public class MyAudioTrack extends AudioTrack {
 
     /**
      * just implements the build method, so I can build MyAudioTrack the same way AudioTrack is built.
+     *
+     * The settings are kept here and handed straight to MyAudioTrack's constructor, so building
+     * only creates one native track.
      */
     public static class Builder extends AudioTrack.Builder{
+        private AudioAttributes attributes;
+        private AudioFormat format;
+        private int bufferSizeInBytes;
+        private int mode = MODE_STREAM;
+        private int sessionId = AudioManager.AUDIO_SESSION_ID_GENERATE;
+
+        @Override
+        public Builder setAudioAttributes(AudioAttributes attributes) {
+            super.setAudioAttributes(attributes);
+            this.attributes = attributes;
+            return this;
+        }
+
+        @Override
+        public Builder setAudioFormat(AudioFormat format) {
+            super.setAudioFormat(format);
+            this.format = format;
+            return this;
+        }
+
+        @Override
+        public Builder setBufferSizeInBytes(int bufferSizeInBytes) {
+            super.setBufferSizeInBytes(bufferSizeInBytes);
+            this.bufferSizeInBytes = bufferSizeInBytes;
+            return this;
+        }
+
+        @Override
+        public Builder setTransferMode(int mode) {
+            super.setTransferMode(mode);
+            this.mode = mode;
+            return this;
+        }
+
+        @Override
+        public Builder setSessionId(int sessionId) {
+            super.setSessionId(sessionId);
+            this.sessionId = sessionId;
+            return this;
+        }
+
         /**
-         * Builds an AudioTrack then copies it into a MyAudioTrack.
+         * Builds a MyAudioTrack with the settings given so far.
          *
          * @return a new initialized MyAudioTrack.
-         * @see super#Builder()#build()
+         * @throws UnsupportedOperationException if the format or the buffer size wasn't set
          * @see <a href="https://developer.android.com/reference/android/media/AudioTrack.Builder.html#build()">
          *     The AudioTrack.Builder.build() docs</a>
-         * @see MyAudioTrack#MyAudioTrack(AudioTrack)
          */
         @Override
         public MyAudioTrack build(){
-            return new MyAudioTrack(super.build());
-        }
-    }
-
-    /**
-     * This is my best attempt at subclassing AudioTrack so I can still use the builder.
-     *
-     * @param audioTrack an AudioTrack to be converted to MyAudioTrack
-     * @throws ArithmeticException if your understanding of bit depth is wrong.
-     */
-    public MyAudioTrack(AudioTrack audioTrack){
-        this(
-            audioTrack.getStreamType(), audioTrack.getSampleRate(),
-            audioTrack.getChannelConfiguration(), audioTrack.getAudioFormat(),
-            audioTrack.getBufferSizeInFrames() * bytesPerFrame(audioTrack.getAudioFormat()),
-            MODE_STREAM
-        );
-        if( Math.abs(audioTrack.getBufferSizeInFrames() - getBufferSizeInFrames()) > 10){
-            ArithmeticException badBitDepth =
-                    new ArithmeticException("The code is wrong. You're misunderstanding bit depth.");
-            Log.wtf(TAG, "Your code is just wrong!!! The audio track's " +
-                    "buffer size in frames is: " + audioTrack.getBufferSizeInFrames() +
-                    " my class's buffer size in frames is: " + getBufferSizeInFrames(), badBitDepth);
+            if (format == null || bufferSizeInBytes == 0) {
+                throw new UnsupportedOperationException(
+                        "MyAudioTrack.Builder needs an audio format and a buffer size");
+            }
+            AudioAttributes trackAttributes = attributes != null ? attributes
+                    : new AudioAttributes.Builder().setUsage(AudioAttributes.USAGE_MEDIA).build();
+            return new MyAudioTrack(trackAttributes, format, bufferSizeInBytes, mode, sessionId);
         }
     }
 
@@ -163,10 +183,7 @@ public class MyAudioTrack extends AudioTrack {
      * @see <a href="https://developer.android.com/reference/android/media/AudioFormat#encoding">
      *     AudioFormat docs</a>
      * @see this#write(byte[], int, int, int)
-     * @see this#write(ByteBuffer, int, int, long)
      * @see this#write(ByteBuffer, int, int)
-     * @see this#write(byte[], int, int)
-     * @see this#MyAudioTrack(AudioTrack)
      */
     public static int bytesPerFrame( int format ){
         switch(format){
@@ -195,10 +212,7 @@ public class MyAudioTrack extends AudioTrack {
      * @see <a href="https://developer.android.com/reference/android/media/AudioFormat#encoding">
      *     AudioFormat docs</a>
      * @see this#write(byte[], int, int, int)
-     * @see this#write(ByteBuffer, int, int, long)
      * @see this#write(ByteBuffer, int, int)
-     * @see this#write(byte[], int, int)
-     * @see this#MyAudioTrack(AudioTrack)
      */
     public int bytesPerFrame(){
         return MyAudioTrack.bytesPerFrame( this.getAudioFormat() );
@@ -207,7 +221,6 @@ public class MyAudioTrack extends AudioTrack {
     /**
      * There are 2 bytes in a short
      * @return
-     * @see this#write(short[], int, int)
      * @see this#write(short[], int, int, int)
      */
     public float shortsPerFrame(){
@@ -226,142 +239,173 @@ public class MyAudioTrack extends AudioTrack {
 
 
 
-    public static Max98357A getmDac() {
-        return mDac;
+    public static DacPowerManager getDacPower() {
+        return dacPower;
+    }
+
+    /**
+     * @param dacPower keeps the Voice HAT's amp on while tracks play, or null without one
+     */
+    public static void setDacPower(DacPowerManager dacPower) {
+        MyAudioTrack.dacPower = dacPower;
+    }
+
+    public static DrainWatcher getDrainWatcher() {
+        return drainWatcher;
     }
 
-    public static void setmDac(Max98357A mDac) {
-        MyAudioTrack.mDac = mDac;
+    /**
+     * @param drainWatcher tells tracks when they've played everything, or null to have stop()
+     *   cut them off right away
+     */
+    public static void setDrainWatcher(DrainWatcher drainWatcher) {
+        MyAudioTrack.drainWatcher = drainWatcher;
     }
 
     @Override
-    public void play() throws IllegalStateException {
+    public synchronized void play() throws IllegalStateException {
         super.play();
-        stopWhenDone = false;
-        safeToStop = false;
-        if (mDac != null) {
-            Log.i(TAG, "enabling the dac");
-            try {
-                getmDac().setSdMode(Max98357A.SD_MODE_LEFT);
-            } catch (IOException e) {
-                Log.e(TAG, "unable to modify dac trigger", e);
-            }
-        }else{
-            Log.i(TAG, "mDac is null, and it should " +
-                    (MyAssistant.USE_VOICEHAT_DAC? "not ":"") + "be");
+        playGeneration++;
+        holdDac(true);
+    }
+
+    /**
+     * Takes or lets go of this track's hold on the DAC. The DAC manager only shuts the amp down
+     * once no track has held it for a while, so this is cheap.
+     */
+    private synchronized void holdDac(boolean hold) {
+        DacPowerManager power = dacPower;
+        if (power == null || hold == holdsDac) {
+            return;
+        }
+        holdsDac = hold;
+        if (hold) {
+            power.acquire();
+        } else {
+            power.release();
         }
     }
 
     /**
-     * Advances the notification marker by advancementFrames frames
-     * @param advancementFrames
-     * @see super#setNotificationMarkerPosition(int)
-     * @see super#getNotificationMarkerPosition()
+     * Lets go of the DAC too, in case the track was still playing. Holds the track's lock, so it
+     * can't release the native track in the middle of a drain callback's forceStop().
      */
-    public void advanceNotificationMarker(int advancementFrames){
-        int nextPos = advancementFrames + super.getNotificationMarkerPosition();
-        Log.d(TAG, "Writing " + advancementFrames + " frames to the buffer");
-        Log.d(TAG, "notification position now set to " + nextPos);
-        Log.d(TAG, "Playback head position " + getPlaybackHeadPosition());
-        super.setNotificationMarkerPosition( nextPos );
+    @Override
+    public synchronized void release() {
+        released = true;
+        holdDac(false);
+        super.release();
     }
 
+    /**
+     * Tells when everything written so far has been played. Nothing blocks, so the next clip
+     * can be chained onto it.
+     *
+     * @return completes once the playback head reaches the last frame written
+     * @see DrainWatcher
+     */
+    public CompletableFuture<Void> drain() {
+        DrainWatcher watcher = drainWatcher;
+        if (watcher == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return watcher.watch(this, framesWritten.get());
+    }
 
     /**
-     * stops the AudioTrack if and kills the mDac if it's safe
+     * Stops the AudioTrack and lets go of the DAC once it's played everything. Returns right
+     * away; playing again before then cancels the stop.
      * @throws IllegalStateException
      */
     @Override
     public void stop() throws IllegalStateException {
-        if(safeToStop){
-            forceStop();
-        }else{
-            stopWhenDone = true;
-            Log.i(TAG, "Tried to stop when it's not safe.");
+        final int generation;
+        synchronized (this) {
+            generation = playGeneration;
         }
+        drain().thenRun(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MyAudioTrack.this) {
+                    if (generation == playGeneration && !released
+                            && getState() == STATE_INITIALIZED) {
+                        forceStop();
+                    }
+                }
+            }
+        });
     }
 
 
 
+    /**
+     * Whatever was flushed is never going to play, so drain shouldn't wait for it.
+     */
+    @Override
+    public synchronized void flush() {
+        super.flush();
+        framesWritten.set(0);
+    }
+
     /**
      * forces the AudioTrack to stop without playing the remaining data in its buffer
      * @throws IllegalStateException
      */
-    private void forceStop() throws IllegalStateException{
+    private synchronized void forceStop() throws IllegalStateException{
+        if (released) {
+            return;
+        }
         Log.i(TAG, "MyAudioTrack trying to forceStop()");
         super.flush();
         //super.reloadStaticData();
         super.stop();
-        if (mDac != null) {
-            try {
-                Log.i(TAG, "MyAudioTrack trying to kill dac");
-                getmDac().setSdMode(Max98357A.SD_MODE_SHUTDOWN);
-                Log.i(TAG, "MyAudioTrack successfully shut the Dac down");
-            } catch (IOException e) {
-                Log.e(TAG, "unable to modify dac trigger", e);
-            }
-        }else{
-            Log.i(TAG, "mDac is null, and it should " +
-                    (MyAssistant.USE_VOICEHAT_DAC? "not ":"") + "be");
-        }
+        // The playback head starts from 0 again, so does the count.
+        framesWritten.set(0);
+        holdDac(false);
     }
 
 
     /**********************************
-     * THESE WRITE METHODS CALL advanceNotificationMaker SO stop can ensure safety
+     * THESE WRITE METHODS COUNT THE FRAMES WRITTEN SO drain KNOWS WHERE THE END IS
+     *
+     * The other write methods all end up in one of these.
      */
 
     /**
+     * Adds what a write accepted to framesWritten.
      *
-     * @param audioData
-     * @param offsetInBytes
-     * @param sizeInBytes
-     * @return
+     * @param written what the write returned, in the units it was given
+     * @param bytesPerUnit 1 for bytes, 2 for shorts and 4 for floats
+     * @return written, so it can be passed straight through
      */
-    @Override
-    public int write(byte[] audioData, int offsetInBytes, int sizeInBytes) {
-        advanceNotificationMarker(sizeInBytes/bytesPerFrame());
-        safeToStop = false;
-        return super.write(audioData, offsetInBytes, sizeInBytes);
+    private int countFrames(int written, int bytesPerUnit) {
+        if (written > 0) {
+            framesWritten.addAndGet(written * bytesPerUnit / (bytesPerFrame() * getChannelCount()));
+        }
+        return written;
     }
 
     @Override
     public int write(ByteBuffer audioData, int sizeInBytes, int writeMode) {
         Log.d(TAG, "Writing " + sizeInBytes + " bytes of audio data");
-        advanceNotificationMarker(sizeInBytes/bytesPerFrame());
-        safeToStop = false;
-        return super.write(audioData, sizeInBytes, writeMode);
+        return countFrames(super.write(audioData, sizeInBytes, writeMode), 1);
     }
 
     @Override
-    public int write(short[] audioData, int offsetInShorts, int sizeInShorts) {
+    public int write(short[] audioData, int offsetInShorts, int sizeInShorts, int writeMode) {
         Log.d(TAG, "Writing " + sizeInShorts + " shorts of audio data");
-        advanceNotificationMarker((int) (sizeInShorts / shortsPerFrame()));
-        safeToStop = false;
-        return super.write(audioData, offsetInShorts, sizeInShorts);
+        return countFrames(super.write(audioData, offsetInShorts, sizeInShorts, writeMode), 2);
     }
 
     @Override
     public int write(byte[] audioData, int offsetInBytes, int sizeInBytes, int writeMode) {
         Log.d(TAG, "Writing " + sizeInBytes + " of audio data.");
-        advanceNotificationMarker( ( sizeInBytes / bytesPerFrame() ) );
-        safeToStop = false;
-        return super.write(audioData, offsetInBytes, sizeInBytes, writeMode);
-    }
-
-    @Override
-    public int write(ByteBuffer audioData, int sizeInBytes, int writeMode, long timestamp) {
-        Log.d(TAG, "Writing " + sizeInBytes + " bytes of audio data");
-        advanceNotificationMarker(sizeInBytes/ bytesPerFrame() );
-        safeToStop = false;
-        return super.write(audioData, sizeInBytes, writeMode, timestamp);
+        return countFrames(super.write(audioData, offsetInBytes, sizeInBytes, writeMode), 1);
     }
 
     @Override
     public int write(float[] audioData, int offsetInFloats, int sizeInFloats, int writeMode) {
         Log.d(TAG, "Writing " + sizeInFloats + " bytes of audio data");
-        advanceNotificationMarker( (int) (sizeInFloats / floatsPerFrame()) );
-        safeToStop = false;
-        return super.write(audioData, offsetInFloats, sizeInFloats, writeMode);
+        return countFrames(super.write(audioData, offsetInFloats, sizeInFloats, writeMode), 4);
     }
 }
@@ -30,6 +30,8 @@ import android.os.HandlerThread;
 import android.util.Log;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
+import com.example.androidthings.assistant.shared.AudioBufferPool;
+import com.example.androidthings.assistant.shared.AudioRequests;
 import com.example.androidthings.assistant.shared.BoardDefaults;
 import com.example.androidthings.assistant.shared.Credentials;
 import com.example.androidthings.assistant.shared.MyDevice;
@@ -144,7 +146,7 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
                     }
                     if (value.getAudioOut() != null) {
                         final ByteBuffer audioData =
-                            ByteBuffer.wrap(value.getAudioOut().getAudioData().toByteArray());
+                            value.getAudioOut().getAudioData().asReadOnlyByteBuffer();
                         Log.d(TAG, "converse audio size: " + audioData.remaining());
                         mAssistantResponses.add(audioData);
                     }
@@ -247,6 +249,8 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
     private HandlerThread mAssistantThread;
     private Handler mAssistantHandler;
     private ArrayList<ByteBuffer> mAssistantResponses = new ArrayList<>();
+    private final AudioBufferPool mAudioBufferPool =
+            new AudioBufferPool(SAMPLE_BLOCK_SIZE, 2);
     private Runnable mStartAssistantRequest = new Runnable() {
         @Override
         public void run() {
@@ -276,7 +280,7 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
     private Runnable mStreamAssistantRequest = new Runnable() {
         @Override
         public void run() {
-            ByteBuffer audioData = ByteBuffer.allocateDirect(SAMPLE_BLOCK_SIZE);
+            ByteBuffer audioData = mAudioBufferPool.acquire();
             if (mAudioInputDevice != null) {
                 mAudioRecord.setPreferredDevice(mAudioInputDevice);
             }
@@ -284,12 +288,13 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
                     mAudioRecord.read(audioData, audioData.capacity(), AudioRecord.READ_BLOCKING);
             if (result < 0) {
                 Log.e(TAG, "error reading from audio stream:" + result);
+                mAudioBufferPool.release(audioData);
                 return;
             }
             Log.d(TAG, "streaming ConverseRequest: " + result);
-            mAssistantRequestObserver.onNext(AssistRequest.newBuilder()
-                    .setAudioIn(ByteString.copyFrom(audioData))
-                    .build());
+            // The bytes are serialized by the time sendAudio returns, so the buffer is free again.
+            AudioRequests.sendAudio(mAssistantRequestObserver, audioData, result);
+            mAudioBufferPool.release(audioData);
             mAssistantHandler.post(mStreamAssistantRequest);
         }
     };